@@ -0,0 +1,1000 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import org.magnos.io.buffer.BufferFactory;
+
+
+/**
+ * A BufferStream made of a chain of segments allocated from a BufferFactory.
+ * Instead of resizing and copying its data when it runs out of space like the
+ * DynamicBufferStream, this stream appends another segment to the end of the
+ * chain. Skipping data never compacts, once all of the data in the first
+ * segment has been skipped the segment is returned to the factory.
+ *
+ * Data is written to the segment at the write position in the chain. When a
+ * ByteWriter writes a value which doesn't fit in the rest of that segment the
+ * value is staged and split across the segments before the next operation on
+ * the stream. A value larger than a segment is instead written in place to a
+ * segment of its own. A reader sees the data it asks for as a single buffer,
+ * which is a view of the first segment when the data is in it, otherwise the
+ * data is gathered into a buffer from the factory.
+ *
+ * A BufferStream is not thread-safe, therefore any access to it must be guarded
+ * by synchronization or locks.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class ChainedBufferStream implements BufferStream
+{
+
+	/**
+	 * A link in the chain.
+	 */
+	private static class Segment
+	{
+		// The buffer, data is between 0 (or the read offset) and its position.
+		private final ByteBuffer buffer;
+
+		// The next segment in the chain, or null if this is the last.
+		private Segment next;
+
+		public Segment(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+	}
+
+	// The listener to flush events.
+	private final BufferStreamListener listener;
+
+	// The factory to allocate segments from.
+	private final BufferFactory factory;
+
+	// The size of the segments requested from the factory.
+	private final int segmentSize;
+
+	// The first segment, data is read from here.
+	private Segment head;
+
+	// The segment data is written to. Segments after it are empty.
+	private Segment writer;
+
+	// The last segment.
+	private Segment tail;
+
+	// The number of segments in the chain.
+	private int segments;
+
+	// The sum of the capacities of every segment.
+	private int capacity;
+
+	// Where the data starts in the first segment.
+	private int offset;
+
+	// The number of bytes in the segments before the writer.
+	private int passed;
+
+	// The byte order of every segment.
+	private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+	// The buffer a value which spans segments is written to, it's never larger
+	// than a segment.
+	private ByteBuffer bridge;
+
+	// Whether the bridge has been handed out and must be committed.
+	private boolean bridging;
+
+	// The buffers passed to a gathering or scattering channel.
+	private ByteBuffer[] views = {};
+
+	// The buffer the data was last gathered into for a reader.
+	private ByteBuffer gathered;
+
+	// The number of bytes expected from the next drain of a scattering
+	// channel, based on the bytes drained recently.
+	private int expected;
+
+	/**
+	 * Instantiates a new ChainedBufferStream with segments of the factory's
+	 * default size.
+	 *
+	 * @param listener
+	 * 		The listener which handles flush invokations.
+	 * @param factory
+	 * 		The factory that allocates segments.
+	 */
+	public ChainedBufferStream(BufferStreamListener listener, BufferFactory factory)
+	{
+		this(listener, factory, factory.getDefaultSize());
+	}
+
+	/**
+	 * Instantiates a new ChainedBufferStream.
+	 *
+	 * @param listener
+	 * 		The listener which handles flush invokations.
+	 * @param factory
+	 * 		The factory that allocates segments.
+	 * @param segmentSize
+	 * 		The size of the segments to allocate. A segment may be larger if the
+	 * 		factory returns a larger buffer.
+	 */
+	public ChainedBufferStream(BufferStreamListener listener, BufferFactory factory, int segmentSize)
+	{
+		if (segmentSize <= 0) {
+			throw new IllegalArgumentException("The segment size must be positive: " + segmentSize);
+		}
+
+		this.listener = listener;
+		this.factory = factory;
+		this.segmentSize = segmentSize;
+		this.expected = segmentSize;
+		this.head = this.writer = append();
+	}
+
+	/**
+	 * Drains the channel and puts the data in this BufferStream. If the given
+	 * channel cannot be read an exception will be thrown, otherwise the number
+	 * of bytes read from the channel will be returned. The given channel is
+	 * expected to be non-blocking, and the read method on the channel must
+	 * return 0 if there is no more data to drain.
+	 *
+	 * If the channel is a ScatteringByteChannel enough segments for the bytes
+	 * expected are appended beforehand and read into with a single call, the
+	 * segments appended which aren't used are returned to the factory
+	 * afterwards. Space reserved beforehand with pad or expand is kept.
+	 *
+	 * @param channel
+	 * 		The channel to drain data from.
+	 * @return
+	 * 		The number of bytes drained from the channel.
+	 * @throws IOException
+	 * 		The channel is unreadable.
+	 */
+	public int drain(ReadableByteChannel channel) throws IOException
+	{
+		commit();
+		if (channel instanceof ScatteringByteChannel) {
+			return drain((ScatteringByteChannel)channel);
+		}
+		int read, drained = 0;
+		for (read = 0; (read = channel.read(writable())) > 0; ) {
+			drained += read;
+		}
+		return (read < 0 ? -1 : drained);
+	}
+
+	/**
+	 * Drains the stream and puts the data in this BufferStream. If the given
+	 * input stream cannot be read an exception will be thrown, otherwise the
+	 * number of bytes read from the channel will be returned. Since the given
+	 * stream blocks on reads first this attempts to use the available()
+	 * method of InputStream to guess the number of bytes to read into the
+	 * BufferStream. If the available method returns 0 then a blocking read will
+	 * be made for a single byte, once the read method unblocks that byte will
+	 * be added to this BufferStream. If there is no more data in the given
+	 * InputStream this method will return -1.
+	 *
+	 * @param stream
+	 * 		The InputStream to read from. If the InputStream can be read in
+	 * 		non-blocking mode an attempt will be made. If know data exists in
+	 * 		the stream but an EOF has not been reached this method will block
+	 * 		until data exists or an EOF has been given.
+	 * @return
+	 * 		The number of bytes added to this BufferStream or -1 if the
+	 * 		InputStream has reached EOF.
+	 * @throws IOException
+	 * 		The InputStream is unreadable.
+	 */
+	public int drain(InputStream stream) throws IOException
+	{
+		commit();
+		int read = stream.available();
+		// Read in only the available bytes, otherwise make a blocking read
+		// for a single byte.
+		if (read > 0) {
+			for (int i = 0; i < read; i++) {
+				writable().put((byte)stream.read());
+			}
+		}
+		else {
+			read = stream.read();
+			// If the EOF has not been reached yet...
+			if (read >= 0) {
+				writable().put((byte)read);
+				read = 1;
+			}
+		}
+		// Return the number of bytes read, or -1 for EOF.
+		return (read < 0 ? -1 : read);
+	}
+
+	/**
+	 * Drains the buffer and puts the data in this BufferStream. If the given
+	 * buffer is empty this will have no affect.
+	 *
+	 * @param writer
+	 * 		The buffer to take data from and place in this BufferStream.
+	 * @return
+	 * 		The number of bytes taken from the given buffer and placed in this
+	 * 		BufferStream. This is always writer.remaining();
+	 */
+	public int drain(ByteBuffer writer)
+	{
+		commit();
+		int write = writer.remaining();
+		write(writer);
+		return write;
+	}
+
+	/**
+	 * Drains the byte array and puts the data in this BufferStream. The data
+	 * is taken from the section of the given array described by the data's
+	 * offset in the array and the length of the section (number of bytes). If
+	 * the given length or offset exceed the bounds of the array a negative
+	 * number will be returned. If the given length exceeds the bounds of the
+	 * array but the offset exists in the array then the maximum number of bytes
+	 * will be put.
+	 *
+	 * @param data
+	 * 		The array of data to read from.
+	 * @param offset
+	 * 		The offset in the given array to start reading from.
+	 * @param length
+	 * 		The number of bytes to read.
+	 * @return
+	 * 		The number of bytes taken from the array. If no bytes could be taken
+	 * 		from the array a negative number will be returned .
+	 */
+	public int drain(byte[] data, int offset, int length)
+	{
+		commit();
+		int drained = Math.min(data.length - offset, length);
+		if (drained > 0) {
+			write(ByteBuffer.wrap(data, offset, drained));
+		}
+		else {
+			drained = -1;
+		}
+		return drained;
+	}
+
+	/**
+	 * Fills the channel by writing the data from this BufferStream to it. If
+	 * the given channel cannot be written to an exception will be thrown,
+	 * otherwise the number of bytes written to the channel will be returned.
+	 * The given channel is expected to be non-blocking, and the write method
+	 * on the channel must return 0 if data cannot currently be written to
+	 * the channel (the device could be busy). If the channel is a
+	 * GatheringByteChannel every segment with data is written in a single
+	 * call.
+	 *
+	 * @param channel
+	 * 		The channel to fill with the data from this BufferStream.
+	 * @return
+	 * 		The number of bytes taken from this BufferStream and successfully
+	 * 		written to the given channel.
+	 * @throws IOException
+	 * 		The channel is unwritable.
+	 */
+	public int fill(WritableByteChannel channel) throws IOException
+	{
+		commit();
+		if (channel instanceof GatheringByteChannel) {
+			return fill((GatheringByteChannel)channel);
+		}
+		int write, filled = 0;
+		for (Segment s = head; s != null; s = s.next)
+		{
+			ByteBuffer data = data(s);
+			for (write = 0; (write = channel.write(data)) > 0; ) {
+				filled += write;
+			}
+			// Stop at the last segment with data or if the channel is busy.
+			if (s == writer || data.hasRemaining()) {
+				break;
+			}
+		}
+		skip(filled);
+		return filled;
+	}
+
+	/**
+	 * Fills the stream by writing the data from this BufferStream to it. This
+	 * method will block until all data taken from this BufferStream is written
+	 * to the given stream. The number of bytes written to the stream will be
+	 * returned, or an exception will be thrown if the stream is unwritable.
+	 *
+	 * @param stream
+	 * 		The stream to fill with all of the data in this BufferStream.
+	 * @return
+	 * 		The number of bytes written to the stream.
+	 * @throws IOException
+	 * 		The OutputStream is unwritable.
+	 */
+	public int fill(OutputStream stream) throws IOException
+	{
+		commit();
+		int filled = size();
+		for (Segment s = head; s != null; s = s.next)
+		{
+			ByteBuffer data = data(s);
+			if (data.hasArray()) {
+				stream.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			}
+			else {
+				while (data.hasRemaining()) {
+					stream.write(data.get() & 0xFF);
+				}
+			}
+			if (s == writer) {
+				break;
+			}
+		}
+		skip(filled);
+		return filled;
+	}
+
+	/**
+	 * Fills the buffer and puts data from this BufferStream into it. Only the
+	 * maximum number of bytes are copied. The number of bytes copied to the
+	 * given buffer will be returned.
+	 *
+	 * @param reader
+	 * 		The buffer to write data to from this BufferStream.
+	 * @return
+	 * 		The number of bytes written to the given buffer.
+	 */
+	public int fill(ByteBuffer reader)
+	{
+		commit();
+		int read = Math.min(reader.remaining(), size());
+		if (read > 0) {
+			copy(reader, read);
+			skip(read);
+		}
+		return read;
+	}
+
+	/**
+	 * Returns the byte buffer to write to that has enough space for the given
+	 * number of bytes. If the segment being written to doesn't have enough
+	 * space a staging buffer is returned, what's written to it is split
+	 * across the segments before the next operation on this stream. If the
+	 * number of bytes is larger than a segment a segment of that size is
+	 * placed after the one being written to and returned instead, so a large
+	 * value is never staged and copied.
+	 *
+	 * @param bytes
+	 * 		The maximum number of bytes that will be written to the ByteBuffer
+	 * 		before the next {@link #getWriter(int)} is invoked.
+	 * @return
+	 * 		The reference to the ByteBuffer to write to.
+	 */
+	public ByteBuffer getWriter(int bytes)
+	{
+		commit();
+		ByteBuffer buffer = writable();
+		if (buffer.remaining() >= bytes) {
+			return buffer;
+		}
+		if (bytes > segmentSize) {
+			return insert(bytes);
+		}
+		if (bridge == null) {
+			bridge = factory.allocate(segmentSize);
+		}
+		bridge.clear();
+		bridge.order(order);
+		bridging = true;
+		return bridge;
+	}
+
+	/**
+	 * Returns a read-only buffer of the data at the start of this stream. If
+	 * the bytes requested are in the first segment the buffer is a view of
+	 * the segment, otherwise the bytes are copied into a buffer from the
+	 * factory which is returned to the factory the next time a reader is
+	 * requested or this stream is freed.
+	 *
+	 * A request for 0 bytes (like a ByteReader makes) returns all data in this
+	 * stream, which is copied whenever the data spans segments. Reading a
+	 * large stream a little at a time this way copies the data again for each
+	 * reader, so a reader of known size should be requested instead.
+	 *
+	 * @param bytes
+	 * 		The maximum number of bytes that will be read from the ByteBuffer
+	 * 		before the next {@link #getReader(int)} is invoked, or 0 for all of
+	 * 		the data in this stream.
+	 * @return
+	 * 		The reference to the ByteBuffer to write to.
+	 */
+	public ByteBuffer getReader(int bytes)
+	{
+		commit();
+		release();
+		ByteBuffer reader;
+		int size = size();
+		if (bytes > 0 && bytes < size) {
+			size = bytes;
+		}
+		if (head.buffer.position() - offset >= size) {
+			reader = data(head).slice();
+		}
+		else {
+			gathered = factory.allocate(size);
+			copy(gathered, size);
+			gathered.flip();
+			reader = gathered;
+		}
+		return reader.asReadOnlyBuffer().order(order);
+	}
+
+	/**
+	 * Returns the byte order of the BufferStream.
+	 *
+	 * @return
+	 * 		The byte order of the BufferStream.
+	 */
+	public ByteOrder order()
+	{
+		return order;
+	}
+
+	/**
+	 * Sets the byte order of the BufferStream.
+	 *
+	 * @param order
+	 * 		The new byte order of the BufferStream.
+	 */
+	public void order(ByteOrder order)
+	{
+		this.order = order;
+		for (Segment s = head; s != null; s = s.next) {
+			s.buffer.order(order);
+		}
+		if (bridge != null) {
+			bridge.order(order);
+		}
+	}
+
+	/**
+	 * Syncs the given read ByteBuffer with this stream. This simulates all data
+	 * read in the given ByteBuffer will be read from the stream and discarded.
+	 * This is equivalent to calling skip(reader.position()).
+	 *
+	 * @param reader
+	 * 		The ByteBuffer to synchronize with.
+	 */
+	public void sync(ByteBuffer reader)
+	{
+		skip(reader.position());
+	}
+
+	/**
+	 * Skips a given number of bytes. Skipping bytes will discard the oldest
+	 * bytes written to the BufferStream. If the number of bytes to skip exceeds
+	 * the number of bytes that exist in this BufferStream then all bytes in
+	 * this BufferStream are discarded. Every segment which has had all of its
+	 * data skipped is returned to the factory.
+	 *
+	 * @param bytes
+	 * 		The number of bytes to skip.
+	 */
+	public void skip(int bytes)
+	{
+		commit();
+		if (bytes >= size()) {
+			clear();
+			return;
+		}
+		while (bytes > 0)
+		{
+			int available = head.buffer.position() - offset;
+			// Skips only a section of the first segment.
+			if (bytes < available) {
+				offset += bytes;
+				passed -= bytes;
+				bytes = 0;
+			}
+			// Skips the rest of the first segment, returning it.
+			else {
+				bytes -= available;
+				passed -= available;
+				offset = 0;
+				remove();
+			}
+		}
+	}
+
+	/**
+	 * Discards all bytes in this BufferStream, returning every segment to the
+	 * factory except one.
+	 */
+	public void clear()
+	{
+		while (head.next != null) {
+			remove();
+		}
+		head.buffer.clear();
+		writer = head;
+		offset = 0;
+		passed = 0;
+		bridging = false;
+	}
+
+	/**
+	 * Expands the total capacity of the stream by appending a segment.
+	 */
+	public void expand()
+	{
+		append();
+	}
+
+	/**
+	 * Returns the number of bytes which can be written to this BufferStream
+	 * before another segment must be appended to hold more.
+	 *
+	 * @return
+	 * 		The number of bytes remaining.
+	 */
+	public int remaining()
+	{
+		commit();
+		int remaining = 0;
+		for (Segment s = writer; s != null; s = s.next) {
+			remaining += s.buffer.remaining();
+		}
+		return remaining;
+	}
+
+	/**
+	 * Ensures the BufferStream has enough space to write the given number
+	 * of bytes to it.
+	 *
+	 * @param bytes
+	 * 		The requested number of bytes to make available.
+	 */
+	public void pad(int bytes)
+	{
+		int remaining = remaining();
+		if (bytes > remaining) {
+			append((bytes - remaining + segmentSize - 1) / segmentSize);
+		}
+	}
+
+	/**
+	 * Returns the writing position of this BufferStream, which is the number
+	 * of bytes written to it since there is no single underlying ByteBuffer.
+	 *
+	 * @return
+	 * 		The write position in bytes.
+	 */
+	public int position()
+	{
+		return size();
+	}
+
+	/**
+	 * Returns the number of bytes current written to the BufferStream.
+	 *
+	 * @return
+	 * 		The position in bytes.
+	 */
+	public int size()
+	{
+		commit();
+		return passed + writer.buffer.position();
+	}
+
+	/**
+	 * Returns the sum of the capacities of the segments in this BufferStream.
+	 * This changes as segments are appended and returned.
+	 *
+	 * @return
+	 * 		The capacity in bytes.
+	 */
+	public int capacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of segments in this BufferStream.
+	 *
+	 * @return
+	 * 		The number of segments.
+	 */
+	public int segments()
+	{
+		return segments;
+	}
+
+	/**
+	 * Completely frees every segment of this BufferStream. This should only be
+	 * called if the BufferStream is never going to be invoked in any way ever
+	 * again. If an attempt to invoke this BufferStream after its freed is made
+	 * a NullPointerException will be thrown. This method can be invoked any
+	 * number of times but only the first invokation will actually free the
+	 * BufferStream.
+	 */
+	public void free()
+	{
+		if (head != null) {
+			release();
+			while (head != null) {
+				remove();
+			}
+			if (bridge != null) {
+				factory.free(bridge);
+				bridge = null;
+			}
+			writer = null;
+			bridging = false;
+		}
+	}
+
+	/**
+	 * Flushes the data in this BufferStream by notifying the listener that data
+	 * is ready to be processed. This is typically only used if the BufferStream
+	 * is manipulated explicitly and not through typical methods.
+	 */
+	public void flush()
+	{
+		listener.onBufferFlush(this);
+	}
+
+	/**
+	 * Returns whether this BufferStream contains any data.
+	 *
+	 * @return
+	 * 		True if this BufferStream has no data, otherwise false.
+	 */
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	/**
+	 * Returns whether this BufferStream contains any data.
+	 *
+	 * @return
+	 * 		True if this BufferStream has at least 1 byte, otherwise false.
+	 */
+	public boolean hasBytes()
+	{
+		return size() > 0;
+	}
+
+	/**
+	 * Returns whether this BufferStream has been freed. A freed BufferStream
+	 * should never be accessed again, if it is a NullPointerException will
+	 * be thrown.
+	 *
+	 * @return
+	 * 		True if free() has been invoked, otherwise false.
+	 */
+	public boolean isFree()
+	{
+		return (head == null);
+	}
+
+	/**
+	 * Appends an empty segment to the end of the chain.
+	 */
+	private Segment append()
+	{
+		ByteBuffer buffer = factory.allocate(segmentSize);
+		if (buffer == null) {
+			throw new OutOfMemoryError("Cannot allocate a segment of size " + segmentSize);
+		}
+		return append(buffer);
+	}
+
+	/**
+	 * Appends the given number of empty segments to the end of the chain,
+	 * allocating them from the factory at once.
+	 */
+	private void append(int count)
+	{
+		if (count == 1) {
+			append();
+			return;
+		}
+		ByteBuffer[] buffers = new ByteBuffer[count];
+		int allocated = factory.allocate(count, segmentSize, buffers);
+		if (allocated < count) {
+			factory.free(buffers, 0, allocated);
+			throw new OutOfMemoryError("Cannot allocate " + count + " segments of size " + segmentSize);
+		}
+		for (int i = 0; i < count; i++) {
+			append(buffers[i]);
+		}
+	}
+
+	/**
+	 * Appends a segment with the given buffer to the end of the chain.
+	 */
+	private Segment append(ByteBuffer buffer)
+	{
+		buffer.clear();
+		buffer.order(order);
+
+		Segment s = new Segment(buffer);
+		if (tail == null) {
+			head = s;
+		}
+		else {
+			tail.next = s;
+		}
+		tail = s;
+		segments++;
+		capacity += buffer.capacity();
+		return s;
+	}
+
+	/**
+	 * Places a segment of the given size after the segment being written to
+	 * and makes it the segment being written to. Space left in the previous
+	 * segment goes unused.
+	 */
+	private ByteBuffer insert(int size)
+	{
+		ByteBuffer buffer = factory.allocate(size);
+		if (buffer == null) {
+			throw new OutOfMemoryError("Cannot allocate a segment of size " + size);
+		}
+		buffer.clear();
+		buffer.order(order);
+
+		Segment s = new Segment(buffer);
+		s.next = writer.next;
+		writer.next = s;
+		if (tail == writer) {
+			tail = s;
+		}
+		segments++;
+		capacity += buffer.capacity();
+		passed += writer.buffer.position();
+		writer = s;
+		return buffer;
+	}
+
+	/**
+	 * Removes the first segment from the chain and returns it to the factory.
+	 */
+	private void remove()
+	{
+		Segment s = head;
+		head = s.next;
+		if (head == null) {
+			tail = null;
+		}
+		segments--;
+		capacity -= s.buffer.capacity();
+		factory.free(s.buffer);
+	}
+
+	/**
+	 * Returns the segment buffer to write to, moving to the next segment (and
+	 * appending one if needed) when the current segment is full.
+	 */
+	private ByteBuffer writable()
+	{
+		while (!writer.buffer.hasRemaining()) {
+			if (writer.next == null) {
+				append();
+			}
+			passed += writer.buffer.position();
+			writer = writer.next;
+		}
+		return writer.buffer;
+	}
+
+	/**
+	 * Writes the remaining data of the given buffer across the segments.
+	 */
+	private void write(ByteBuffer src)
+	{
+		int limit = src.limit();
+		while (src.hasRemaining()) {
+			ByteBuffer buffer = writable();
+			src.limit(src.position() + Math.min(buffer.remaining(), src.remaining()));
+			buffer.put(src);
+			src.limit(limit);
+		}
+	}
+
+	/**
+	 * Splits the value written to the bridge across the segments.
+	 */
+	private void commit()
+	{
+		if (bridging) {
+			bridging = false;
+			bridge.flip();
+			write(bridge);
+		}
+	}
+
+	/**
+	 * Returns the buffer last gathered for a reader to the factory.
+	 */
+	private void release()
+	{
+		if (gathered != null) {
+			factory.free(gathered);
+			gathered = null;
+		}
+	}
+
+	/**
+	 * Reads from the channel into every segment with space at once. If all of
+	 * the space is used the channel may have more, so more segments are
+	 * appended and the read is repeated. A read which doesn't use all of the
+	 * space means the channel had no more data.
+	 */
+	private int drain(ScatteringByteChannel channel) throws IOException
+	{
+		long read, drained = 0;
+		int bytes = expected;
+		Segment last = tail;
+
+		for (;;)
+		{
+			pad(bytes);
+			int count = 0;
+			if (views.length < segments) {
+				views = new ByteBuffer[segments];
+			}
+			for (Segment s = writer; s != null; s = s.next) {
+				views[count++] = s.buffer;
+			}
+
+			read = channel.read(views, 0, count);
+			Arrays.fill(views, 0, count, null);
+
+			if (read <= 0) {
+				break;
+			}
+			drained += read;
+
+			// Move the writer to the first segment with space left.
+			while (!writer.buffer.hasRemaining() && writer.next != null) {
+				passed += writer.buffer.position();
+				writer = writer.next;
+			}
+			if (writer.buffer.hasRemaining()) {
+				break;
+			}
+			bytes = (int)Math.min((long)bytes << 1, Integer.MAX_VALUE >> 1);
+		}
+
+		// Only the segments appended here are returned, those after the
+		// writer if it moved into them.
+		Segment from = last;
+		for (Segment s = last.next; s != null; s = s.next) {
+			if (s == writer) {
+				from = writer;
+			}
+		}
+		trim(from);
+
+		// A larger burst is expected right away, a smaller one gradually.
+		if (drained > expected) {
+			expected = (int)Math.min(drained, Integer.MAX_VALUE >> 1);
+		}
+		else {
+			expected = Math.max(segmentSize, expected - ((expected - (int)drained) >> 2));
+		}
+
+		return (read < 0 ? -1 : (int)drained);
+	}
+
+	/**
+	 * Returns the empty segments after the given segment to the factory. The
+	 * given segment must be the writer or after it.
+	 */
+	private void trim(Segment from)
+	{
+		int count = 0;
+		if (views.length < segments) {
+			views = new ByteBuffer[segments];
+		}
+		for (Segment s = from.next; s != null; s = s.next) {
+			views[count++] = s.buffer;
+			capacity -= s.buffer.capacity();
+		}
+		if (count > 0) {
+			from.next = null;
+			tail = from;
+			segments -= count;
+			factory.free(views, 0, count);
+			Arrays.fill(views, 0, count, null);
+		}
+	}
+
+	/**
+	 * Writes the data in every segment to the channel at once, repeating while
+	 * the channel accepts data.
+	 */
+	private int fill(GatheringByteChannel channel) throws IOException
+	{
+		int count = 0;
+		if (views.length < segments) {
+			views = new ByteBuffer[segments];
+		}
+		for (Segment s = head; s != writer; s = s.next) {
+			views[count++] = data(s);
+		}
+		views[count++] = data(writer);
+
+		long write, filled = 0;
+		int first = 0;
+		while (first < count && (write = channel.write(views, first, count - first)) > 0) {
+			filled += write;
+			while (first < count && !views[first].hasRemaining()) {
+				first++;
+			}
+		}
+		Arrays.fill(views, 0, count, null);
+
+		skip((int)filled);
+		return (int)filled;
+	}
+
+	/**
+	 * Returns a view of the data in the given segment.
+	 */
+	private ByteBuffer data(Segment s)
+	{
+		ByteBuffer data = s.buffer.duplicate();
+		data.flip();
+		if (s == head) {
+			data.position(offset);
+		}
+		return data;
+	}
+
+	/**
+	 * Copies the given number of bytes from the start of this stream into the
+	 * given buffer without skipping them.
+	 */
+	private void copy(ByteBuffer dst, int bytes)
+	{
+		for (Segment s = head; bytes > 0; s = s.next) {
+			ByteBuffer data = data(s);
+			data.limit(data.position() + Math.min(data.remaining(), bytes));
+			bytes -= data.remaining();
+			dst.put(data);
+		}
+	}
+
+}
@@ -0,0 +1,894 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.magnos.io.buffer.BufferFactory;
+
+
+/**
+ * A BufferStream which stores its data in a circular buffer allocated from a
+ * BufferFactory. The data starts at the read index and wraps around the end
+ * of the buffer, so skipping data only moves the read index and the data left
+ * is never compacted.
+ *
+ * The data and the free space each occupy one part of the buffer, or two parts
+ * when they wrap around the end. The views of those parts are returned by
+ * {@link #readers()} and {@link #writers()}. When a ByteWriter writes a value
+ * which doesn't fit before the wrap point the value is staged and split
+ * across the wrap point before the next operation on the stream. A reader sees
+ * all data as a single buffer, which is a view of the circular buffer unless
+ * the data wraps, in which case it's gathered into a buffer from the factory.
+ *
+ * A growable stream doubles its buffer when it's full, copying the data to the
+ * start of the new buffer. A fixed stream never grows, writing more than it
+ * has space for throws a BufferOverflowException and draining only takes what
+ * fits.
+ *
+ * A BufferStream is not thread-safe, therefore any access to it must be guarded
+ * by synchronization or locks.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class RingBufferStream implements BufferStream
+{
+
+	// The listener to flush events.
+	private final BufferStreamListener listener;
+
+	// The factory to allocate the buffer from.
+	private final BufferFactory factory;
+
+	// Whether the buffer is replaced with a larger one when it's full.
+	private final boolean growable;
+
+	// The circular buffer.
+	private ByteBuffer buffer;
+
+	// The capacity of the buffer.
+	private int capacity;
+
+	// The index of the first byte of data.
+	private int head;
+
+	// The number of bytes of data.
+	private int size;
+
+	// The byte order of the buffer.
+	private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+	// Whether the buffer has been handed to a writer and must be committed.
+	private boolean writing;
+
+	// The index the writer started at.
+	private int mark;
+
+	// The buffer a value which spans the wrap point is written to.
+	private ByteBuffer bridge;
+
+	// Whether the bridge has been handed out and must be committed.
+	private boolean bridging;
+
+	// The buffer the data was last gathered into for a reader.
+	private ByteBuffer gathered;
+
+	/**
+	 * Instantiates a new growable RingBufferStream with a buffer of the
+	 * factory's default size.
+	 *
+	 * @param listener
+	 * 		The listener which handles flush invokations.
+	 * @param factory
+	 * 		The factory that allocates the buffer.
+	 */
+	public RingBufferStream(BufferStreamListener listener, BufferFactory factory)
+	{
+		this(listener, factory, factory.getDefaultSize(), true);
+	}
+
+	/**
+	 * Instantiates a new RingBufferStream.
+	 *
+	 * @param listener
+	 * 		The listener which handles flush invokations.
+	 * @param factory
+	 * 		The factory that allocates the buffer.
+	 * @param capacity
+	 * 		The capacity of the buffer. The buffer may be larger if the factory
+	 * 		returns a larger buffer.
+	 * @param growable
+	 * 		Whether the buffer is doubled when it's full, otherwise the stream
+	 * 		never holds more than its capacity.
+	 */
+	public RingBufferStream(BufferStreamListener listener, BufferFactory factory, int capacity, boolean growable)
+	{
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+		}
+
+		this.listener = listener;
+		this.factory = factory;
+		this.growable = growable;
+		this.buffer = allocate(capacity);
+		this.capacity = buffer.capacity();
+	}
+
+	/**
+	 * Drains the channel and puts the data in this BufferStream. If the given
+	 * channel cannot be read an exception will be thrown, otherwise the number
+	 * of bytes read from the channel will be returned. The given channel is
+	 * expected to be non-blocking, and the read method on the channel must
+	 * return 0 if there is no more data to drain. If the channel is a
+	 * ScatteringByteChannel both parts of the free space are read into with a
+	 * single call. A fixed stream stops draining once it's full.
+	 *
+	 * @param channel
+	 * 		The channel to drain data from.
+	 * @return
+	 * 		The number of bytes drained from the channel.
+	 * @throws IOException
+	 * 		The channel is unreadable.
+	 */
+	public int drain(ReadableByteChannel channel) throws IOException
+	{
+		commit();
+		int read = 0, drained = 0;
+		for (;;)
+		{
+			if (size == capacity) {
+				if (!growable) {
+					break;
+				}
+				expand();
+			}
+			ByteBuffer[] views = writers();
+			if (channel instanceof ScatteringByteChannel) {
+				read = (int)((ScatteringByteChannel)channel).read(views);
+			}
+			else {
+				read = channel.read(views[0]);
+			}
+			if (read <= 0) {
+				break;
+			}
+			size += read;
+			drained += read;
+		}
+		return (read < 0 ? -1 : drained);
+	}
+
+	/**
+	 * Drains the stream and puts the data in this BufferStream. If the given
+	 * input stream cannot be read an exception will be thrown, otherwise the
+	 * number of bytes read from the channel will be returned. Since the given
+	 * stream blocks on reads first this attempts to use the available()
+	 * method of InputStream to guess the number of bytes to read into the
+	 * BufferStream. If the available method returns 0 then a blocking read will
+	 * be made for a single byte, once the read method unblocks that byte will
+	 * be added to this BufferStream. If there is no more data in the given
+	 * InputStream this method will return -1. A fixed stream only reads what
+	 * fits and returns 0 when it's full.
+	 *
+	 * @param stream
+	 * 		The InputStream to read from. If the InputStream can be read in
+	 * 		non-blocking mode an attempt will be made. If know data exists in
+	 * 		the stream but an EOF has not been reached this method will block
+	 * 		until data exists or an EOF has been given.
+	 * @return
+	 * 		The number of bytes added to this BufferStream or -1 if the
+	 * 		InputStream has reached EOF.
+	 * @throws IOException
+	 * 		The InputStream is unreadable.
+	 */
+	public int drain(InputStream stream) throws IOException
+	{
+		commit();
+		int read = fit(stream.available());
+		// Read in only the available bytes, otherwise make a blocking read
+		// for a single byte.
+		if (read > 0) {
+			pad(read);
+			for (int i = 0; i < read; i++) {
+				put((byte)stream.read());
+			}
+		}
+		else if (fit(1) == 1) {
+			read = stream.read();
+			// If the EOF has not been reached yet...
+			if (read >= 0) {
+				pad(1);
+				put((byte)read);
+				read = 1;
+			}
+		}
+		// Return the number of bytes read, or -1 for EOF.
+		return (read < 0 ? -1 : read);
+	}
+
+	/**
+	 * Drains the buffer and puts the data in this BufferStream. If the given
+	 * buffer is empty this will have no affect.
+	 *
+	 * @param writer
+	 * 		The buffer to take data from and place in this BufferStream.
+	 * @return
+	 * 		The number of bytes taken from the given buffer and placed in this
+	 * 		BufferStream. This is writer.remaining() unless this stream is
+	 * 		fixed and doesn't have the space.
+	 */
+	public int drain(ByteBuffer writer)
+	{
+		commit();
+		int write = fit(writer.remaining());
+		if (write > 0) {
+			pad(write);
+			int limit = writer.limit();
+			writer.limit(writer.position() + write);
+			write(writer);
+			writer.limit(limit);
+		}
+		return write;
+	}
+
+	/**
+	 * Drains the byte array and puts the data in this BufferStream. The data
+	 * is taken from the section of the given array described by the data's
+	 * offset in the array and the length of the section (number of bytes). If
+	 * the given length or offset exceed the bounds of the array a negative
+	 * number will be returned. If the given length exceeds the bounds of the
+	 * array but the offset exists in the array then the maximum number of bytes
+	 * will be put.
+	 *
+	 * @param data
+	 * 		The array of data to read from.
+	 * @param offset
+	 * 		The offset in the given array to start reading from.
+	 * @param length
+	 * 		The number of bytes to read.
+	 * @return
+	 * 		The number of bytes taken from the array. If no bytes could be taken
+	 * 		from the array a negative number will be returned .
+	 */
+	public int drain(byte[] data, int offset, int length)
+	{
+		commit();
+		int drained = fit(Math.min(data.length - offset, length));
+		if (drained > 0) {
+			pad(drained);
+			write(ByteBuffer.wrap(data, offset, drained));
+		}
+		else {
+			drained = -1;
+		}
+		return drained;
+	}
+
+	/**
+	 * Fills the channel by writing the data from this BufferStream to it. If
+	 * the given channel cannot be written to an exception will be thrown,
+	 * otherwise the number of bytes written to the channel will be returned.
+	 * The given channel is expected to be non-blocking, and the write method
+	 * on the channel must return 0 if data cannot currently be written to
+	 * the channel (the device could be busy). If the channel is a
+	 * GatheringByteChannel both parts of the data are written in a single
+	 * call.
+	 *
+	 * @param channel
+	 * 		The channel to fill with the data from this BufferStream.
+	 * @return
+	 * 		The number of bytes taken from this BufferStream and successfully
+	 * 		written to the given channel.
+	 * @throws IOException
+	 * 		The channel is unwritable.
+	 */
+	public int fill(WritableByteChannel channel) throws IOException
+	{
+		ByteBuffer[] views = readers();
+		int write, filled = 0;
+		if (channel instanceof GatheringByteChannel) {
+			while (filled < size && (write = (int)((GatheringByteChannel)channel).write(views)) > 0) {
+				filled += write;
+			}
+		}
+		else {
+			for (ByteBuffer view : views) {
+				for (write = 0; (write = channel.write(view)) > 0; ) {
+					filled += write;
+				}
+				// Stop if the channel is busy.
+				if (view.hasRemaining()) {
+					break;
+				}
+			}
+		}
+		skip(filled);
+		return filled;
+	}
+
+	/**
+	 * Fills the stream by writing the data from this BufferStream to it. This
+	 * method will block until all data taken from this BufferStream is written
+	 * to the given stream. The number of bytes written to the stream will be
+	 * returned, or an exception will be thrown if the stream is unwritable.
+	 *
+	 * @param stream
+	 * 		The stream to fill with all of the data in this BufferStream.
+	 * @return
+	 * 		The number of bytes written to the stream.
+	 * @throws IOException
+	 * 		The OutputStream is unwritable.
+	 */
+	public int fill(OutputStream stream) throws IOException
+	{
+		commit();
+		int filled = size;
+		for (int i = 0; i < filled; ) {
+			int index = index(head + i);
+			int length = Math.min(filled - i, capacity - index);
+			if (buffer.hasArray()) {
+				stream.write(buffer.array(), buffer.arrayOffset() + index, length);
+			}
+			else {
+				for (int k = 0; k < length; k++) {
+					stream.write(buffer.get(index + k) & 0xFF);
+				}
+			}
+			i += length;
+		}
+		skip(filled);
+		return filled;
+	}
+
+	/**
+	 * Fills the buffer and puts data from this BufferStream into it. Only the
+	 * maximum number of bytes are copied. The number of bytes copied to the
+	 * given buffer will be returned.
+	 *
+	 * @param reader
+	 * 		The buffer to write data to from this BufferStream.
+	 * @return
+	 * 		The number of bytes written to the given buffer.
+	 */
+	public int fill(ByteBuffer reader)
+	{
+		commit();
+		int read = Math.min(reader.remaining(), size);
+		if (read > 0) {
+			copy(reader, read);
+			skip(read);
+		}
+		return read;
+	}
+
+	/**
+	 * Returns the byte buffer to write to that has enough space for the given
+	 * number of bytes. If there isn't enough space before the wrap point a
+	 * staging buffer is returned, what's written to it is split across the
+	 * wrap point before the next operation on this stream.
+	 *
+	 * @param bytes
+	 * 		The maximum number of bytes that will be written to the ByteBuffer
+	 * 		before the next {@link #getWriter(int)} is invoked.
+	 * @return
+	 * 		The reference to the ByteBuffer to write to.
+	 * @throws BufferOverflowException
+	 * 		This stream is fixed and doesn't have space for the given number of
+	 * 		bytes.
+	 */
+	public ByteBuffer getWriter(int bytes)
+	{
+		commit();
+		pad(bytes);
+		int end = tail();
+		int contiguous = contiguous(end);
+		if (contiguous >= bytes) {
+			buffer.clear();
+			buffer.position(end);
+			buffer.limit(end + contiguous);
+			mark = end;
+			writing = true;
+			return buffer;
+		}
+		if (bridge == null || bridge.capacity() < bytes) {
+			if (bridge != null) {
+				factory.free(bridge);
+			}
+			bridge = allocate(bytes);
+		}
+		bridge.clear();
+		bridge.limit(bytes);
+		bridge.order(order);
+		bridging = true;
+		return bridge;
+	}
+
+	/**
+	 * Returns a read-only buffer of all data in this stream. If the data
+	 * doesn't wrap the buffer is a view of it, otherwise the data is copied
+	 * into a buffer from the factory which is returned to the factory the next
+	 * time a reader is requested or this stream is freed.
+	 *
+	 * @param bytes
+	 * 		The maximum number of bytes that will be read from the ByteBuffer
+	 * 		before the next {@link #getReader(int)} is invoked.
+	 * @return
+	 * 		The reference to the ByteBuffer to write to.
+	 */
+	public ByteBuffer getReader(int bytes)
+	{
+		commit();
+		release();
+		ByteBuffer reader;
+		if (head + size <= capacity) {
+			reader = buffer.duplicate();
+			reader.clear();
+			reader.position(head);
+			reader.limit(head + size);
+			reader = reader.slice();
+		}
+		else {
+			gathered = allocate(size);
+			copy(gathered, size);
+			gathered.flip();
+			reader = gathered;
+		}
+		return reader.asReadOnlyBuffer().order(order);
+	}
+
+	/**
+	 * Returns read-only views of the data in this stream in order. There is
+	 * one view, or two if the data wraps around the end of the buffer. Once
+	 * the data has been read it can be discarded with {@link #skip(int)}.
+	 *
+	 * @return
+	 * 		The views of the data.
+	 */
+	public ByteBuffer[] readers()
+	{
+		commit();
+		int first = Math.min(size, capacity - head);
+		ByteBuffer front = view(head, first).asReadOnlyBuffer().order(order);
+		if (first == size) {
+			return new ByteBuffer[] {front};
+		}
+		ByteBuffer back = view(0, size - first).asReadOnlyBuffer().order(order);
+		return new ByteBuffer[] {front, back};
+	}
+
+	/**
+	 * Returns views of the free space in this stream in order. There is one
+	 * view, or two if the free space wraps around the end of the buffer. Once
+	 * data has been written to the views it's added to this stream with
+	 * {@link #advance(int)}.
+	 *
+	 * @return
+	 * 		The views of the free space.
+	 */
+	public ByteBuffer[] writers()
+	{
+		commit();
+		int end = tail();
+		int first = contiguous(end);
+		ByteBuffer front = view(end, first);
+		if (first == capacity - size) {
+			return new ByteBuffer[] {front};
+		}
+		ByteBuffer back = view(0, capacity - size - first);
+		return new ByteBuffer[] {front, back};
+	}
+
+	/**
+	 * Adds the given number of bytes written to the views returned by
+	 * {@link #writers()} to the data in this stream.
+	 *
+	 * @param bytes
+	 * 		The number of bytes written.
+	 */
+	public void advance(int bytes)
+	{
+		commit();
+		if (bytes < 0 || bytes > capacity - size) {
+			throw new IllegalArgumentException("Cannot advance " + bytes + " bytes, only " + (capacity - size) + " are free");
+		}
+		size += bytes;
+	}
+
+	/**
+	 * Returns the byte order of the BufferStream.
+	 *
+	 * @return
+	 * 		The byte order of the BufferStream.
+	 */
+	public ByteOrder order()
+	{
+		return order;
+	}
+
+	/**
+	 * Sets the byte order of the BufferStream.
+	 *
+	 * @param order
+	 * 		The new byte order of the BufferStream.
+	 */
+	public void order(ByteOrder order)
+	{
+		this.order = order;
+		buffer.order(order);
+		if (bridge != null) {
+			bridge.order(order);
+		}
+	}
+
+	/**
+	 * Syncs the given read ByteBuffer with this stream. This simulates all data
+	 * read in the given ByteBuffer will be read from the stream and discarded.
+	 * This is equivalent to calling skip(reader.position()).
+	 *
+	 * @param reader
+	 * 		The ByteBuffer to synchronize with.
+	 */
+	public void sync(ByteBuffer reader)
+	{
+		skip(reader.position());
+	}
+
+	/**
+	 * Skips a given number of bytes. Skipping bytes will discard the oldest
+	 * bytes written to the BufferStream. If the number of bytes to skip exceeds
+	 * the number of bytes that exist in this BufferStream then all bytes in
+	 * this BufferStream are discarded. This only moves the read index.
+	 *
+	 * @param bytes
+	 * 		The number of bytes to skip.
+	 */
+	public void skip(int bytes)
+	{
+		commit();
+		if (bytes >= size) {
+			clear();
+		}
+		else if (bytes > 0) {
+			head = index(head + bytes);
+			size -= bytes;
+		}
+	}
+
+	/**
+	 * Discards all bytes in this BufferStream.
+	 */
+	public void clear()
+	{
+		head = 0;
+		size = 0;
+		writing = false;
+		bridging = false;
+	}
+
+	/**
+	 * Expands the capacity of the underlying buffer to double its size, the
+	 * data is copied to the start of the new buffer. This expands a fixed
+	 * stream as well.
+	 */
+	public void expand()
+	{
+		commit();
+		ByteBuffer larger = allocate(capacity << 1);
+		copy(larger, size);
+		factory.free(buffer);
+		buffer = larger;
+		capacity = buffer.capacity();
+		head = 0;
+	}
+
+	/**
+	 * Returns the number of bytes which can be written to this BufferStream
+	 * before it must be expanded to hold more.
+	 *
+	 * @return
+	 * 		The number of bytes remaining.
+	 */
+	public int remaining()
+	{
+		commit();
+		return capacity - size;
+	}
+
+	/**
+	 * Ensures the BufferStream has enough space to write the given number
+	 * of bytes to it.
+	 *
+	 * @param bytes
+	 * 		The requested number of bytes to make available.
+	 * @throws BufferOverflowException
+	 * 		This stream is fixed and doesn't have space for the given number of
+	 * 		bytes.
+	 */
+	public void pad(int bytes)
+	{
+		while (bytes > remaining()) {
+			if (!growable) {
+				throw new BufferOverflowException();
+			}
+			expand();
+		}
+	}
+
+	/**
+	 * Returns the write index of this BufferStream in its underlying
+	 * ByteBuffer.
+	 *
+	 * @return
+	 * 		The write position in bytes.
+	 */
+	public int position()
+	{
+		commit();
+		return tail();
+	}
+
+	/**
+	 * Returns the number of bytes current written to the BufferStream.
+	 *
+	 * @return
+	 * 		The position in bytes.
+	 */
+	public int size()
+	{
+		commit();
+		return size;
+	}
+
+	/**
+	 * Returns the full capacity of this BufferStream in bytes. This may
+	 * change if the buffer is expanded to hold more data.
+	 *
+	 * @return
+	 * 		The capacity in bytes.
+	 */
+	public int capacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Returns whether the buffer of this stream is doubled when it's full.
+	 *
+	 * @return
+	 * 		True if this stream grows, false if its capacity is fixed.
+	 */
+	public boolean isGrowable()
+	{
+		return growable;
+	}
+
+	/**
+	 * Completely frees the underlying ByteBuffer of this BufferStream. This
+	 * should only be called if the BufferStream is never going to be invoked
+	 * in any way ever again. If an attempt to invoke this BufferStream after
+	 * its freed is made a NullPointerException will be thrown. This method
+	 * can be invoked any number of times but only the first invokation will
+	 * actually free the BufferStream.
+	 */
+	public void free()
+	{
+		if (buffer != null) {
+			release();
+			factory.free(buffer);
+			buffer = null;
+			if (bridge != null) {
+				factory.free(bridge);
+				bridge = null;
+			}
+			writing = false;
+			bridging = false;
+		}
+	}
+
+	/**
+	 * Flushes the data in this BufferStream by notifying the listener that data
+	 * is ready to be processed. This is typically only used if the BufferStream
+	 * is manipulated explicitly and not through typical methods.
+	 */
+	public void flush()
+	{
+		listener.onBufferFlush(this);
+	}
+
+	/**
+	 * Returns whether this BufferStream contains any data.
+	 *
+	 * @return
+	 * 		True if this BufferStream has no data, otherwise false.
+	 */
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	/**
+	 * Returns whether this BufferStream contains any data.
+	 *
+	 * @return
+	 * 		True if this BufferStream has at least 1 byte, otherwise false.
+	 */
+	public boolean hasBytes()
+	{
+		return size() > 0;
+	}
+
+	/**
+	 * Returns whether this BufferStream has been freed. A freed BufferStream
+	 * should never be accessed again, if it is a NullPointerException will
+	 * be thrown.
+	 *
+	 * @return
+	 * 		True if free() has been invoked, otherwise false.
+	 */
+	public boolean isFree()
+	{
+		return (buffer == null);
+	}
+
+	/**
+	 * Allocates a cleared buffer of at least the given size from the factory.
+	 */
+	private ByteBuffer allocate(int size)
+	{
+		ByteBuffer buffer = factory.allocate(size);
+		if (buffer == null) {
+			throw new OutOfMemoryError("Cannot allocate a buffer of size " + size);
+		}
+		buffer.clear();
+		buffer.order(order);
+		return buffer;
+	}
+
+	/**
+	 * Wraps the given index around the end of the buffer.
+	 */
+	private int index(int i)
+	{
+		return (i >= capacity ? i - capacity : i);
+	}
+
+	/**
+	 * Returns the index after the last byte of data.
+	 */
+	private int tail()
+	{
+		return index(head + size);
+	}
+
+	/**
+	 * Returns the free space between the given index and the wrap point or
+	 * the read index, whichever comes first.
+	 */
+	private int contiguous(int end)
+	{
+		if (size == capacity) {
+			return 0;
+		}
+		return (end >= head ? capacity - end : head - end);
+	}
+
+	/**
+	 * Returns the given number of bytes this stream can take, which is less
+	 * than asked for if this stream is fixed and doesn't have the space.
+	 */
+	private int fit(int bytes)
+	{
+		return (growable ? bytes : Math.min(bytes, capacity - size));
+	}
+
+	/**
+	 * Returns a view of a section of the buffer.
+	 */
+	private ByteBuffer view(int index, int length)
+	{
+		ByteBuffer view = buffer.duplicate();
+		view.clear();
+		view.position(index);
+		view.limit(index + length);
+		view.order(order);
+		return view;
+	}
+
+	/**
+	 * Adds a single byte to the end of the data.
+	 */
+	private void put(byte b)
+	{
+		buffer.put(tail(), b);
+		size++;
+	}
+
+	/**
+	 * Writes the remaining data of the given buffer to the end of the data,
+	 * the space for it must already exist.
+	 */
+	private void write(ByteBuffer src)
+	{
+		int limit = src.limit();
+		while (src.hasRemaining()) {
+			int end = tail();
+			int length = Math.min(src.remaining(), contiguous(end));
+			buffer.clear();
+			buffer.position(end);
+			src.limit(src.position() + length);
+			buffer.put(src);
+			src.limit(limit);
+			size += length;
+		}
+	}
+
+	/**
+	 * Copies the given number of bytes from the start of the data into the
+	 * given buffer without skipping them.
+	 */
+	private void copy(ByteBuffer dst, int bytes)
+	{
+		int first = Math.min(bytes, capacity - head);
+		buffer.clear();
+		buffer.position(head);
+		buffer.limit(head + first);
+		dst.put(buffer);
+		if (first < bytes) {
+			buffer.clear();
+			buffer.limit(bytes - first);
+			dst.put(buffer);
+		}
+	}
+
+	/**
+	 * Adds what a writer wrote to the buffer or the bridge to the data.
+	 */
+	private void commit()
+	{
+		if (writing) {
+			writing = false;
+			size += buffer.position() - mark;
+		}
+		if (bridging) {
+			bridging = false;
+			bridge.flip();
+			write(bridge);
+		}
+	}
+
+	/**
+	 * Returns the buffer last gathered for a reader to the factory.
+	 */
+	private void release()
+	{
+		if (gathered != null) {
+			factory.free(gathered);
+			gathered = null;
+		}
+	}
+
+}
@@ -16,13 +16,20 @@
 
 package org.magnos.io.buffer;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
-
-import sun.nio.ch.DirectBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * An abstract implementation of a BufferFactory. This implementation provides
@@ -37,6 +44,42 @@ import sun.nio.ch.DirectBuffer;
  * If the implementation has an more appropriate default size it is expected
  * that this default size be set on instantiation of the factory.
  *
+ * The amount of cached memory is kept in a striped counter so concurrent
+ * allocates and frees don't all contend on a single atomic value. The maximum
+ * amount of cached memory is therefore a soft cap, concurrent frees can exceed
+ * it briefly by at most the size of the buffers being freed at that moment.
+ *
+ * When an idle time is set the factory tracks, for each capacity of buffer it
+ * caches, the fewest buffers that were cached at any moment since the last
+ * trim. Those buffers sat unused for the whole period, and the next trim
+ * evicts them. A trim also evicts from the least demanded capacities first
+ * until the cached memory is back under the maximum, so lowering the capacity
+ * of a factory takes effect on the next trim. Trims are invoked manually or
+ * by a BufferFactoryTrimmer. An implementation takes part by overriding
+ * onEvict. Buffers kept outside the base accounting (like a thread's
+ * magazine) are not tracked, an implementation which moves buffers between
+ * its cache and such a place itself records it with recordTake and recordPut.
+ *
+ * Asynchronous requests which can't be allocated wait in a queue and are
+ * served in order whenever a buffer is freed to the factory. An
+ * implementation which overrides free without invoking super.free should
+ * invoke serve itself.
+ *
+ * The direct buffers a factory creates can be aligned to a power of 2, which
+ * is required for direct I/O and helps wide vectorized access. Since buffers
+ * are created through allocateDirect every factory which creates its direct
+ * buffers one at a time, or carves them from a larger aligned buffer at
+ * offsets which are multiples of the alignment, hands out aligned buffers.
+ * Only aligned buffers are cached so a cached buffer never loses its
+ * alignment, HeapByteBuffers are never aligned.
+ *
+ * With profiling enabled a factory counts the buffers it hands out by
+ * capacity, only the kind of buffer it caches (direct buffers, unless an
+ * implementation says otherwise). The profile can be saved when the
+ * application shuts down and used to fill the factory with the same mix of
+ * buffers when it starts again, the buffers are created by several daemon
+ * threads in parallel.
+ *
  * @author Philip Diffenderfer
  *
  */
@@ -44,16 +87,58 @@ public abstract class AbstractBufferFactory implements BufferFactory
 {
 
 	// The amount of memory this factory is using for cache.
-	protected final AtomicLong usedMemory = new AtomicLong(0);
+	protected final LongAdder usedMemory = new LongAdder();
 
 	// The maximum amount of memory this factory can cache. The default maximum
 	// for a single factory is 1 megabyte (2^20 bytes).
-	protected final AtomicLong maxMemory = new AtomicLong(1 << 20);
+	protected volatile long maxMemory = 1 << 20;
 
 	// The default size of the ByteBuffers when allocated without a given size.
 	// The default value for this is 512 bytes (2^9 bytes).
 	protected int defaultSize = 1 << 9;
 
+	// The time in nanoseconds a cached buffer can go unused before a trim
+	// evicts it. When this is 0 buffers are never evicted for being idle.
+	protected volatile long idleTime = 0;
+
+	// The time of the last trim in nanoseconds.
+	private volatile long lastTrim = System.nanoTime();
+
+	// Whether the direct buffers handed out are counted by capacity.
+	protected volatile boolean profiling;
+
+	// The number of buffers handed out by capacity while profiling.
+	private final ConcurrentIntMap<Demand> demand = new ConcurrentIntMap<Demand>(0, Integer.MAX_VALUE);
+
+	// The usage of each capacity of buffer cached, tracked while idleTime > 0.
+	// Capacities are never boxed so tracking adds no garbage.
+	private final ConcurrentIntMap<Usage> usage = new ConcurrentIntMap<Usage>(0, Integer.MAX_VALUE);
+
+	// The governor of the direct memory this factory creates, or null if the
+	// direct memory isn't governed.
+	protected volatile BufferGovernor governor;
+
+	// The alignment of the address of every direct buffer created, 1 if the
+	// buffers have no required alignment.
+	protected volatile int alignment = 1;
+
+	// The buffers allocated to hold each aligned buffer, they are cleaned in
+	// place of the aligned buffer which is only a slice. An aligned buffer
+	// which is dropped instead of freed is not kept reachable by this map.
+	private final BufferMap<ByteBuffer> origins = new BufferMap<ByteBuffer>();
+
+	// The governor which reserved the memory of each direct buffer this
+	// factory allocated through one. Only these buffers give memory back to
+	// a governor when freed.
+	private final BufferMap<BufferGovernor> governed = new BufferMap<BufferGovernor>();
+
+	// The asynchronous requests waiting for memory, oldest first.
+	private final ConcurrentLinkedQueue<Request> requests = new ConcurrentLinkedQueue<Request>();
+
+	// The number of times serve was invoked while requests were being served,
+	// only one thread serves requests at a time.
+	private final AtomicInteger serving = new AtomicInteger();
+
 
 	/**
 	 * Provides the implementation with a ByteBuffer to cache if it chooses to
@@ -69,21 +154,31 @@ public abstract class AbstractBufferFactory implements BufferFactory
 	protected abstract boolean onCache(ByteBuffer buffer);
 
 	/**
-	 * Requests that the implementation allocate a ByteBuffer with a capacity
-	 * greater than or equal to the given size. If the implementation was able
-	 * to take a buffer from cache it should invoke cache.set(true).
+	 * Requests that the implementation take a cached ByteBuffer with a
+	 * capacity greater than or equal to the given size. This is invoked for
+	 * every allocation, including sizes the implementation doesn't cache.
+	 *
+	 * @param size
+	 * 		The minimum capacity of the buffer to take.
+	 * @return
+	 * 		The ByteBuffer taken from cache, or null if there was none. The
+	 * 		ByteBuffers properties (position, limit) have no required state.
+	 */
+	protected abstract ByteBuffer onTake(int size);
+
+	/**
+	 * Requests that the implementation allocate a new ByteBuffer with a
+	 * capacity greater than or equal to the given size. This is invoked when
+	 * onTake had no cached buffer to return.
 	 *
 	 * @param size
 	 * 		The minimum capacity of the buffer to allocate.
-	 * @param cache
-	 * 		The flag to set to true if the buffer was taken from cache and not
-	 * 		allocated on the spot.
 	 * @return
-	 * 		The ByteBuffer allocated. The capacity must be greater than or equal
-	 * 		to the given size, but the ByteBuffers properties (position, limit)
-	 * 		have no required state.
+	 * 		The ByteBuffer allocated, or null if there isn't enough memory. The
+	 * 		capacity must be greater than or equal to the given size, but the
+	 * 		ByteBuffers properties (position, limit) have no required state.
 	 */
-	protected abstract ByteBuffer onAllocate(int size, AtomicBoolean cache);
+	protected abstract ByteBuffer onCreate(int size);
 
 	/**
 	 * Requires the implementation to fill its cache with the maximum amount of
@@ -104,40 +199,214 @@ public abstract class AbstractBufferFactory implements BufferFactory
 	 */
 	protected abstract List<ByteBuffer> onRelease();
 
+	/**
+	 * Requests that the implementation remove up to the given number of cached
+	 * buffers with the given capacity and return them so they can be freed.
+	 * The default implementation evicts nothing, an implementation which
+	 * doesn't override this is never trimmed.
+	 *
+	 * @param capacity
+	 * 		The capacity of the buffers to remove.
+	 * @param count
+	 * 		The maximum number of buffers to remove.
+	 * @return
+	 * 		The list of ByteBuffers taken from the implementations cache.
+	 */
+	protected List<ByteBuffer> onEvict(int capacity, int count)
+	{
+		return new ArrayList<ByteBuffer>(0);
+	}
+
+	/**
+	 * Requests that the implementation take up to the given number of cached
+	 * ByteBuffers with a capacity greater than or equal to the given size.
+	 * The default implementation invokes onTake for each buffer, an
+	 * implementation which can take many buffers at once should override this.
+	 *
+	 * @param size
+	 * 		The minimum capacity of the buffers to take.
+	 * @param out
+	 * 		The array to place the buffers taken in, starting at index 0.
+	 * @param count
+	 * 		The maximum number of buffers to take.
+	 * @return
+	 * 		The number of buffers taken from cache.
+	 */
+	protected int onTake(int size, ByteBuffer[] out, int count)
+	{
+		int taken = 0;
+		ByteBuffer buffer;
+		while (taken < count && (buffer = onTake(size)) != null) {
+			out[taken++] = buffer;
+		}
+		return taken;
+	}
+
+	/**
+	 * Provides the implementation with a run of ByteBuffers which all have the
+	 * same capacity to cache. The buffers are cached in order until one can't
+	 * be cached. The default implementation invokes onCache for each buffer,
+	 * an implementation which can cache many buffers at once should override
+	 * this.
+	 *
+	 * @param buffers
+	 * 		The array of buffers to attempt to cache.
+	 * @param from
+	 * 		The index of the first buffer to cache.
+	 * @param to
+	 * 		The index after the last buffer to cache.
+	 * @return
+	 * 		The number of buffers cached, starting at from.
+	 */
+	protected int onCache(ByteBuffer[] buffers, int from, int to)
+	{
+		int cached = from;
+		while (cached < to && onCache(buffers[cached])) {
+			cached++;
+		}
+		return cached - from;
+	}
+
 
 	/**
 	 * Tries to deallocate the buffer from memory immediately. This only works
-	 * if the given buffer is a DirectBuffer.
+	 * if the given buffer is direct and owns its memory, and if the JVM allows
+	 * it (see BufferCleaner). If the memory of the buffer was reserved from
+	 * a governor it's given back to that governor, slices and buffers this
+	 * factory didn't allocate give nothing back.
 	 *
 	 * @param buffer
 	 * 		The buffer to free from memory.
 	 */
 	protected void onFree(ByteBuffer buffer)
 	{
-		if (buffer instanceof DirectBuffer) {
-			((DirectBuffer)buffer).cleaner().clean();
+		// An aligned buffer is a slice of the buffer which owns the memory,
+		// without any aligned buffers there's nothing to look up.
+		if (buffer.isDirect() && !origins.isEmpty()) {
+			ByteBuffer origin = origins.remove(buffer);
+			if (origin != null) {
+				buffer = origin;
+			}
+		}
+
+		if (buffer.isDirect() && !governed.isEmpty()) {
+			BufferGovernor g = governed.remove(buffer);
+			if (g != null) {
+				g.release(buffer.capacity());
+			}
 		}
+
+		clean(buffer);
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Deallocates the buffer from memory immediately if it's direct and owns
+	 * its memory. Slices and duplicates are left to the garbage collector.
+	 *
+	 * @param buffer
+	 * 		The buffer to clean.
+	 * @return
+	 * 		True if the buffer was cleaned, otherwise false.
 	 */
-	public ByteBuffer allocate(int size)
+	protected static boolean clean(ByteBuffer buffer)
 	{
-		AtomicBoolean cache = new AtomicBoolean(false);
+		return BufferCleaner.clean(buffer);
+	}
 
-		// Get a buffer with the required capacity.
-		ByteBuffer buffer = onAllocate(size, cache);
+	/**
+	 * Allocates a new direct buffer for the implementation. If the factory is
+	 * governed the governor decides whether the buffer fits, and may return a
+	 * HeapByteBuffer or null instead depending on its policy. If the factory
+	 * has an alignment the direct buffer returned is aligned.
+	 *
+	 * @param capacity
+	 * 		The capacity of the buffer.
+	 * @return
+	 * 		The buffer allocated, or null if there isn't enough memory.
+	 */
+	protected ByteBuffer allocateDirect(int capacity)
+	{
+		int a = alignment;
+		if (a == 1) {
+			return allocateMemory(capacity);
+		}
 
-		// Returns null if not enough memory
-		if (buffer == null) {
+		// Allocate enough to slice an aligned buffer from wherever the memory
+		// starts.
+		ByteBuffer origin = allocateMemory(capacity + a - 1);
+		if (origin == null) {
 			return null;
 		}
 
+		int start = 0;
+		if (origin.isDirect()) {
+			int offset = origin.alignmentOffset(0, a);
+			start = (offset == 0 ? 0 : a - offset);
+		}
+
+		origin.position(start);
+		origin.limit(start + capacity);
+		ByteBuffer buffer = origin.slice();
+
+		if (origin.isDirect()) {
+			origins.put(buffer, origin);
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Allocates a new direct buffer through the governor if there is one.
+	 */
+	private ByteBuffer allocateMemory(int capacity)
+	{
+		BufferGovernor g = governor;
+		if (g != null) {
+			ByteBuffer buffer = g.allocate(capacity);
+			if (buffer != null && buffer.isDirect()) {
+				governed.put(buffer, g);
+			}
+			return buffer;
+		}
+
+		try {
+			return ByteBuffer.allocateDirect(capacity);
+		}
+		catch (OutOfMemoryError e) {
+			System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", capacity);
+			return null;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public ByteBuffer allocate(int size)
+	{
+		// Try taking a buffer with the required capacity from the cache.
+		ByteBuffer buffer = onTake(size);
+
 		// If the buffer was taken from the cache, update the amount of
 		// memory this factory is using for cached buffers.
-		if (cache.get()) {
-			usedMemory.addAndGet(-buffer.capacity());
+		if (buffer != null) {
+			usedMemory.add(-buffer.capacity());
+
+			if (idleTime > 0) {
+				getUsage(buffer.capacity()).take();
+			}
+		}
+		// Otherwise allocate a new buffer.
+		else {
+			buffer = onCreate(size);
+
+			// Returns null if not enough memory
+			if (buffer == null) {
+				return null;
+			}
+		}
+
+		if (profiling) {
+			profile(buffer);
 		}
 
 		// Set the position and limit of the buffer.
@@ -147,6 +416,51 @@ public abstract class AbstractBufferFactory implements BufferFactory
 		return buffer;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int allocate(int count, int size, ByteBuffer[] out)
+	{
+		// Take as many as possible from the cache at once.
+		int allocated = onTake(size, out, count);
+
+		if (allocated > 0)
+		{
+			long memory = 0;
+			for (int i = 0; i < allocated; i++) {
+				memory += out[i].capacity();
+			}
+			usedMemory.add(-memory);
+
+			if (idleTime > 0) {
+				for (int i = 0; i < allocated; i++) {
+					getUsage(out[i].capacity()).take();
+				}
+			}
+		}
+
+		// Allocate the rest, stopping when there isn't enough memory.
+		ByteBuffer buffer;
+		while (allocated < count && (buffer = onCreate(size)) != null) {
+			out[allocated++] = buffer;
+		}
+
+		// Set the position and limit of every buffer.
+		for (int i = 0; i < allocated; i++) {
+			out[i].position(0);
+			out[i].limit(size);
+		}
+
+		if (profiling) {
+			for (int i = 0; i < allocated; i++) {
+				profile(out[i]);
+			}
+		}
+
+		return allocated;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -156,6 +470,92 @@ public abstract class AbstractBufferFactory implements BufferFactory
 		return allocate(defaultSize);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<ByteBuffer> allocateAsync(int size)
+	{
+		// Only skip the line if there is no line.
+		if (requests.isEmpty())
+		{
+			ByteBuffer buffer = allocateNow(size);
+			if (buffer != null) {
+				return CompletableFuture.completedFuture(buffer);
+			}
+		}
+
+		Request request = new Request(size);
+		requests.add(request);
+
+		// A buffer may have been freed before the request was queued.
+		serve();
+
+		return request;
+	}
+
+	/**
+	 * Allocates a buffer if it can be done without waiting for memory.
+	 */
+	private ByteBuffer allocateNow(int size)
+	{
+		BufferGovernor.setNonblocking(true);
+		try {
+			return allocate(size);
+		}
+		finally {
+			BufferGovernor.setNonblocking(false);
+		}
+	}
+
+	/**
+	 * Completes the waiting asynchronous requests in order while their buffers
+	 * can be allocated. This is invoked after every free and is cheap when no
+	 * requests are waiting.
+	 */
+	protected void serve()
+	{
+		if (requests.isEmpty() || serving.getAndIncrement() != 0) {
+			return;
+		}
+
+		int missed = 1;
+		do {
+			Request request;
+			while ((request = requests.peek()) != null)
+			{
+				// Cancelled requests are dropped.
+				if (request.isDone()) {
+					requests.poll();
+					continue;
+				}
+
+				ByteBuffer buffer = allocateNow(request.size);
+				if (buffer == null) {
+					break;
+				}
+
+				requests.poll();
+				if (!request.complete(buffer)) {
+					free(buffer);
+				}
+			}
+
+			missed = serving.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	/**
+	 * Returns the number of asynchronous requests waiting for memory.
+	 *
+	 * @return
+	 * 		The number of requests waiting.
+	 */
+	public int getWaiting()
+	{
+		return requests.size();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -165,8 +565,9 @@ public abstract class AbstractBufferFactory implements BufferFactory
 		boolean cached = false;
 
 		// If caching this buffer will go over the maximum allowable cached
-		// buffer memory then simply free the buffer and return the result.
-		if (usedMemory.get() + buffer.capacity() > maxMemory.get()) {
+		// buffer memory (or it's not aligned) then simply free the buffer and
+		// return the result.
+		if (usedMemory.sum() + buffer.capacity() > maxMemory || !isAligned(buffer)) {
 			onFree(buffer);
 		}
 		// Try caching the buffer...
@@ -174,13 +575,70 @@ public abstract class AbstractBufferFactory implements BufferFactory
 			cached = onCache(buffer);
 			// If cached update used memory.
 			if (cached) {
-				usedMemory.addAndGet(buffer.capacity());
+				usedMemory.add(buffer.capacity());
+
+				if (idleTime > 0) {
+					getUsage(buffer.capacity()).put();
+				}
 			}
 			// Else free the buffer from memory.
 			else {
 				onFree(buffer);
 			}
 		}
+		serve();
+		return cached;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int free(ByteBuffer[] buffers, int from, int to)
+	{
+		int cached = 0;
+		int i = from;
+
+		while (i < to)
+		{
+			// Find the run of buffers with the same capacity.
+			int capacity = buffers[i].capacity();
+			int end = i + 1;
+			while (end < to && buffers[end].capacity() == capacity) {
+				end++;
+			}
+
+			while (i < end)
+			{
+				// Only as many buffers as fit in the cache are offered.
+				long room = maxMemory - usedMemory.sum();
+				int fits = (int)Math.max(0, Math.min(end - i, room / capacity));
+				for (int k = 0; k < fits; k++) {
+					if (!isAligned(buffers[i + k])) {
+						fits = k;
+					}
+				}
+				int taken = (fits == 0 ? 0 : onCache(buffers, i, i + fits));
+
+				if (taken > 0) {
+					usedMemory.add((long)taken * capacity);
+
+					if (idleTime > 0) {
+						getUsage(capacity).put(taken);
+					}
+				}
+
+				cached += taken;
+				i += taken;
+
+				// The buffer that couldn't be cached is freed from memory.
+				if (i < end) {
+					onFree(buffers[i++]);
+				}
+			}
+		}
+
+		serve();
 		return cached;
 	}
 
@@ -233,7 +691,9 @@ public abstract class AbstractBufferFactory implements BufferFactory
 			memory += b.capacity();
 		}
 		// Adjust the used memory to account for removal of these buffers.
-		usedMemory.addAndGet(-memory);
+		usedMemory.add(-memory);
+		// Nothing is cached anymore.
+		resetUsage();
 		// Return the array of removed buffers.
 		return released;
 	}
@@ -250,8 +710,12 @@ public abstract class AbstractBufferFactory implements BufferFactory
 		for (ByteBuffer b : elements)
 		{
 			// If the buffer can be cached, increment the amount of cache memory
-			if (b.capacity() + usedMemory.get() <= maxMemory.get() && onCache(b)) {
-				usedMemory.addAndGet(b.capacity());
+			if (b.capacity() + usedMemory.sum() <= maxMemory && isAligned(b) && onCache(b)) {
+				usedMemory.add(b.capacity());
+
+				if (idleTime > 0) {
+					getUsage(b.capacity()).put();
+				}
 			}
 			// Else the buffer wasn't the right type, size, or the max amount of
 			// memory has been reached.
@@ -259,6 +723,7 @@ public abstract class AbstractBufferFactory implements BufferFactory
 				denied.add(b);
 			}
 		}
+		serve();
 		return denied;
 	}
 
@@ -279,7 +744,9 @@ public abstract class AbstractBufferFactory implements BufferFactory
 			onFree(b);
 		}
 		// Adjust the used memory to account for removal of these buffers.
-		usedMemory.addAndGet(-memory);
+		usedMemory.add(-memory);
+		// Nothing is cached anymore.
+		resetUsage();
 
 		// Return the amount of memory freed.
 		return memory;
@@ -292,17 +759,418 @@ public abstract class AbstractBufferFactory implements BufferFactory
 	public long fill()
 	{
 		long cached = onFill();
-		usedMemory.addAndGet(cached);
+		usedMemory.add(cached);
 		return cached;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long fill(BufferProfile profile)
+	{
+		return fill(profile, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Fills the cache with buffers in proportion to the demand in the given
+	 * profile, scaled so the buffers fit in the available memory. The buffers
+	 * are created by the given number of daemon threads in parallel, each
+	 * thread creating its share of every capacity. The calling thread waits
+	 * for them to finish.
+	 *
+	 * @param profile
+	 * 		The profile of the demand for each capacity.
+	 * @param threads
+	 * 		The number of threads which create buffers.
+	 * @return
+	 * 		The amount of memory added to the cache.
+	 */
+	public long fill(BufferProfile profile, int threads)
+	{
+		double demandMemory = profile.getDemandMemory();
+		if (demandMemory == 0) {
+			return 0;
+		}
+
+		// The number of buffers of each capacity which fit.
+		final int[] capacities = profile.getCapacities();
+		final int[] counts = new int[capacities.length];
+		double scale = getAvailable() / demandMemory;
+		for (int i = 0; i < capacities.length; i++) {
+			counts[i] = (int)Math.min(Integer.MAX_VALUE, profile.getDemand(capacities[i]) * scale);
+		}
+
+		long before = usedMemory.sum();
+
+		final int workers = Math.max(1, threads);
+		Thread[] fillers = new Thread[workers];
+
+		for (int t = 0; t < workers; t++)
+		{
+			final int worker = t;
+			fillers[t] = new Thread("BufferFactory fill " + t) {
+				public void run() {
+					for (int i = 0; i < capacities.length; i++) {
+						int count = counts[i] / workers + (worker < counts[i] % workers ? 1 : 0);
+						prewarm(capacities[i], count);
+					}
+				}
+			};
+			fillers[t].setDaemon(true);
+			fillers[t].start();
+		}
+
+		for (int t = 0; t < workers; t++) {
+			try {
+				fillers[t].join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		return usedMemory.sum() - before;
+	}
+
+	/**
+	 * Creates the given number of buffers of a capacity and caches them.
+	 */
+	private void prewarm(int capacity, int count)
+	{
+		if (count == 0) {
+			return;
+		}
+
+		ByteBuffer[] buffers = new ByteBuffer[count];
+		int created = 0;
+		ByteBuffer buffer;
+
+		// Created directly, the buffers already cached are left alone.
+		while (created < count && (buffer = onCreate(capacity)) != null) {
+			buffers[created++] = buffer;
+		}
+
+		free(buffers, 0, created);
+	}
+
+	/**
+	 * Counts the given buffer in the profile of this factory.
+	 *
+	 * @param buffer
+	 * 		The buffer handed out.
+	 */
+	protected void profile(ByteBuffer buffer)
+	{
+		if (!isProfiled(buffer)) {
+			return;
+		}
+
+		Demand d = demand.get(buffer.capacity());
+		if (d == null) {
+			d = demand.putIfAbsent(buffer.capacity(), new Demand(buffer.capacity()));
+		}
+		d.count.increment();
+	}
+
+	/**
+	 * Returns whether the given buffer is the kind of buffer this factory
+	 * caches, and therefore is counted in its profile. By default only direct
+	 * buffers are counted, a factory which caches HeapByteBuffers should
+	 * override this.
+	 *
+	 * @param buffer
+	 * 		The buffer handed out.
+	 * @return
+	 * 		True if the buffer is counted, otherwise false.
+	 */
+	protected boolean isProfiled(ByteBuffer buffer)
+	{
+		return buffer.isDirect();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public BufferProfile getProfile()
+	{
+		BufferProfile profile = new BufferProfile();
+		for (Demand d : demand.values()) {
+			profile.add(d.capacity, d.count.sum());
+		}
+		return profile;
+	}
+
+	/**
+	 * Sets whether the buffers handed out by this factory are counted by
+	 * capacity for its profile. Profiling costs an unboxed map lookup for every
+	 * allocation.
+	 *
+	 * @param profiling
+	 * 		True to count allocations, otherwise false.
+	 */
+	public void setProfiling(boolean profiling)
+	{
+		this.profiling = profiling;
+	}
+
+	/**
+	 * Returns whether the buffers handed out by this factory are counted by
+	 * capacity for its profile.
+	 *
+	 * @return
+	 * 		True if allocations are counted, otherwise false.
+	 */
+	public boolean isProfiling()
+	{
+		return profiling;
+	}
+
+	/**
+	 * Evicts every buffer which has been cached and unused since the last
+	 * trim, and then evicts buffers from the least demanded capacities until
+	 * the cached memory is no more than the maximum. Demand is the number of
+	 * buffers of a capacity taken from cache since the last trim.
+	 *
+	 * @return
+	 * 		The amount of memory freed.
+	 */
+	public long trim()
+	{
+		lastTrim = System.nanoTime();
+
+		// Snapshot the demand of each capacity and order the least demanded
+		// first.
+		List<Usage> usages = usage.values();
+		for (Usage u : usages) {
+			u.window = u.demand.sumThenReset();
+		}
+		Collections.sort(usages, new Comparator<Usage>() {
+			public int compare(Usage o1, Usage o2) {
+				return (o1.window < o2.window ? -1 : (o1.window > o2.window ? 1 : 0));
+			}
+		});
+
+		long memory = 0;
+
+		// Evict the buffers which went unused the whole time.
+		for (Usage u : usages) {
+			int idle = Math.min(u.low.get(), u.cached.get());
+			if (idle > 0) {
+				memory += evict(u, idle);
+			}
+		}
+
+		// Evict until the cached memory fits, least demanded first.
+		for (Usage u : usages) {
+			long over = usedMemory.sum() - maxMemory;
+			if (over <= 0) {
+				break;
+			}
+			memory += evict(u, (int)Math.min(Integer.MAX_VALUE, (over + u.capacity - 1) / u.capacity));
+		}
+
+		// Start the next period, whatever is cached now may be idle by the
+		// next trim.
+		for (Usage u : usages) {
+			u.low.set(u.cached.get());
+		}
+
+		return memory;
+	}
+
+	/**
+	 * Trims this factory if an idle time is set and at least that much time
+	 * has passed since the last trim.
+	 *
+	 * @param now
+	 * 		The current time in nanoseconds.
+	 * @return
+	 * 		The amount of memory freed.
+	 */
+	long trimIfIdle(long now)
+	{
+		long idle = idleTime;
+
+		return (idle > 0 && now - lastTrim >= idle ? trim() : 0);
+	}
+
+	/**
+	 * Evicts buffers of the capacity of the given usage and frees them.
+	 */
+	private long evict(Usage u, int count)
+	{
+		List<ByteBuffer> evicted = onEvict(u.capacity, count);
+		long memory = 0;
+		for (ByteBuffer b : evicted)
+		{
+			memory += b.capacity();
+			onFree(b);
+		}
+		usedMemory.add(-memory);
+		u.evict(evicted.size());
+		return memory;
+	}
+
+	/**
+	 * Records that buffers of the given capacity left the cache without being
+	 * taken through allocate, so the idle tracking of the capacity sees them
+	 * as demanded. This has no effect unless an idle time is set.
+	 *
+	 * @param capacity
+	 * 		The capacity of the buffers taken.
+	 * @param count
+	 * 		The number of buffers taken.
+	 */
+	protected void recordTake(int capacity, int count)
+	{
+		if (idleTime > 0 && count > 0) {
+			getUsage(capacity).take(count);
+		}
+	}
+
+	/**
+	 * Records that buffers of the given capacity entered the cache without
+	 * being cached through free, so the idle tracking of the capacity counts
+	 * them. This has no effect unless an idle time is set.
+	 *
+	 * @param capacity
+	 * 		The capacity of the buffers cached.
+	 * @param count
+	 * 		The number of buffers cached.
+	 */
+	protected void recordPut(int capacity, int count)
+	{
+		if (idleTime > 0 && count > 0) {
+			getUsage(capacity).put(count);
+		}
+	}
+
+	/**
+	 * Returns the usage of the given capacity, adding one if one doesn't exist.
+	 */
+	private Usage getUsage(int capacity)
+	{
+		Usage u = usage.get(capacity);
+		if (u == null) {
+			u = usage.putIfAbsent(capacity, new Usage(capacity));
+		}
+		return u;
+	}
+
+	/**
+	 * Resets the usage of every capacity after the cache has been emptied.
+	 */
+	private void resetUsage()
+	{
+		for (Usage u : usage.values())
+		{
+			u.cached.set(0);
+			u.low.set(0);
+		}
+	}
+
+	/**
+	 * Sets the time a cached buffer can go unused before a trim evicts it. If
+	 * the time is 0 buffers are never evicted for being idle. Buffers already
+	 * cached when the idle time is first set are not tracked until they are
+	 * taken and returned.
+	 *
+	 * @param time
+	 * 		The idle time.
+	 * @param unit
+	 * 		The unit of the idle time.
+	 */
+	public void setIdleTime(long time, TimeUnit unit)
+	{
+		idleTime = unit.toNanos(time);
+	}
+
+	/**
+	 * Returns the time a cached buffer can go unused before a trim evicts it.
+	 *
+	 * @param unit
+	 * 		The unit to return the idle time in.
+	 * @return
+	 * 		The idle time, or 0 if buffers are never evicted for being idle.
+	 */
+	public long getIdleTime(TimeUnit unit)
+	{
+		return unit.convert(idleTime, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets the governor of the direct memory this factory creates. The same
+	 * governor can be shared by any number of factories. This should be set
+	 * before the factory creates any buffers.
+	 *
+	 * @param governor
+	 * 		The governor, or null if the direct memory isn't governed.
+	 */
+	public void setGovernor(BufferGovernor governor)
+	{
+		this.governor = governor;
+	}
+
+	/**
+	 * Returns the governor of the direct memory this factory creates.
+	 *
+	 * @return
+	 * 		The governor, or null if the direct memory isn't governed.
+	 */
+	public BufferGovernor getGovernor()
+	{
+		return governor;
+	}
+
+	/**
+	 * Returns whether the given buffer can be cached with the alignment of
+	 * this factory. A HeapByteBuffer has no address so it's always aligned.
+	 *
+	 * @param buffer
+	 * 		The buffer to check.
+	 * @return
+	 * 		True if the buffer is aligned, otherwise false.
+	 */
+	protected boolean isAligned(ByteBuffer buffer)
+	{
+		int a = alignment;
+		return (a == 1 || !buffer.isDirect() || buffer.alignmentOffset(0, a) == 0);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setAlignment(int alignment)
+	{
+		if (alignment < 1 || (alignment & (alignment - 1)) != 0) {
+			throw new IllegalArgumentException("The alignment must be a power of 2: " + alignment);
+		}
+		this.alignment = alignment;
+
+		// The cache only holds buffers of one alignment.
+		clear();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getAlignment()
+	{
+		return alignment;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public long getSize()
 	{
-		return usedMemory.get();
+		return usedMemory.sum();
 	}
 
 	/**
@@ -311,7 +1179,7 @@ public abstract class AbstractBufferFactory implements BufferFactory
 	@Override
 	public long getCapacity()
 	{
-		return maxMemory.get();
+		return maxMemory;
 	}
 
 	/**
@@ -320,7 +1188,7 @@ public abstract class AbstractBufferFactory implements BufferFactory
 	@Override
 	public void setCapacity(long capacity)
 	{
-		maxMemory.set(capacity);
+		maxMemory = capacity;
 	}
 
 	/**
@@ -329,7 +1197,7 @@ public abstract class AbstractBufferFactory implements BufferFactory
 	@Override
 	public long getAvailable()
 	{
-		return maxMemory.get() - usedMemory.get();
+		return maxMemory - usedMemory.sum();
 	}
 
 	/**
@@ -350,4 +1218,171 @@ public abstract class AbstractBufferFactory implements BufferFactory
 		this.defaultSize = size;
 	}
 
+
+	/**
+	 * An asynchronous request for a buffer.
+	 */
+	private static class Request extends CompletableFuture<ByteBuffer>
+	{
+		// The requested size of the buffer.
+		private final int size;
+
+		public Request(int size)
+		{
+			this.size = size;
+		}
+	}
+
+	/**
+	 * A concurrent map keyed by the identity of a buffer which doesn't keep
+	 * the buffer reachable. The entry of a buffer collected by the garbage
+	 * collector is dropped the next time the map is modified.
+	 */
+	static class BufferMap<V>
+	{
+		// The values by a weak reference to their buffer.
+		private final ConcurrentHashMap<BufferKey, V> entries = new ConcurrentHashMap<BufferKey, V>();
+
+		// The keys of the buffers which have been collected.
+		private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+
+		public void put(ByteBuffer buffer, V value)
+		{
+			expunge();
+			entries.put(new BufferKey(buffer, collected), value);
+		}
+
+		public V remove(ByteBuffer buffer)
+		{
+			expunge();
+			return entries.remove(new BufferKey(buffer, null));
+		}
+
+		public boolean isEmpty()
+		{
+			return entries.isEmpty();
+		}
+
+		private void expunge()
+		{
+			Reference<? extends ByteBuffer> key;
+			while ((key = collected.poll()) != null) {
+				entries.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * A weak reference to a buffer which is equal to another key only if both
+	 * refer to the same buffer.
+	 */
+	private static class BufferKey extends WeakReference<ByteBuffer>
+	{
+		// The identity hash of the buffer, kept once the buffer is collected.
+		private final int hash;
+
+		public BufferKey(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue)
+		{
+			super(buffer, queue);
+			this.hash = System.identityHashCode(buffer);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (o == this) {
+				return true;
+			}
+			if (!(o instanceof BufferKey)) {
+				return false;
+			}
+			ByteBuffer buffer = get();
+			return (buffer != null && buffer == ((BufferKey)o).get());
+		}
+	}
+
+	/**
+	 * The number of buffers of a single capacity handed out while profiling.
+	 */
+	private static class Demand
+	{
+		// The capacity of the buffers counted.
+		private final int capacity;
+
+		// The number of buffers handed out.
+		private final LongAdder count = new LongAdder();
+
+		public Demand(int capacity)
+		{
+			this.capacity = capacity;
+		}
+	}
+
+	/**
+	 * The usage of a single capacity of cached buffer.
+	 */
+	private static class Usage
+	{
+		// The capacity of the buffers.
+		private final int capacity;
+
+		// The number of buffers of the capacity in the cache.
+		private final AtomicInteger cached = new AtomicInteger();
+
+		// The fewest buffers in the cache at once since the last trim.
+		private final AtomicInteger low = new AtomicInteger();
+
+		// The number of buffers taken from the cache since the last trim.
+		private final LongAdder demand = new LongAdder();
+
+		// The demand of the current trim.
+		private long window;
+
+		public Usage(int capacity)
+		{
+			this.capacity = capacity;
+		}
+
+		public void put()
+		{
+			cached.incrementAndGet();
+		}
+
+		public void put(int count)
+		{
+			cached.addAndGet(count);
+		}
+
+		public void take()
+		{
+			demand.increment();
+			evict(1);
+		}
+
+		public void take(int count)
+		{
+			demand.add(count);
+			evict(count);
+		}
+
+		public void evict(int count)
+		{
+			int c, n;
+			do {
+				c = cached.get();
+				// Buffers cached by a fill aren't counted, don't go below 0.
+				n = Math.max(0, c - count);
+			} while (!cached.compareAndSet(c, n));
+
+			int l;
+			while (n < (l = low.get()) && !low.compareAndSet(l, n));
+		}
+	}
+
 }
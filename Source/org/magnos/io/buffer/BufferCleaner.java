@@ -0,0 +1,183 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Deallocates the memory of direct buffers immediately instead of waiting for
+ * the garbage collector. Buffers are cleaned with sun.misc.Unsafe.invokeCleaner,
+ * which is tried on a small buffer when this class is loaded. If the JVM does
+ * not provide it buffers are not cleaned and their memory is freed by the
+ * garbage collector as usual.
+ *
+ * Only a buffer which owns its memory is cleaned, a slice or duplicate of a
+ * buffer is never cleaned since the buffer it views may still be in use.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public final class BufferCleaner
+{
+
+	// The way buffers are cleaned in this JVM, or null if they can't be.
+	private static final Strategy strategy = probe();
+
+
+	/**
+	 * Deallocates the memory of the given buffer immediately. The buffer must
+	 * never be used again once it's cleaned.
+	 *
+	 * @param buffer
+	 * 		The buffer to clean.
+	 * @return
+	 * 		True if the buffer was cleaned, false if the buffer is not direct,
+	 * 		is a slice or duplicate, or buffers can't be cleaned in this JVM.
+	 */
+	public static boolean clean(ByteBuffer buffer)
+	{
+		if (strategy == null || !buffer.isDirect()) {
+			return false;
+		}
+
+		try {
+			return strategy.clean(buffer);
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns whether direct buffers can be cleaned in this JVM.
+	 *
+	 * @return
+	 * 		True if buffers are cleaned, false if their memory is left to the
+	 * 		garbage collector.
+	 */
+	public static boolean isSupported()
+	{
+		return (strategy != null);
+	}
+
+	/**
+	 * Returns the name of the way buffers are cleaned in this JVM.
+	 *
+	 * @return
+	 * 		The name of the strategy, or "none" if buffers can't be cleaned.
+	 */
+	public static String getStrategy()
+	{
+		return (strategy == null ? "none" : strategy.name);
+	}
+
+	/**
+	 * Returns the strategy if it cleans a buffer without failing.
+	 */
+	private static Strategy probe()
+	{
+		Strategy s = UnsafeStrategy.create();
+
+		if (s != null) {
+			try {
+				if (s.clean(ByteBuffer.allocateDirect(1))) {
+					return s;
+				}
+			}
+			catch (Throwable e) {
+				// Not supported by this JVM.
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Not instantiable.
+	 */
+	private BufferCleaner()
+	{
+	}
+
+
+	/**
+	 * A way of cleaning direct buffers.
+	 */
+	private static abstract class Strategy
+	{
+		// The name of the strategy.
+		private final String name;
+
+		public Strategy(String name)
+		{
+			this.name = name;
+		}
+
+		public abstract boolean clean(ByteBuffer buffer) throws Exception;
+	}
+
+	/**
+	 * Cleans with sun.misc.Unsafe.invokeCleaner, which refuses
+	 * slices and duplicates.
+	 */
+	private static class UnsafeStrategy extends Strategy
+	{
+		private final Object unsafe;
+		private final Method invokeCleaner;
+
+		public static Strategy create()
+		{
+			try {
+				Class<?> type = Class.forName("sun.misc.Unsafe");
+				Method invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+				Field field = type.getDeclaredField("theUnsafe");
+				field.setAccessible(true);
+				return new UnsafeStrategy(field.get(null), invokeCleaner);
+			}
+			catch (Throwable e) {
+				return null;
+			}
+		}
+
+		private UnsafeStrategy(Object unsafe, Method invokeCleaner)
+		{
+			super("unsafe");
+			this.unsafe = unsafe;
+			this.invokeCleaner = invokeCleaner;
+		}
+
+		public boolean clean(ByteBuffer buffer) throws Exception
+		{
+			try {
+				invokeCleaner.invoke(unsafe, buffer);
+				return true;
+			}
+			catch (InvocationTargetException e) {
+				// A slice or duplicate.
+				if (e.getCause() instanceof IllegalArgumentException) {
+					return false;
+				}
+				throw e;
+			}
+		}
+	}
+
+}
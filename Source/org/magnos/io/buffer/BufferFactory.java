@@ -17,6 +17,7 @@
 package org.magnos.io.buffer;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 
 import org.magnos.io.Transferable;
 
@@ -54,6 +55,37 @@ public interface BufferFactory extends Transferable<ByteBuffer>
 	 */
 	public ByteBuffer allocate();
 	
+	/**
+	 * Allocates a ByteBuffer without waiting for memory. If the buffer can be
+	 * allocated now the future returned is already complete, otherwise the
+	 * request waits in line behind any earlier requests and is completed when
+	 * enough buffers are freed back to this factory. The future completes on
+	 * the thread which freed the buffer, a request can be cancelled by
+	 * cancelling its future.
+	 * 
+	 * @param size
+	 * 		The requested size of the allocated ByteBuffer.
+	 * @return
+	 * 		The future of the ByteBuffer allocated.
+	 */
+	public CompletableFuture<ByteBuffer> allocateAsync(int size);
+	
+	/**
+	 * Allocates a run of ByteBuffers of the same size at once. The buffers are
+	 * placed in the given array starting at index 0, if there isn't enough
+	 * memory for all of them fewer buffers are allocated.
+	 * 
+	 * @param count
+	 * 		The number of ByteBuffers to allocate.
+	 * @param size
+	 * 		The requested size of each allocated ByteBuffer.
+	 * @param out
+	 * 		The array to place the allocated ByteBuffers in.
+	 * @return
+	 * 		The number of ByteBuffers allocated.
+	 */
+	public int allocate(int count, int size, ByteBuffer[] out);
+	
 	/**
 	 * Performs a resize on the given ByteBuffer if necessary. If the capacity
 	 * of the given buffer is less than or equal to the requested size the limit
@@ -88,6 +120,22 @@ public interface BufferFactory extends Transferable<ByteBuffer>
 	 */
 	public boolean free(ByteBuffer buffer);
 	
+	/**
+	 * Disposes a range of ByteBuffers at once. The buffers once given to this
+	 * method should never be used again. Runs of buffers with the same 
+	 * capacity are cached together when the factory supports it.
+	 * 
+	 * @param buffers
+	 * 		The array of buffers to dispose.
+	 * @param from
+	 * 		The index of the first buffer to dispose.
+	 * @param to
+	 * 		The index after the last buffer to dispose.
+	 * @return
+	 * 		The number of buffers cached in the factory.
+	 */
+	public int free(ByteBuffer[] buffers, int from, int to);
+	
 	/**
 	 * Clears the buffer factory of all cached buffers. This should have the 
 	 * effect of setting the factory cached size to zero. The amount of memory
@@ -108,6 +156,27 @@ public interface BufferFactory extends Transferable<ByteBuffer>
 	 */
 	public long fill();
 	
+	/**
+	 * Fills the BufferFactory cache with buffers in the same mix as the given
+	 * profile, scaled to the amount of memory available for caching, and 
+	 * returns the amount of memory added to the cache (in bytes).
+	 * 
+	 * @param profile
+	 * 		The demand for each capacity of buffer.
+	 * @return
+	 * 		The amount of memory allocated to fill the factory.
+	 */
+	public long fill(BufferProfile profile);
+	
+	/**
+	 * The demand for each capacity of direct buffer this factory has handed
+	 * out. This is empty unless the factory records its demand.
+	 * 
+	 * @return
+	 * 		A new profile of the demand observed.
+	 */
+	public BufferProfile getProfile();
+	
 	/**
 	 * The amount of memory this BufferFactory is using to store cached buffers.
 	 * 
@@ -151,6 +220,29 @@ public interface BufferFactory extends Transferable<ByteBuffer>
 	 */
 	public int getDefaultSize();
 	
+	/**
+	 * Sets the alignment of the address of every direct buffer this factory
+	 * creates, and clears the buffers cached with the previous alignment. 
+	 * A buffer which isn't aligned is never cached.
+	 * 
+	 * @param alignment
+	 * 		The alignment in bytes, a power of 2. Use 4096 (the common page
+	 * 		size) for direct I/O or 64 (a cache line) for vectorized access, 1
+	 * 		for no alignment.
+	 * @throws IllegalArgumentException
+	 * 		The alignment is not a power of 2.
+	 */
+	public void setAlignment(int alignment);
+	
+	/**
+	 * The alignment of the address of every direct buffer this factory
+	 * creates.
+	 * 
+	 * @return
+	 * 		The alignment in bytes, 1 if the buffers aren't aligned.
+	 */
+	public int getAlignment();
+	
 	/**
 	 * The amount of memory available to the factory for caching buffers.
 	 * 
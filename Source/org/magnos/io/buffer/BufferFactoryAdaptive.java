@@ -0,0 +1,616 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A BufferFactory which learns its size classes from the sizes requested of
+ * it. Requested sizes between the minimum and maximum size are sampled, and
+ * once enough samples have been taken the size classes are recomputed to
+ * minimize the memory wasted by rounding each sampled request up to its class.
+ * The largest class is always the largest size sampled so no sampled request
+ * misses the cache. Requests outside of the minimum and maximum size, or
+ * larger than the largest class, are allocated on the fly as HeapByteBuffers.
+ *
+ * The classes are recomputed off the allocating thread, on the thread of the
+ * shared BufferFactoryTrimmer unless another executor is given. When the size
+ * classes change the cached buffers are migrated to the new classes, a buffer
+ * is placed in the largest class it can hold. Buffers larger than every new
+ * class are released from memory. A buffer freed to the old classes while
+ * they're replaced is migrated by the thread which freed it.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class BufferFactoryAdaptive extends AbstractBufferFactory
+{
+
+	// The default number of size classes.
+	public static final int DEFAULT_CLASS_COUNT = 8;
+
+	// The default number of samples taken before the classes are recomputed.
+	public static final int DEFAULT_SAMPLE_COUNT = 4096;
+
+	// The default number of requests for every sample taken.
+	public static final int DEFAULT_SAMPLE_RATE = 8;
+
+	// The smallest size pooled, any smaller request returns a HeapByteBuffer.
+	private final int minSize;
+
+	// The largest size pooled, any larger request returns a HeapByteBuffer.
+	private final int maxSize;
+
+	// The number of size classes computed.
+	private final int classCount;
+
+	// The mask applied to a random number to decide whether to sample.
+	private final int sampleMask;
+
+	// The most recent sampled sizes, written as a ring.
+	private final int[] samples;
+
+	// The total number of samples taken.
+	private final AtomicLong sampled = new AtomicLong();
+
+	// Whether the classes are currently being recomputed.
+	private final AtomicBoolean adapting = new AtomicBoolean();
+
+	// The current size classes and their stacks.
+	private volatile Classes classes;
+
+	// The executor the classes are recomputed on, or null for the thread of
+	// the shared trimmer.
+	private volatile Executor executor;
+
+	// Recomputes the classes on the executor.
+	private final Runnable adapter = new Runnable() {
+		public void run() {
+			try {
+				recompute();
+			}
+			finally {
+				adapting.set(false);
+			}
+		}
+	};
+
+
+	/**
+	 * Instantiates a new BufferFactoryAdaptive with the default number of
+	 * classes, samples, and sample rate.
+	 *
+	 * @param minSize
+	 * 		The smallest size pooled.
+	 * @param maxSize
+	 * 		The largest size pooled.
+	 */
+	public BufferFactoryAdaptive(int minSize, int maxSize)
+	{
+		this(minSize, maxSize, DEFAULT_CLASS_COUNT, DEFAULT_SAMPLE_COUNT, DEFAULT_SAMPLE_RATE);
+	}
+
+	/**
+	 * Instantiates a new BufferFactoryAdaptive.
+	 *
+	 * @param minSize
+	 * 		The smallest size pooled.
+	 * @param maxSize
+	 * 		The largest size pooled.
+	 * @param classCount
+	 * 		The maximum number of size classes.
+	 * @param sampleCount
+	 * 		The number of samples taken before the classes are recomputed.
+	 * @param sampleRate
+	 * 		The number of requests for every sample taken, rounded up to a power
+	 * 		of 2. A rate of 1 samples every request.
+	 */
+	public BufferFactoryAdaptive(int minSize, int maxSize, int classCount, int sampleCount, int sampleRate)
+	{
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.classCount = classCount;
+		this.sampleMask = Integer.highestOneBit(Math.max(1, sampleRate) * 2 - 1) - 1;
+		this.samples = new int[sampleCount];
+		this.classes = initialClasses();
+
+		// Default size is the middle class.
+		this.setDefaultSize(classes.sizes[classes.sizes.length >> 1]);
+	}
+
+	/**
+	 * Returns the classes used before any samples are taken, geometrically
+	 * spaced between the minimum and maximum size.
+	 */
+	private Classes initialClasses()
+	{
+		int[] sizes = new int[Math.max(1, classCount)];
+		double ratio = Math.pow((double)maxSize / minSize, 1.0 / Math.max(1, sizes.length - 1));
+
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = (int)Math.min(maxSize, Math.ceil(minSize * Math.pow(ratio, i)));
+		}
+		sizes[sizes.length - 1] = maxSize;
+
+		long[] weights = new long[sizes.length];
+		Arrays.fill(weights, 1);
+
+		return new Classes(distinct(sizes), weights);
+	}
+
+	/**
+	 * Returns the given sorted sizes without duplicates.
+	 */
+	private static int[] distinct(int[] sizes)
+	{
+		int count = 0;
+		for (int i = 0; i < sizes.length; i++) {
+			if (i == 0 || sizes[i] != sizes[i - 1]) {
+				sizes[count++] = sizes[i];
+			}
+		}
+		return Arrays.copyOf(sizes, count);
+	}
+
+	/**
+	 * Rounds a size up so sizes which differ by a small fraction are treated
+	 * as the same size. This keeps the number of distinct sizes small when
+	 * computing classes while wasting at most about 3% of each buffer.
+	 */
+	private int quantize(int size)
+	{
+		int granularity = Math.max(8, Integer.highestOneBit(size) >> 5);
+		int quantized = (size + granularity - 1) / granularity * granularity;
+		return Math.min(quantized, maxSize);
+	}
+
+	/**
+	 * Records the requested size and recomputes the classes if enough samples
+	 * have been taken since the last recompute.
+	 */
+	private void sample(int size)
+	{
+		if (sampleMask != 0 && (ThreadLocalRandom.current().nextInt() & sampleMask) != 0) {
+			return;
+		}
+
+		long index = sampled.getAndIncrement();
+		samples[(int)(index % samples.length)] = size;
+
+		if ((index + 1) % samples.length == 0 && adapting.compareAndSet(false, true)) {
+			Executor e = executor;
+			try {
+				(e == null ? BufferFactoryTrimmer.getShared() : e).execute(adapter);
+			}
+			// The executor was shut down, recompute here instead of never.
+			catch (RejectedExecutionException ex) {
+				adapter.run();
+			}
+		}
+	}
+
+	/**
+	 * Recomputes the size classes from the recent samples and migrates the
+	 * cached buffers to them on the calling thread. If the classes are already
+	 * being recomputed this has no effect.
+	 */
+	public void adapt()
+	{
+		if (!adapting.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			recompute();
+		}
+		finally {
+			adapting.set(false);
+		}
+	}
+
+	/**
+	 * Recomputes the size classes from the recent samples and migrates the
+	 * cached buffers to them. Only one thread recomputes at a time.
+	 */
+	private void recompute()
+	{
+		int count = (int)Math.min(sampled.get(), samples.length);
+		if (count == 0) {
+			return;
+		}
+
+		// Sort the quantized samples and count each distinct size.
+		int[] sorted = new int[count];
+		for (int i = 0; i < count; i++) {
+			sorted[i] = quantize(samples[i]);
+		}
+		Arrays.sort(sorted);
+
+		int[] values = new int[count];
+		long[] counts = new long[count];
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (distinct == 0 || values[distinct - 1] != sorted[i]) {
+				values[distinct++] = sorted[i];
+			}
+			counts[distinct - 1]++;
+		}
+
+		Classes previous = classes;
+		Classes computed = compute(Arrays.copyOf(values, distinct), Arrays.copyOf(counts, distinct));
+
+		classes = computed;
+
+		// Move the cached buffers to the new classes.
+		migrate(previous, computed);
+	}
+
+	/**
+	 * Computes the classes which waste the least memory serving the given
+	 * sizes, where each size has been requested the given number of times.
+	 * The last class is always the largest size.
+	 *
+	 * @param values
+	 * 		The distinct sizes requested, smallest first.
+	 * @param counts
+	 * 		The number of times each size was requested.
+	 */
+	private Classes compute(int[] values, long[] counts)
+	{
+		int m = values.length;
+		int k = Math.min(classCount, m);
+
+		// Prefix sums of the counts and of the bytes requested.
+		long[] w = new long[m + 1];
+		long[] s = new long[m + 1];
+		for (int i = 0; i < m; i++) {
+			w[i + 1] = w[i] + counts[i];
+			s[i + 1] = s[i] + counts[i] * values[i];
+		}
+
+		// waste[c][j] is the least waste serving sizes 0 through j with c + 1
+		// classes where the last class is values[j], and split[c][j] is
+		// where the last class begins.
+		long[][] waste = new long[k][m];
+		int[][] split = new int[k][m];
+
+		for (int j = 0; j < m; j++) {
+			waste[0][j] = (long)values[j] * w[j + 1] - s[j + 1];
+		}
+
+		for (int c = 1; c < k; c++) {
+			for (int j = c; j < m; j++) {
+				long best = Long.MAX_VALUE;
+				int bestSplit = c;
+				for (int i = c - 1; i < j; i++) {
+					long cost = waste[c - 1][i] + (long)values[j] * (w[j + 1] - w[i + 1]) - (s[j + 1] - s[i + 1]);
+					if (cost < best) {
+						best = cost;
+						bestSplit = i + 1;
+					}
+				}
+				waste[c][j] = best;
+				split[c][j] = bestSplit;
+			}
+		}
+
+		// Walk back through the splits to find each class and its demand.
+		int[] sizes = new int[k];
+		long[] weights = new long[k];
+		int end = m - 1;
+		for (int c = k - 1; c >= 0; c--) {
+			int start = (c == 0 ? 0 : split[c][end]);
+			sizes[c] = values[end];
+			weights[c] = w[end + 1] - w[start];
+			end = start - 1;
+		}
+
+		return new Classes(sizes, weights);
+	}
+
+	/**
+	 * Moves every buffer cached in one set of classes to another. Buffers
+	 * which are larger than every class they are moved to are freed. Any
+	 * number of threads may migrate the same classes at once, each buffer is
+	 * moved by exactly one of them.
+	 */
+	private void migrate(Classes from, Classes to)
+	{
+		ByteBuffer buffer;
+
+		for (int i = 0; i < from.stacks.length; i++) {
+			while ((buffer = from.stacks[i].pop()) != null) {
+				int index = to.indexOfCapacity(buffer.capacity());
+				if (index != -1) {
+					to.stacks[index].push(buffer);
+				}
+				else {
+					usedMemory.add(-buffer.capacity());
+					onFree(buffer);
+				}
+			}
+		}
+
+		// The classes moved to were replaced meanwhile.
+		Classes latest = classes;
+		if (latest != to) {
+			migrate(to, latest);
+		}
+	}
+
+	/**
+	 * Pushes a buffer onto a class of the given classes. If the classes were
+	 * replaced before the push could be seen the buffer (and anything else
+	 * left behind) is moved to the current classes, so a free which races
+	 * with a recompute never strands a buffer.
+	 */
+	private void push(Classes current, int index, ByteBuffer buffer)
+	{
+		current.stacks[index].push(buffer);
+
+		Classes latest = classes;
+		if (latest != current) {
+			migrate(current, latest);
+		}
+	}
+
+	/**
+	 * Sets the executor the classes are recomputed on once enough samples
+	 * have been taken. An executor which runs tasks on the calling thread
+	 * recomputes on the allocating thread.
+	 *
+	 * @param executor
+	 * 		The executor, or null for the thread of the shared trimmer.
+	 */
+	public void setExecutor(Executor executor)
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * Returns the executor the classes are recomputed on.
+	 *
+	 * @return
+	 * 		The executor, or null for the thread of the shared trimmer.
+	 */
+	public Executor getExecutor()
+	{
+		return executor;
+	}
+
+	/**
+	 * Returns the current size classes of this factory, smallest first.
+	 *
+	 * @return
+	 * 		A copy of the sizes of each class.
+	 */
+	public int[] getSizeClasses()
+	{
+		return classes.sizes.clone();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onTake(int size)
+	{
+		if (size < minSize || size > maxSize) {
+			return null;
+		}
+
+		sample(size);
+
+		// Pop the next buffer from the class.
+		Classes current = classes;
+		int index = current.indexOfSize(size);
+
+		return (index == -1 ? null : current.stacks[index].pop());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onCreate(int size)
+	{
+		try {
+			if (size >= minSize && size <= maxSize)
+			{
+				Classes current = classes;
+				int index = current.indexOfSize(size);
+
+				if (index != -1) {
+					return allocateDirect(current.sizes[index]);
+				}
+			}
+
+			// Not pooled or larger than the largest class.
+			return ByteBuffer.allocate(size);
+		}
+		catch (OutOfMemoryError e) {
+			System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", size);
+			return null;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean onCache(ByteBuffer buffer)
+	{
+		if (!buffer.isDirect()) {
+			return false;
+		}
+
+		Classes current = classes;
+		int index = current.indexOfCapacity(buffer.capacity());
+		if (index == -1) {
+			return false;
+		}
+
+		push(current, index, buffer);
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected long onFill()
+	{
+		// Each class is given a number of buffers proportional to the number
+		// of samples it served when the classes were last computed.
+
+		Classes current = classes;
+		long available = getAvailable();
+		double demandMemory = 0;
+
+		for (int i = 0; i < current.sizes.length; i++) {
+			demandMemory += (double)current.weights[i] * current.sizes[i];
+		}
+
+		long memory = 0;
+		double scale = available / demandMemory;
+
+		for (int i = 0; i < current.sizes.length; i++)
+		{
+			long count = (long)(current.weights[i] * scale);
+			for (long c = 0; c < count; c++)
+			{
+				ByteBuffer buffer = allocateDirect(current.sizes[i]);
+				if (buffer == null || !buffer.isDirect()) {
+					return memory;
+				}
+				push(current, i, buffer);
+				memory += current.sizes[i];
+			}
+		}
+
+		return memory;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected List<ByteBuffer> onRelease()
+	{
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+
+		release(classes, buffers);
+
+		return buffers;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected List<ByteBuffer> onEvict(int capacity, int count)
+	{
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+
+		Classes current = classes;
+		int index = current.indexOfCapacity(capacity);
+		if (index == -1) {
+			return buffers;
+		}
+
+		ByteBuffer buffer;
+		while (buffers.size() < count && (buffer = current.stacks[index].pop()) != null) {
+			buffers.add(buffer);
+		}
+
+		return buffers;
+	}
+
+	/**
+	 * Pops every buffer cached in the given classes and adds it to the list.
+	 */
+	private void release(Classes from, List<ByteBuffer> buffers)
+	{
+		ByteBuffer buffer;
+		for (int i = 0; i < from.stacks.length; i++) {
+			while ((buffer = from.stacks[i].pop()) != null) {
+				buffers.add(buffer);
+			}
+		}
+	}
+
+
+	/**
+	 * A set of size classes, the stacks of buffers cached in each, and the
+	 * demand for each when they were computed.
+	 */
+	private static class Classes
+	{
+		private final int[] sizes;
+		private final long[] weights;
+		private final ByteBufferStack[] stacks;
+
+		public Classes(int[] sizes, long[] weights)
+		{
+			this.sizes = sizes;
+			this.weights = weights;
+			this.stacks = new ByteBufferStack[sizes.length];
+			for (int i = 0; i < sizes.length; i++) {
+				this.stacks[i] = new ByteBufferStack();
+			}
+		}
+
+		/**
+		 * Returns the index of the smallest class which can serve the given
+		 * size, or -1 if the size is larger than every class.
+		 */
+		public int indexOfSize(int size)
+		{
+			int index = Arrays.binarySearch(sizes, size);
+			if (index < 0) {
+				index = -index - 1;
+			}
+			return (index == sizes.length ? -1 : index);
+		}
+
+		/**
+		 * Returns the index of the largest class a buffer with the given
+		 * capacity can serve, or -1 if the capacity is smaller than every
+		 * class or larger than the largest class.
+		 */
+		public int indexOfCapacity(int capacity)
+		{
+			if (capacity > sizes[sizes.length - 1]) {
+				return -1;
+			}
+			int index = Arrays.binarySearch(sizes, capacity);
+			if (index < 0) {
+				index = -index - 2;
+			}
+			return index;
+		}
+	}
+
+}
@@ -19,7 +19,9 @@ package org.magnos.io.buffer;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.magnos.util.AtomicStack;
 
 /**
  * A BufferFactory where all cached buffers have a power-of-2 size within
@@ -28,6 +30,30 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * since 2^8 is 256 and 2^14 is 16374. Any buffers smaller or larger requested
  * will be allocated on the fly as HeapByteBuffers.
  * 
+ * Optionally each thread can be given a magazine, a small stash of buffers for
+ * each size class which the thread can allocate from and free to without
+ * touching any shared state. Magazines are reloaded from and unloaded to the
+ * shared stacks (the depot) in rounds so the cost of the atomic operations is
+ * spread across many allocations. Buffers sitting in a thread's magazine are
+ * owned by that thread and are not counted in the size of this factory, the
+ * depot is updated with a single atomic operation per round so the size of
+ * the factory is always exact. With an idle time set a round reloaded or
+ * unloaded counts as that many buffers taken from or cached in the depot, so
+ * trims see the depot as it is. Runs of buffers freed together with
+ * free(ByteBuffer[], int, int) are kept as a round as well, so a batch is
+ * cached and allocated with a single atomic operation.
+ * 
+ * With a large number of threads (like virtual threads) a magazine for each
+ * thread would hold far more memory than the factory, the STRIPE pooling
+ * gives each stripe a magazine shared by the threads of that stripe instead.
+ * A shared magazine is acquired without blocking, a thread which finds its
+ * stripe's magazine in use goes to the depot.
+ * 
+ * Clearing the factory (which setAlignment does as well) returns every
+ * magazine it can reach to the depot before releasing it. The magazines of
+ * other threads, and a stripe's magazine in use at that moment, are emptied
+ * from memory by the next thread to acquire them.
+ * 
  * @author Philip Diffenderfer
  *
  */
@@ -47,8 +73,26 @@ public class BufferFactoryBinary extends AbstractBufferFactory
 	private final int minBufferSize;
 	
 	// The pool of ByteBuffers where every buffer capacity is a power
-	// of 2 between minPower and maxPower.
-	private final ByteBufferStack[] pool;
+	// of 2 between minPower and maxPower. Each stack is striped so threads
+	// freeing and allocating the same size don't contend on one stack.
+	private final ByteBufferStripedStack[] pool;
+	
+	// The rounds of buffers unloaded from magazines by size class. Each round
+	// is taken by a magazine as a whole which requires a single atomic
+	// operation opposed to one for each buffer.
+	private final AtomicStack<ByteBufferRound>[] rounds;
+	
+	// The magazine for each thread, or null if magazines are not used or are
+	// shared by stripe.
+	private final ThreadLocal<ByteBufferMagazine> magazines;
+	
+	// The magazine shared by the threads of each stripe, or null if magazines
+	// are not used or are kept for each thread.
+	private final ByteBufferMagazine[] rack;
+	
+	// The number of times this factory was cleared, a magazine loaded before
+	// the last clear holds buffers the cache no longer accounts for.
+	private final AtomicInteger generation = new AtomicInteger();
 	
 	
 	/**
@@ -65,11 +109,108 @@ public class BufferFactoryBinary extends AbstractBufferFactory
 	 */
 	public BufferFactoryBinary(int minPower, int maxPower)
 	{
-		int pools = (maxPower - minPower) + 1;
+		this(minPower, maxPower, 0);
+	}
+	
+	/**
+	 * Instantiates a new BufferFactoryBinary which gives each thread a
+	 * magazine of buffers.
+	 * 
+	 * @param minPower
+	 * 		The number that determines the smallest buffer size pooled, minimum 
+	 * 		buffer size = 2^minPower. Any request for a buffer smaller then the 
+	 * 		minimum size returns a HeapByteBuffer.
+	 * @param maxPower
+	 * 		The number that determines the largest buffer size pooled, maximum
+	 * 		buffer size = 2^maxPower. Any request for a buffer larger then the 
+	 * 		maximum size returns a HeapByteBuffer.
+	 * @param roundSize
+	 * 		The number of buffers a magazine exchanges with the shared stacks at
+	 * 		once. A thread holds at most twice this many buffers of each size.
+	 * 		If this is zero magazines are not used.
+	 */
+	public BufferFactoryBinary(int minPower, int maxPower, int roundSize)
+	{
+		this(minPower, maxPower, roundSize, ByteBufferStripedStack.getDefaultStripes());
+	}
+	
+	/**
+	 * Instantiates a new BufferFactoryBinary.
+	 * 
+	 * @param minPower
+	 * 		The number that determines the smallest buffer size pooled, minimum 
+	 * 		buffer size = 2^minPower. Any request for a buffer smaller then the 
+	 * 		minimum size returns a HeapByteBuffer.
+	 * @param maxPower
+	 * 		The number that determines the largest buffer size pooled, maximum
+	 * 		buffer size = 2^maxPower. Any request for a buffer larger then the 
+	 * 		maximum size returns a HeapByteBuffer.
+	 * @param roundSize
+	 * 		The number of buffers a magazine exchanges with the shared stacks at
+	 * 		once. A thread holds at most twice this many buffers of each size.
+	 * 		If this is zero magazines are not used.
+	 * @param stripes
+	 * 		The number of stripes each size of buffer is split into.
+	 */
+	public BufferFactoryBinary(int minPower, int maxPower, int roundSize, int stripes)
+	{
+		this(minPower, maxPower, roundSize, stripes, Pooling.THREAD);
+	}
+	
+	/**
+	 * Instantiates a new BufferFactoryBinary.
+	 * 
+	 * @param minPower
+	 * 		The number that determines the smallest buffer size pooled, minimum 
+	 * 		buffer size = 2^minPower. Any request for a buffer smaller then the 
+	 * 		minimum size returns a HeapByteBuffer.
+	 * @param maxPower
+	 * 		The number that determines the largest buffer size pooled, maximum
+	 * 		buffer size = 2^maxPower. Any request for a buffer larger then the 
+	 * 		maximum size returns a HeapByteBuffer.
+	 * @param roundSize
+	 * 		The number of buffers a magazine exchanges with the shared stacks at
+	 * 		once. A magazine holds at most twice this many buffers of each size.
+	 * 		If this is zero magazines are not used.
+	 * @param stripes
+	 * 		The number of stripes each size of buffer is split into, and the
+	 * 		number of magazines when they are shared by stripe.
+	 * @param pooling
+	 * 		Whether magazines are kept for each thread or for each stripe.
+	 */
+	public BufferFactoryBinary(int minPower, int maxPower, final int roundSize, int stripes, Pooling pooling)
+	{
+		final int pools = (maxPower - minPower) + 1;
 		
-		this.pool = new ByteBufferStack[pools];
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		AtomicStack<ByteBufferRound>[] rounds = new AtomicStack[pools];
+		
+		this.pool = new ByteBufferStripedStack[pools];
+		this.rounds = rounds;
 		for (int i = 0; i < pools; i++) {
-			this.pool[i] = new ByteBufferStack();
+			this.pool[i] = new ByteBufferStripedStack(stripes);
+			this.rounds[i] = new AtomicStack<ByteBufferRound>();
+		}
+		
+		if (roundSize > 0 && pooling == Pooling.THREAD) {
+			this.magazines = new ThreadLocal<ByteBufferMagazine>() {
+				protected ByteBufferMagazine initialValue() {
+					return new ByteBufferMagazine(pools, roundSize);
+				}
+			};
+		}
+		else {
+			this.magazines = null;
+		}
+		
+		if (roundSize > 0 && pooling == Pooling.STRIPE) {
+			this.rack = new ByteBufferMagazine[pool[0].getStripes()];
+			for (int i = 0; i < rack.length; i++) {
+				this.rack[i] = new ByteBufferMagazine(pools, roundSize);
+			}
+		}
+		else {
+			this.rack = null;
 		}
 		
 		this.minPower = minPower;
@@ -81,6 +222,23 @@ public class BufferFactoryBinary extends AbstractBufferFactory
 		this.setDefaultSize(1 << ((minPower + maxPower) >> 1));
 	}
 	
+	/**
+	 * How magazines are given to threads.
+	 */
+	public enum Pooling
+	{
+		/**
+		 * Each thread has its own magazine.
+		 */
+		THREAD,
+		
+		/**
+		 * The threads of a stripe share a magazine, so the number of magazines
+		 * doesn't grow with the number of threads.
+		 */
+		STRIPE
+	}
+	
 	/**
 	 * Determines the log<sub>2</sub> of a given integer. If the given integer is
 	 * less then or equal to 2 then 1 will be returned.
@@ -113,47 +271,373 @@ public class BufferFactoryBinary extends AbstractBufferFactory
 	}
 	
 	/**
-	 * {@inheritDoc}
+	 * Returns the index of the pool the given buffer belongs in, or -1 if the
+	 * buffer can't be pooled by this factory.
+	 * 
+	 * @param buffer
+	 * 		The buffer to find the pool of.
 	 */
-	@Override
-	protected ByteBuffer onAllocate(int size, AtomicBoolean cache) 
+	private final int indexOf(ByteBuffer buffer)
 	{
-		// If the power is to small or to large then return a HeapByteBuffer.
-		if (size < minBufferSize || size > maxBufferSize) {
-			try {
-				return ByteBuffer.allocate(size);
-			}
-			catch (OutOfMemoryError e) {
-				System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", size);
-				return null;
-			}
+		int capacity = buffer.capacity();
+		
+		// We're only pooling direct buffers whose capacity is a power of 2.
+		if (!buffer.isDirect() || !isPowerOf2(capacity)) {
+			return -1;
 		}
-
+		
 		// Compute the power of the buffer using log2
-		int power = log2(size);
+		int power = log2(capacity);
+	
+		// If the power is to small or to large then don't pool it.
+		if (power < minPower || power > maxPower) {
+			return -1;
+		}
 		
 		// Calculate the index of the pool using minPower.
-		int index = power - minPower;
+		return power - minPower;
+	}
+	
+	/**
+	 * Reloads the given size class of the magazine with a round of buffers
+	 * from the depot.
+	 * 
+	 * @param magazine
+	 * 		The magazine to reload.
+	 * @param index
+	 * 		The index of the size class to reload.
+	 * @return
+	 * 		True if any buffers were loaded into the magazine.
+	 */
+	private boolean reload(ByteBufferMagazine magazine, int index)
+	{
+		ByteBufferRound round = rounds[index].pop();
+		int count = 0;
+		
+		// A full round is available, take it as a whole. A round cached by a
+		// batch free may be larger than a magazine takes, the rest of it goes
+		// back to the depot.
+		if (round != null) {
+			count = magazine.load(index, round, magazine.getRoundSize());
+			if (!round.isEmpty()) {
+				rounds[index].push(round);
+			}
+		}
+		// Gather a round from the buffers freed individually.
+		else {
+			ByteBuffer buffer;
+			while (count < magazine.getRoundSize() && (buffer = pool[index].pop()) != null) {
+				magazine.push(index, buffer);
+				count++;
+			}
+		}
+		
+		// The buffers in the round are no longer in the depot.
+		usedMemory.add(-((long)count << (index + minPower)));
+		recordTake(1 << (index + minPower), count);
+		
+		return (count > 0);
+	}
+	
+	/**
+	 * Unloads a round of buffers from the given size class of the magazine
+	 * and returns them to the depot. If the depot doesn't have room for the
+	 * whole round the buffers are freed individually so as many as possible
+	 * are cached.
+	 * 
+	 * @param magazine
+	 * 		The magazine to unload.
+	 * @param index
+	 * 		The index of the size class to unload.
+	 * @return
+	 * 		True if any buffers were unloaded from the magazine.
+	 */
+	private boolean unload(ByteBufferMagazine magazine, int index)
+	{
+		ByteBufferRound round = magazine.unload(index);
+		if (round == null) {
+			return false;
+		}
+		
+		int count = round.size();
+		long memory = (long)count << (index + minPower);
+		
+		if (usedMemory.sum() + memory <= maxMemory) {
+			usedMemory.add(memory);
+			recordPut(1 << (index + minPower), count);
+			rounds[index].push(round);
+		}
+		else {
+			ByteBuffer buffer;
+			while ((buffer = round.pop()) != null) {
+				super.free(buffer);
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Acquires the magazine of the current thread.
+	 * 
+	 * @return
+	 * 		The magazine, or null if the magazine of the current thread's stripe
+	 * 		is in use by another thread.
+	 */
+	private ByteBufferMagazine acquire()
+	{
+		if (magazines != null) {
+			return validate(magazines.get());
+		}
+		
+		ByteBufferMagazine magazine = rack[ByteBufferStripedStack.probe() & (rack.length - 1)];
+		
+		return (magazine.tryAcquire() ? validate(magazine) : null);
+	}
+	
+	/**
+	 * Empties the given magazine if it was loaded before the last clear. Its
+	 * buffers are freed from memory since the cache no longer accounts for 
+	 * them and they may not have the current alignment.
+	 * 
+	 * @param magazine
+	 * 		The magazine acquired by the current thread.
+	 * @return
+	 * 		The magazine given.
+	 */
+	private ByteBufferMagazine validate(ByteBufferMagazine magazine)
+	{
+		int current = generation.get();
+		
+		if (magazine.getGeneration() != current) {
+			for (int i = 0; i < pool.length; i++) {
+				ByteBuffer buffer;
+				while ((buffer = magazine.pop(i)) != null) {
+					onFree(buffer);
+				}
+			}
+			magazine.setGeneration(current);
+		}
+		
+		return magazine;
+	}
+	
+	/**
+	 * Releases a magazine acquired by the current thread.
+	 * 
+	 * @param magazine
+	 * 		The magazine to release.
+	 */
+	private void release(ByteBufferMagazine magazine)
+	{
+		if (rack != null) {
+			magazine.release();
+		}
+	}
+	
+	/**
+	 * Returns every buffer in the current thread's magazine to the depot. A 
+	 * thread that allocates from this factory should invoke this before it
+	 * terminates, otherwise the buffers in its magazine are left to the
+	 * garbage collector. When magazines are shared by stripe every magazine
+	 * not in use is returned. If magazines are not used this has no effect.
+	 */
+	public void flush()
+	{
+		if (magazines != null) {
+			ByteBufferMagazine magazine = validate(magazines.get());
+			for (int i = 0; i < pool.length; i++) {
+				while (unload(magazine, i));
+			}
+		}
+		
+		if (rack != null) {
+			for (ByteBufferMagazine magazine : rack) {
+				if (magazine.tryAcquire()) {
+					validate(magazine);
+					for (int i = 0; i < pool.length; i++) {
+						while (unload(magazine, i));
+					}
+					magazine.release();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long clear()
+	{
+		// The magazines which can be reached go back to the depot to be
+		// released, the rest are emptied when next acquired.
+		if (magazines != null || rack != null) {
+			flush();
+			generation.incrementAndGet();
+		}
+		
+		return super.clear();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ByteBuffer allocate(int size)
+	{
+		// Without magazines or with a size that isn't pooled there's nothing
+		// special to do.
+		if ((magazines == null && rack == null) || size < minBufferSize || size > maxBufferSize) {
+			return super.allocate(size);
+		}
+		
+		int index = log2(size) - minPower;
+		ByteBufferMagazine magazine = acquire();
+		
+		// The stripe's magazine is in use, go to the depot.
+		if (magazine == null) {
+			return super.allocate(size);
+		}
+		
+		// Take a buffer from the magazine, reloading it from the depot if its
+		// empty.
+		ByteBuffer buffer = magazine.pop(index);
+		if (buffer == null && reload(magazine, index)) {
+			buffer = magazine.pop(index);
+		}
+		release(magazine);
+		
+		// The depot is empty as well, allocate a new buffer.
+		if (buffer == null) {
+			return super.allocate(size);
+		}
+		
+		if (profiling) {
+			profile(buffer);
+		}
+		
+		buffer.position(0);
+		buffer.limit(size);
+		
+		return buffer;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean free(ByteBuffer buffer)
+	{
+		int index;
+		
+		// Without magazines or with a buffer that can't be pooled there's 
+		// nothing special to do.
+		if ((magazines == null && rack == null) || (index = indexOf(buffer)) == -1 || !isAligned(buffer)) {
+			return super.free(buffer);
+		}
+		
+		ByteBufferMagazine magazine = acquire();
+		
+		// The stripe's magazine is in use, go to the depot.
+		if (magazine == null) {
+			return super.free(buffer);
+		}
+		
+		// Place the buffer in the magazine, unloading a round to the depot if
+		// the magazine is full.
+		if (!magazine.push(index, buffer)) {
+			unload(magazine, index);
+			magazine.push(index, buffer);
+		}
+		release(magazine);
+		serve();
+		
+		return true;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onTake(int size) 
+	{
+		// If the power is to small or to large then it's never cached.
+		if (size < minBufferSize || size > maxBufferSize) {
+			return null;
+		}
 
-		// Pop the next buffer on this stack.
+		// Pop the next buffer on the stack, using minPower to calculate the
+		// index of the pool.
+		int index = log2(size) - minPower;
 		ByteBuffer buffer = pool[index].pop();
 		
-		// If no buffer existed on the stack allocate a new one.
+		// Take one from a round if no buffers were freed individually, the
+		// rest of the round goes back as a whole.
 		if (buffer == null) {
-			try {
-				buffer = ByteBuffer.allocateDirect(1 << power);
+			ByteBufferRound round = rounds[index].pop();
+			if (round != null) {
+				buffer = round.pop();
+				if (!round.isEmpty()) {
+					rounds[index].push(round);
+				}
 			}
-			catch (OutOfMemoryError e) {
-				System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", size);
-				return null;
+		}
+		
+		return buffer;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected int onTake(int size, ByteBuffer[] out, int count) 
+	{
+		// If the power is to small or to large then it's never cached.
+		if (size < minBufferSize || size > maxBufferSize) {
+			return 0;
+		}
+		
+		int index = log2(size) - minPower;
+		int taken = 0;
+		ByteBufferRound round;
+		
+		// Whole rounds first, what's left of a round larger than needed goes
+		// back as a whole.
+		while (taken < count && (round = rounds[index].pop()) != null) {
+			taken += round.popAll(out, taken, count - taken);
+			if (!round.isEmpty()) {
+				rounds[index].push(round);
 			}
 		}
-		else {
-			cache.set(true);
+		
+		// Then the buffers freed individually.
+		ByteBuffer buffer;
+		while (taken < count && (buffer = pool[index].pop()) != null) {
+			out[taken++] = buffer;
 		}
 		
-		// Return the allocated buffer!
-		return buffer;
+		return taken;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onCreate(int size) 
+	{
+		try {
+			// If the power is to small or to large then return a HeapByteBuffer.
+			if (size < minBufferSize || size > maxBufferSize) {
+				return ByteBuffer.allocate(size);
+			}
+			// Otherwise a buffer whose capacity is the next power of 2.
+			return allocateDirect(1 << log2(size));
+		}
+		catch (OutOfMemoryError e) {
+			System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", size);
+			return null;
+		}
 	}
 
 	/**
@@ -162,28 +646,45 @@ public class BufferFactoryBinary extends AbstractBufferFactory
 	@Override
 	protected boolean onCache(ByteBuffer buffer) 
 	{
-		int capacity = buffer.capacity();
+		int index = indexOf(buffer);
 		
-		// We're only pooling direct buffers whose capacity is a power of 2.
-		if (!buffer.isDirect() || !isPowerOf2(capacity)) {
+		// The buffer is not direct, not a power of 2, or out of range.
+		if (index == -1) {
 			return false;
 		}
 		
-		// Compute the power of the buffer using log2
-		int power = log2(capacity);
+		// Place the buffer on the stack
+		pool[index].push(buffer);
+		
+		return true;
+	}
 	
-		// If the power is to small or to large then don't pool it.
-		if (power < minPower || power > maxPower) {
-			return false;
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected int onCache(ByteBuffer[] buffers, int from, int to) 
+	{
+		// The buffers in the run share a capacity, only their type may differ.
+		int index = indexOf(buffers[from]);
+		if (index == -1) {
+			return 0;
 		}
 		
-		// Calculate the index of the pool using minPower.
-		int index = power - minPower;
+		int end = from + 1;
+		while (end < to && buffers[end].isDirect()) {
+			end++;
+		}
 		
-		// Place the buffer on the stack
-		pool[index].push(buffer);
+		// A single buffer goes on the stack, more are cached as a round.
+		if (end - from == 1) {
+			pool[index].push(buffers[from]);
+		}
+		else {
+			rounds[index].push(new ByteBufferRound(buffers, from, end));
+		}
 		
-		return true;
+		return end - from;
 	}
 
 	/**
@@ -223,9 +724,9 @@ public class BufferFactoryBinary extends AbstractBufferFactory
 			// Add a stack in for each generation.
 			for (int c = 0; c < bufferCount; c++) 
 			{
-				buffer = ByteBuffer.allocateDirect(1 << p);
+				buffer = allocateDirect(1 << p);
 				// Ensure the buffer was allocated.
-				if (buffer != null) {
+				if (buffer != null && buffer.isDirect()) {
 					memory += buffer.capacity();
 					pool[index].push(buffer);	
 				}
@@ -247,6 +748,7 @@ public class BufferFactoryBinary extends AbstractBufferFactory
 	{
 		List<ByteBuffer> dump = new ArrayList<ByteBuffer>();
 		ByteBuffer buffer;
+		ByteBufferRound round;
 		
 		// For each pool of buffers...
 		for (int i = 0; i < pool.length; i++) {
@@ -254,9 +756,44 @@ public class BufferFactoryBinary extends AbstractBufferFactory
 			while ((buffer = pool[i].pop()) != null) {
 				dump.add(buffer);
 			}
+			// Pop every round unloaded from magazines and add its buffers.
+			while ((round = rounds[i].pop()) != null) {
+				while ((buffer = round.pop()) != null) {
+					dump.add(buffer);
+				}
+			}
 		}
 		
 		return dump;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected List<ByteBuffer> onEvict(int capacity, int count) 
+	{
+		List<ByteBuffer> evicted = new ArrayList<ByteBuffer>();
+		
+		if (capacity < minBufferSize || capacity > maxBufferSize || !isPowerOf2(capacity)) {
+			return evicted;
+		}
+		
+		int index = log2(capacity) - minPower;
+		ByteBuffer buffer;
+		ByteBufferRound round;
+		
+		// Buffers freed individually go first, then whole rounds.
+		while (evicted.size() < count && (buffer = pool[index].pop()) != null) {
+			evicted.add(buffer);
+		}
+		while (evicted.size() < count && (round = rounds[index].pop()) != null) {
+			while ((buffer = round.pop()) != null) {
+				evicted.add(buffer);
+			}
+		}
+		
+		return evicted;
+	}
+
 }
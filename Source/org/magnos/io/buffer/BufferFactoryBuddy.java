@@ -0,0 +1,661 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A BufferFactory which manages one or more arenas (large DirectByteBuffers)
+ * with the buddy system. Every buffer allocated is a power-of-2 block of an
+ * arena between 2^minPower and 2^maxPower bytes, and each arena is 2^maxPower
+ * bytes. When a block of the requested size isn't free a larger block is split
+ * in halves (buddies) until one is, and when a block is freed it is merged with
+ * its buddy for as long as the buddy is free as well. Unlike
+ * BufferFactoryBinary freed memory is never stuck at one size, two freed 4K
+ * blocks which are buddies will satisfy an 8K request.
+ *
+ * Resizing a buffer grows it in place when the blocks following it are free,
+ * the buffer returned is a new view of the same memory so no data is copied.
+ *
+ * The cached memory of this factory is the free memory in all of its arenas.
+ * When an arena is completely free it is released from memory if the factory
+ * is caching more than its capacity, however one free arena is always kept.
+ * Arenas handed out by release can be transfered to another BufferFactoryBuddy
+ * with the same arena size, which adopts them as its own. Only those arenas
+ * are adopted, any other buffer freed or transfered to this factory (like a
+ * block of another factory which happens to be the size of an arena) is
+ * treated as any foreign buffer and never becomes an arena.
+ *
+ * With an alignment every arena is aligned, and since a block starts at a
+ * multiple of its size the blocks are aligned to their size. Requests smaller
+ * than the alignment take a block the size of the alignment.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class BufferFactoryBuddy extends AbstractBufferFactory
+{
+
+	// The number that determines the smallest block size, 2^minPower. Any
+	// request smaller returns a HeapByteBuffer.
+	private final int minPower;
+	private final int minBufferSize;
+
+	// The number that determines the largest block size and the size of each
+	// arena, 2^maxPower. Any request larger returns a HeapByteBuffer.
+	private final int maxPower;
+	private final int maxBufferSize;
+
+	// A lock acquired whenever an arena or the allocated blocks are accessed.
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	// The arenas of this factory, oldest first.
+	private final List<Arena> arenas;
+
+	// The allocated blocks by the buffer handed out for them.
+	private final IdentityHashMap<ByteBuffer, Block> blocks;
+
+	// The arenas released by every BufferFactoryBuddy and not yet adopted.
+	private static final BufferMap<Boolean> released = new BufferMap<Boolean>();
+
+
+	/**
+	 * Instantiates a new BufferFactoryBuddy.
+	 *
+	 * @param minPower
+	 * 		The number that determines the smallest block size, 2^minPower. Any
+	 * 		request for a smaller buffer returns a HeapByteBuffer.
+	 * @param maxPower
+	 * 		The number that determines the largest block size and the size of
+	 * 		each arena, 2^maxPower. Any request for a larger buffer returns a
+	 * 		HeapByteBuffer.
+	 */
+	public BufferFactoryBuddy(int minPower, int maxPower)
+	{
+		this.minPower = minPower;
+		this.minBufferSize = 1 << minPower;
+		this.maxPower = maxPower;
+		this.maxBufferSize = 1 << maxPower;
+		this.arenas = new ArrayList<Arena>();
+		this.blocks = new IdentityHashMap<ByteBuffer, Block>();
+
+		// Default size is the buffer size halfway between min and max.
+		this.setDefaultSize(1 << ((minPower + maxPower) >> 1));
+	}
+
+	/**
+	 * Determines the log<sub>2</sub> of a given integer rounded up.
+	 *
+	 * @param n
+	 * 		The integer to find the log<sub>2</sub> of.
+	 */
+	private final int log2(int n)
+	{
+		return 32 - Integer.numberOfLeadingZeros(n - 1);
+	}
+
+	/**
+	 * Returns the power of 2 of the block for the given size. A block is only
+	 * as aligned as its size, so a size smaller than the alignment takes a
+	 * block the size of the alignment.
+	 *
+	 * @param size
+	 * 		The size to find the block of.
+	 */
+	private final int powerOf(int size)
+	{
+		return log2(Math.max(size, alignment));
+	}
+
+	/**
+	 * Creates the buffer handed out for the block at the given offset of
+	 * an arena and remembers the block. The lock must be held.
+	 *
+	 * @param arena
+	 * 		The arena of the block.
+	 * @param offset
+	 * 		The offset of the block in the arena.
+	 * @param power
+	 * 		The power of 2 of the block size.
+	 */
+	private ByteBuffer view(Arena arena, int offset, int power)
+	{
+		ByteBuffer view = arena.memory.duplicate();
+		view.limit(offset + (1 << power));
+		view.position(offset);
+
+		ByteBuffer buffer = view.slice();
+		blocks.put(buffer, new Block(arena, offset));
+
+		return buffer;
+	}
+
+	/**
+	 * Releases the given arena if its free, the factory is caching more than
+	 * its capacity, and it isn't the only free arena. The lock must be held.
+	 *
+	 * @param arena
+	 * 		The arena which became free.
+	 */
+	private void trim(Arena arena)
+	{
+		if (usedMemory.sum() <= maxMemory) {
+			return;
+		}
+
+		int free = 0;
+		for (Arena a : arenas) {
+			if (a.isFree()) {
+				free++;
+			}
+		}
+
+		if (free > 1) {
+			arenas.remove(arena);
+			usedMemory.add(-maxBufferSize);
+			onFree(arena.memory);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean free(ByteBuffer buffer)
+	{
+		if (giveBack(buffer)) {
+			serve();
+			return true;
+		}
+
+		// The buffer wasn't allocated by this factory.
+		return super.free(buffer);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int free(ByteBuffer[] buffers, int from, int to)
+	{
+		// Each buffer is freed on its own so a block always goes back to its
+		// arena, even when the cache is over its capacity.
+		int cached = 0;
+		for (int i = from; i < to; i++) {
+			if (free(buffers[i])) {
+				cached++;
+			}
+		}
+		return cached;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<ByteBuffer> transfer(List<ByteBuffer> elements)
+	{
+		// Blocks go back to their arenas, released arenas are adopted, and the
+		// rest are offered to the cache.
+		List<ByteBuffer> foreign = new ArrayList<ByteBuffer>();
+		List<ByteBuffer> denied = new ArrayList<ByteBuffer>();
+		for (ByteBuffer b : elements) {
+			if (giveBack(b)) {
+				continue;
+			}
+			if (released.remove(b) == null) {
+				foreign.add(b);
+			}
+			else if (!adopt(b)) {
+				released.put(b, Boolean.TRUE);
+				denied.add(b);
+			}
+		}
+		denied.addAll(super.transfer(foreign));
+		return denied;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<ByteBuffer> release()
+	{
+		// Only the arenas handed out here can be adopted by another factory.
+		List<ByteBuffer> arenas = super.release();
+		for (ByteBuffer b : arenas) {
+			released.put(b, Boolean.TRUE);
+		}
+		return arenas;
+	}
+
+	/**
+	 * Adopts an arena released by another factory if it's the size of an
+	 * arena of this factory and fits in the cache.
+	 *
+	 * @param memory
+	 * 		The memory of the arena.
+	 * @return
+	 * 		True if the arena was adopted, otherwise false.
+	 */
+	private boolean adopt(ByteBuffer memory)
+	{
+		if (memory.capacity() != maxBufferSize || usedMemory.sum() + maxBufferSize > maxMemory || !isAligned(memory)) {
+			return false;
+		}
+
+		writeLock.lock();
+		try {
+			arenas.add(new Arena(memory));
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		usedMemory.add(maxBufferSize);
+		recordPut(maxBufferSize, 1);
+		serve();
+
+		return true;
+	}
+
+	/**
+	 * Returns the given buffer to its arena if it's a block of this factory.
+	 * If that frees the whole arena it may be released.
+	 *
+	 * @param buffer
+	 * 		The buffer to return.
+	 * @return
+	 * 		True if the buffer was a block of this factory, otherwise false.
+	 */
+	private boolean giveBack(ByteBuffer buffer)
+	{
+		writeLock.lock();
+		try {
+			Block block = blocks.remove(buffer);
+			if (block == null) {
+				return false;
+			}
+
+			usedMemory.add(buffer.capacity());
+			block.arena.release(block.offset, log2(buffer.capacity()));
+			if (block.arena.isFree()) {
+				trim(block.arena);
+			}
+			return true;
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ByteBuffer resize(ByteBuffer old, int size)
+	{
+		int power = log2(size);
+
+		if (size > old.capacity() && power <= maxPower)
+		{
+			writeLock.lock();
+			try {
+				Block block = blocks.get(old);
+
+				// Try to merge the following buddies into the block.
+				if (block != null && block.arena.grow(block.offset, log2(old.capacity()), power))
+				{
+					blocks.remove(old);
+					usedMemory.add(old.capacity() - (1 << power));
+
+					ByteBuffer upgrade = view(block.arena, block.offset, power);
+					upgrade.limit(size);
+					upgrade.order(old.order());
+
+					return upgrade;
+				}
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+
+		return super.resize(old, size);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onTake(int size)
+	{
+		// If the size is to small or to large then it's never cached.
+		if (size < minBufferSize || size > maxBufferSize) {
+			return null;
+		}
+
+		int power = powerOf(size);
+
+		writeLock.lock();
+		try {
+			// Take a block from the oldest arena which has one.
+			for (Arena arena : arenas)
+			{
+				int offset = arena.allocate(power);
+				if (offset != -1) {
+					return view(arena, offset, power);
+				}
+			}
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onCreate(int size)
+	{
+		// If the size is to small or to large then return a HeapByteBuffer.
+		if (size < minBufferSize || size > maxBufferSize) {
+			try {
+				return ByteBuffer.allocate(size);
+			}
+			catch (OutOfMemoryError e) {
+				System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", size);
+				return null;
+			}
+		}
+
+		int power = powerOf(size);
+
+		writeLock.lock();
+		try {
+			// Another thread may have freed a block while we waited, the block
+			// taken is no longer cached.
+			for (Arena arena : arenas)
+			{
+				int offset = arena.allocate(power);
+				if (offset != -1) {
+					usedMemory.add(-(1 << power));
+					return view(arena, offset, power);
+				}
+			}
+
+			// Every arena is full, reserve another.
+			ByteBuffer memory = allocateDirect(maxBufferSize);
+			if (memory == null) {
+				return null;
+			}
+			Arena arena = new Arena(memory);
+			arenas.add(arena);
+
+			// Everything but the block returned is now cached.
+			usedMemory.add(maxBufferSize - (1 << power));
+
+			return view(arena, arena.allocate(power), power);
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean onCache(ByteBuffer buffer)
+	{
+		writeLock.lock();
+		try {
+			Block block = blocks.remove(buffer);
+
+			// A block of this factory goes back to its arena, any other buffer
+			// is never cached.
+			if (block != null) {
+				block.arena.release(block.offset, log2(buffer.capacity()));
+				return true;
+			}
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		return false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected long onFill()
+	{
+		long memory = 0;
+
+		writeLock.lock();
+		try {
+			while (getAvailable() - memory >= maxBufferSize)
+			{
+				ByteBuffer arena = allocateDirect(maxBufferSize);
+				if (arena == null || !arena.isDirect()) {
+					break;
+				}
+				arenas.add(new Arena(arena));
+				memory += maxBufferSize;
+			}
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		return memory;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected List<ByteBuffer> onRelease()
+	{
+		// Only arenas which are completely free can be released, their memory
+		// is returned as a whole.
+
+		List<ByteBuffer> released = new ArrayList<ByteBuffer>();
+
+		writeLock.lock();
+		try {
+			for (int i = arenas.size() - 1; i >= 0; i--)
+			{
+				Arena arena = arenas.get(i);
+				if (arena.isFree()) {
+					arenas.remove(i);
+					released.add(arena.memory);
+				}
+			}
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		return released;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setAlignment(int alignment)
+	{
+		if (alignment > maxBufferSize) {
+			throw new IllegalArgumentException("The alignment is larger than the largest block: " + alignment);
+		}
+		super.setAlignment(alignment);
+	}
+
+	/**
+	 * Returns the number of arenas currently reserved by this factory.
+	 *
+	 * @return
+	 * 		The number of arenas reserved.
+	 */
+	public int getArenaCount()
+	{
+		writeLock.lock();
+		try {
+			return arenas.size();
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+
+	/**
+	 * The arena and offset of an allocated block.
+	 */
+	private static class Block
+	{
+		private final Arena arena;
+		private final int offset;
+
+		public Block(Arena arena, int offset)
+		{
+			this.arena = arena;
+			this.offset = offset;
+		}
+	}
+
+	/**
+	 * An arena managed by the buddy system. For every block size there is a
+	 * set of the free blocks of that size, where each block is identified by
+	 * its offset divided by its size. Arenas are guarded by the lock of the
+	 * factory.
+	 */
+	private class Arena
+	{
+		// The memory of the arena.
+		private final ByteBuffer memory;
+
+		// The free blocks by power minus minPower.
+		private final BitSet[] free;
+
+		public Arena(ByteBuffer memory)
+		{
+			int levels = (maxPower - minPower) + 1;
+
+			this.memory = memory;
+			this.free = new BitSet[levels];
+			for (int i = 0; i < levels; i++) {
+				this.free[i] = new BitSet(1 << (maxPower - minPower - i));
+			}
+
+			// The entire arena starts as a single free block.
+			this.free[levels - 1].set(0);
+		}
+
+		/**
+		 * Returns true if the entire arena is a single free block.
+		 */
+		public boolean isFree()
+		{
+			return free[free.length - 1].get(0);
+		}
+
+		/**
+		 * Allocates a block of the given size and returns its offset, or -1 if
+		 * there isn't a free block large enough.
+		 */
+		public int allocate(int power)
+		{
+			int level = power - minPower;
+
+			for (int i = level; i < free.length; i++)
+			{
+				int index = free[i].nextSetBit(0);
+				if (index == -1) {
+					continue;
+				}
+
+				free[i].clear(index);
+				int offset = index << (i + minPower);
+
+				// Split the block, freeing the upper half each time.
+				while (i > level) {
+					i--;
+					free[i].set((offset >> (i + minPower)) + 1);
+				}
+
+				return offset;
+			}
+
+			return -1;
+		}
+
+		/**
+		 * Frees the block of the given size at the given offset, merging it
+		 * with its buddy for as long as the buddy is free.
+		 */
+		public void release(int offset, int power)
+		{
+			int level = power - minPower;
+			int index = offset >> power;
+
+			while (level < free.length - 1 && free[level].get(index ^ 1)) {
+				free[level].clear(index ^ 1);
+				index >>= 1;
+				level++;
+			}
+
+			free[level].set(index);
+		}
+
+		/**
+		 * Grows the block at the given offset from one size to another by
+		 * merging it with the buddies that follow it, if they are all free.
+		 */
+		public boolean grow(int offset, int power, int target)
+		{
+			// The block must start at a multiple of the target size.
+			if ((offset & ((1 << target) - 1)) != 0) {
+				return false;
+			}
+
+			for (int p = power; p < target; p++) {
+				if (!free[p - minPower].get((offset >> p) ^ 1)) {
+					return false;
+				}
+			}
+
+			for (int p = power; p < target; p++) {
+				free[p - minPower].clear((offset >> p) ^ 1);
+			}
+
+			return true;
+		}
+	}
+
+}
@@ -19,7 +19,6 @@ package org.magnos.io.buffer;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A BufferFactory which does not cache and uses DirectByteBuffers.
@@ -36,15 +35,18 @@ public class BufferFactoryDirect extends AbstractBufferFactory
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected ByteBuffer onAllocate(int size, AtomicBoolean cache) 
+	protected ByteBuffer onTake(int size) 
 	{
-		try {
-			return ByteBuffer.allocateDirect(size);
-		}
-		catch (OutOfMemoryError e) {
-			System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", size);
-			return null;
-		}
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onCreate(int size) 
+	{
+		return allocateDirect(size);
 	}
 
 	/**
@@ -19,7 +19,6 @@ package org.magnos.io.buffer;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A BufferFactory where the buffers allocated all have the same size.
@@ -40,8 +39,8 @@ public class BufferFactoryFixed extends AbstractBufferFactory
 	// maxSize will be returned.
 	private final int minSize;
 	
-	// The stack of buffers.
-	private final ByteBufferStack stack;
+	// The stack of buffers, runs of buffers freed together are kept together.
+	private final ByteBufferBatchStack stack;
 	
 
 	/**
@@ -58,7 +57,7 @@ public class BufferFactoryFixed extends AbstractBufferFactory
 	 */
 	public BufferFactoryFixed(int maxSize, int minSize)
 	{
-		this.stack = new ByteBufferStack();
+		this.stack = new ByteBufferBatchStack();
 		this.maxSize = maxSize;
 		this.minSize = minSize;
 	}
@@ -67,36 +66,49 @@ public class BufferFactoryFixed extends AbstractBufferFactory
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected ByteBuffer onAllocate(int size, AtomicBoolean cache) 
+	protected ByteBuffer onTake(int size) 
 	{
-		// For any size thats greater then the max or less then the minimum
-		// buffer sizes just create a HeapByteBuffer.
+		// Sizes outside of the range are never cached.
 		if (size > maxSize || size < minSize) {
-			try {
-				return ByteBuffer.allocate(size);
-			}
-			catch (OutOfMemoryError e) {
-				System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", size);
-				return null;
-			}
+			return null;
 		}
 		
-		// Pop a buffer off of the stack, or allocate a new one.
-		ByteBuffer buffer = stack.pop();
-		if (buffer == null) {
-			try {
-				buffer = ByteBuffer.allocateDirect(maxSize);
-			}
-			catch (OutOfMemoryError e) {
-				System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", size);
-				return null;
+		// Pop a buffer off of the stack.
+		return stack.pop();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected int onTake(int size, ByteBuffer[] out, int count) 
+	{
+		// Sizes outside of the range are never cached.
+		if (size > maxSize || size < minSize) {
+			return 0;
+		}
+		
+		return stack.popAll(out, 0, count);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onCreate(int size) 
+	{
+		try {
+			// For any size thats greater then the max or less then the minimum
+			// buffer sizes just create a HeapByteBuffer.
+			if (size > maxSize || size < minSize) {
+				return ByteBuffer.allocate(size);
 			}
+			return allocateDirect(maxSize);
 		}
-		// Taken from the cache!
-		else {
-			cache.set(true);
+		catch (OutOfMemoryError e) {
+			System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", size);
+			return null;
 		}
-		return buffer;
 	}
 
 	/**
@@ -116,6 +128,27 @@ public class BufferFactoryFixed extends AbstractBufferFactory
 		return true;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected int onCache(ByteBuffer[] buffers, int from, int to) 
+	{
+		// The buffers in the run share a capacity, only their type may differ.
+		if (buffers[from].capacity() != maxSize) {
+			return 0;
+		}
+		
+		int end = from;
+		while (end < to && buffers[end].isDirect()) {
+			end++;
+		}
+		
+		stack.pushAll(buffers, from, end);
+		
+		return end - from;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -124,11 +157,11 @@ public class BufferFactoryFixed extends AbstractBufferFactory
 	{
 		long memory = 0;
 		// While available memory decreases...
-		while (getAvailable() >= maxSize) 
+		while (getAvailable() - memory >= maxSize) 
 		{
-			ByteBuffer buffer = ByteBuffer.allocateDirect(maxSize);
+			ByteBuffer buffer = allocateDirect(maxSize);
 			// Ensure the buffer has actually been allocated.
-			if (buffer != null) {
+			if (buffer != null && buffer.isDirect()) {
 				stack.push(buffer);
 				memory += maxSize;
 			}
@@ -154,4 +187,18 @@ public class BufferFactoryFixed extends AbstractBufferFactory
 		return buffers;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected List<ByteBuffer> onEvict(int capacity, int count) 
+	{
+		ByteBuffer buffer;
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		while (buffers.size() < count && (buffer = stack.pop()) != null) {
+			buffers.add(buffer);
+		}
+		return buffers;
+	}
+
 }
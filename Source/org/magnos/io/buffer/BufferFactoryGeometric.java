@@ -0,0 +1,281 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A BufferFactory where cached buffers have one of four sizes for every
+ * doubling within a range, defined by powers. Between 2^p and 2^(p+1) the
+ * sizes are 2^p * 1.25, 2^p * 1.5, 2^p * 1.75, and 2^(p+1). If the range of
+ * powers are 8 and 10 this means the buffers cached will be of sizes {256,
+ * 320, 384, 448, 512, 640, 768, 896, 1024}. Compared to BufferFactoryBinary a
+ * request is rounded up by at most 25% opposed to 100%, so a 4097 byte
+ * request takes a 5120 byte buffer instead of an 8192 byte buffer. Any buffers
+ * smaller or larger requested will be allocated on the fly as
+ * HeapByteBuffers.
+ *
+ * The class of a size is computed in constant time with a few bit operations.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class BufferFactoryGeometric extends AbstractBufferFactory
+{
+
+	// The number of size classes for every doubling of size.
+	public static final int CLASSES_PER_DOUBLING = 4;
+
+	// The number that determines the smallest buffer size pooled, 2^minPower.
+	// This must be at least 2.
+	private final int minPower;
+	private final int minBufferSize;
+
+	// The number that determines the largest buffer size pooled, 2^maxPower.
+	private final int maxPower;
+	private final int maxBufferSize;
+
+	// The pool of ByteBuffers for each size class.
+	private final ByteBufferStripedStack[] pool;
+
+
+	/**
+	 * Instantiates a new BufferFactoryGeometric.
+	 *
+	 * @param minPower
+	 * 		The number that determines the smallest buffer size pooled, minimum
+	 * 		buffer size = 2^minPower. This must be at least 2. Any request for a
+	 * 		buffer smaller then the minimum size returns a HeapByteBuffer.
+	 * @param maxPower
+	 * 		The number that determines the largest buffer size pooled, maximum
+	 * 		buffer size = 2^maxPower. Any request for a buffer larger then the
+	 * 		maximum size returns a HeapByteBuffer.
+	 * @throws IllegalArgumentException
+	 * 		The minPower is less than 2 or the maxPower is less than minPower.
+	 */
+	public BufferFactoryGeometric(int minPower, int maxPower)
+	{
+		// A doubling is split in quarters of 2^(p-2) bytes.
+		if (minPower < 2) {
+			throw new IllegalArgumentException("The minimum power must be at least 2: " + minPower);
+		}
+		if (maxPower < minPower) {
+			throw new IllegalArgumentException("The maximum power is less than the minimum power: " + maxPower);
+		}
+
+		int classes = (maxPower - minPower) * CLASSES_PER_DOUBLING + 1;
+
+		this.pool = new ByteBufferStripedStack[classes];
+		for (int i = 0; i < classes; i++) {
+			this.pool[i] = new ByteBufferStripedStack();
+		}
+
+		this.minPower = minPower;
+		this.minBufferSize = 1 << minPower;
+		this.maxPower = maxPower;
+		this.maxBufferSize = 1 << maxPower;
+
+		// Default size is the buffer size halfway between min and max.
+		this.setDefaultSize(1 << ((minPower + maxPower) >> 1));
+	}
+
+	/**
+	 * Returns the index of the smallest class which can hold the given size.
+	 * The size must be between the minimum and maximum buffer size.
+	 *
+	 * @param size
+	 * 		The size to find the class of.
+	 */
+	private final int indexOf(int size)
+	{
+		if (size <= minBufferSize) {
+			return 0;
+		}
+
+		// The size is in (2^p, 2^(p+1)], each quarter of that range is a class.
+		int x = size - 1;
+		int p = 31 - Integer.numberOfLeadingZeros(x);
+		int quarter = (x - (1 << p)) >> (p - 2);
+
+		return 1 + (p - minPower) * CLASSES_PER_DOUBLING + quarter;
+	}
+
+	/**
+	 * Returns the size of the class at the given index.
+	 *
+	 * @param index
+	 * 		The index of the class.
+	 */
+	private final int sizeOf(int index)
+	{
+		if (index == 0) {
+			return minBufferSize;
+		}
+
+		int p = minPower + (index - 1) / CLASSES_PER_DOUBLING;
+		int quarter = (index - 1) % CLASSES_PER_DOUBLING;
+
+		return (1 << p) + ((quarter + 1) << (p - 2));
+	}
+
+	/**
+	 * Returns the sizes of every class of this factory, smallest first.
+	 *
+	 * @return
+	 * 		The size of each class.
+	 */
+	public int[] getSizeClasses()
+	{
+		int[] sizes = new int[pool.length];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = sizeOf(i);
+		}
+		return sizes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onTake(int size)
+	{
+		// If the size is to small or to large then it's never cached.
+		if (size < minBufferSize || size > maxBufferSize) {
+			return null;
+		}
+
+		// Pop the next buffer on the stack of its class.
+		return pool[indexOf(size)].pop();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onCreate(int size)
+	{
+		try {
+			// If the size is to small or to large then return a HeapByteBuffer.
+			if (size < minBufferSize || size > maxBufferSize) {
+				return ByteBuffer.allocate(size);
+			}
+			// Otherwise a buffer the size of its class.
+			return allocateDirect(sizeOf(indexOf(size)));
+		}
+		catch (OutOfMemoryError e) {
+			System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", size);
+			return null;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean onCache(ByteBuffer buffer)
+	{
+		int capacity = buffer.capacity();
+
+		// Only direct buffers whose capacity is exactly a class size.
+		if (!buffer.isDirect() || capacity < minBufferSize || capacity > maxBufferSize) {
+			return false;
+		}
+
+		int index = indexOf(capacity);
+		if (sizeOf(index) != capacity) {
+			return false;
+		}
+
+		pool[index].push(buffer);
+
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected long onFill()
+	{
+		// Like BufferFactoryBinary each class is given the same amount of
+		// memory, so smaller classes hold more buffers.
+
+		long memory = 0;
+		long share = getAvailable() / pool.length;
+
+		for (int i = 0; i < pool.length; i++)
+		{
+			int size = sizeOf(i);
+			long count = share / size;
+
+			for (long c = 0; c < count; c++)
+			{
+				ByteBuffer buffer = allocateDirect(size);
+				if (buffer == null || !buffer.isDirect()) {
+					return memory;
+				}
+				pool[i].push(buffer);
+				memory += size;
+			}
+		}
+
+		return memory;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected List<ByteBuffer> onRelease()
+	{
+		List<ByteBuffer> dump = new ArrayList<ByteBuffer>();
+		ByteBuffer buffer;
+
+		for (int i = 0; i < pool.length; i++) {
+			while ((buffer = pool[i].pop()) != null) {
+				dump.add(buffer);
+			}
+		}
+
+		return dump;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected List<ByteBuffer> onEvict(int capacity, int count)
+	{
+		List<ByteBuffer> evicted = new ArrayList<ByteBuffer>();
+
+		if (capacity < minBufferSize || capacity > maxBufferSize) {
+			return evicted;
+		}
+
+		int index = indexOf(capacity);
+		ByteBuffer buffer;
+
+		while (evicted.size() < count && (buffer = pool[index].pop()) != null) {
+			evicted.add(buffer);
+		}
+
+		return evicted;
+	}
+
+}
@@ -19,7 +19,6 @@ package org.magnos.io.buffer;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A BufferFactory which does not cache and uses HeapByteBuffers.
@@ -36,7 +35,16 @@ public class BufferFactoryHeap extends AbstractBufferFactory
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected ByteBuffer onAllocate(int size, AtomicBoolean cache) 
+	protected ByteBuffer onTake(int size) 
+	{
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onCreate(int size) 
 	{
 		try {
 			return ByteBuffer.allocate(size);
@@ -0,0 +1,274 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A BufferFactory with the same size classes as BufferFactoryBinary but whose
+ * cached buffers are HeapByteBuffers, so every buffer has a backing array for
+ * codecs that work on arrays. Any buffers smaller or larger requested will be
+ * allocated on the fly as HeapByteBuffers and aren't cached.
+ *
+ * The arrays can also be used directly with allocateArray and free(byte[]).
+ * An array freed is wrapped in a new ByteBuffer when it's cached, so the
+ * small wrapper is the only garbage opposed to the whole array.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class BufferFactoryHeapBinary extends AbstractBufferFactory
+{
+
+	// The number that determines the largest buffer size pooled,
+	// maximum buffer size = 2^maxPower.
+	private final int maxPower;
+	private final int maxBufferSize;
+
+	// The number that determines the smallest buffer size pooled,
+	// minimum buffer size = 2^minPower.
+	private final int minPower;
+	private final int minBufferSize;
+
+	// The pool of ByteBuffers where every buffer capacity is a power
+	// of 2 between minPower and maxPower.
+	private final ByteBufferStripedStack[] pool;
+
+
+	/**
+	 * Instantiates a new BufferFactoryHeapBinary.
+	 *
+	 * @param minPower
+	 * 		The number that determines the smallest buffer size pooled, minimum
+	 * 		buffer size = 2^minPower. Any request for a buffer smaller then the
+	 * 		minimum size isn't pooled.
+	 * @param maxPower
+	 * 		The number that determines the largest buffer size pooled, maximum
+	 * 		buffer size = 2^maxPower. Any request for a buffer larger then the
+	 * 		maximum size isn't pooled.
+	 */
+	public BufferFactoryHeapBinary(int minPower, int maxPower)
+	{
+		int pools = (maxPower - minPower) + 1;
+
+		this.pool = new ByteBufferStripedStack[pools];
+		for (int i = 0; i < pools; i++) {
+			this.pool[i] = new ByteBufferStripedStack();
+		}
+
+		this.minPower = minPower;
+		this.minBufferSize = 1 << minPower;
+		this.maxPower = maxPower;
+		this.maxBufferSize = 1 << maxPower;
+
+		// Default size is the buffer size halfway between min and max.
+		this.setDefaultSize(1 << ((minPower + maxPower) >> 1));
+	}
+
+	/**
+	 * Returns the power of the smallest power of 2 greater than or equal to
+	 * the given size.
+	 */
+	private final int log2(int n)
+	{
+		return 32 - Integer.numberOfLeadingZeros(n - 1);
+	}
+
+	/**
+	 * Returns the index of the pool the given buffer belongs in, or -1 if the
+	 * buffer can't be pooled by this factory.
+	 */
+	private final int indexOf(ByteBuffer buffer)
+	{
+		int capacity = buffer.capacity();
+
+		// Only whole arrays whose length is a power of 2.
+		if (!buffer.hasArray() || buffer.arrayOffset() != 0 || buffer.array().length != capacity) {
+			return -1;
+		}
+		if (capacity < minBufferSize || capacity > maxBufferSize || (capacity & (capacity - 1)) != 0) {
+			return -1;
+		}
+
+		return log2(capacity) - minPower;
+	}
+
+	/**
+	 * Allocates an array with a length greater than or equal to the given
+	 * size. If the size is pooled the array length is the next power of 2.
+	 *
+	 * @param size
+	 * 		The minimum length of the array.
+	 * @return
+	 * 		The array allocated, or null if there isn't enough memory.
+	 */
+	public byte[] allocateArray(int size)
+	{
+		ByteBuffer buffer = allocate(size);
+
+		return (buffer == null ? null : buffer.array());
+	}
+
+	/**
+	 * Frees an array so it may be cached.
+	 *
+	 * @param array
+	 * 		The array to free.
+	 * @return
+	 * 		True if the array was cached, otherwise false.
+	 */
+	public boolean free(byte[] array)
+	{
+		return free(ByteBuffer.wrap(array));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onTake(int size)
+	{
+		// If the power is to small or to large then it's never cached.
+		if (size < minBufferSize || size > maxBufferSize) {
+			return null;
+		}
+
+		return pool[log2(size) - minPower].pop();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onCreate(int size)
+	{
+		try {
+			// If the power is to small or to large then it's the exact size.
+			if (size < minBufferSize || size > maxBufferSize) {
+				return ByteBuffer.allocate(size);
+			}
+			// Otherwise a buffer whose capacity is the next power of 2.
+			return ByteBuffer.allocate(1 << log2(size));
+		}
+		catch (OutOfMemoryError e) {
+			System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", size);
+			return null;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean onCache(ByteBuffer buffer)
+	{
+		int index = indexOf(buffer);
+
+		// The buffer has no array, not a power of 2, or out of range.
+		if (index == -1) {
+			return false;
+		}
+
+		pool[index].push(buffer);
+
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected long onFill()
+	{
+		// Like BufferFactoryBinary each stack is given the same amount of
+		// memory, so smaller sizes hold more buffers.
+
+		long memory = 0;
+		long share = getAvailable() / pool.length;
+
+		for (int i = 0; i < pool.length; i++)
+		{
+			int size = minBufferSize << i;
+			long count = share / size;
+
+			for (long c = 0; c < count; c++)
+			{
+				try {
+					pool[i].push(ByteBuffer.allocate(size));
+				}
+				catch (OutOfMemoryError e) {
+					return memory;
+				}
+				memory += size;
+			}
+		}
+
+		return memory;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected List<ByteBuffer> onRelease()
+	{
+		List<ByteBuffer> dump = new ArrayList<ByteBuffer>();
+		ByteBuffer buffer;
+
+		for (int i = 0; i < pool.length; i++) {
+			while ((buffer = pool[i].pop()) != null) {
+				dump.add(buffer);
+			}
+		}
+
+		return dump;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean isProfiled(ByteBuffer buffer)
+	{
+		return (indexOf(buffer) != -1);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected List<ByteBuffer> onEvict(int capacity, int count)
+	{
+		List<ByteBuffer> evicted = new ArrayList<ByteBuffer>();
+
+		if (capacity < minBufferSize || capacity > maxBufferSize || (capacity & (capacity - 1)) != 0) {
+			return evicted;
+		}
+
+		int index = log2(capacity) - minPower;
+		ByteBuffer buffer;
+
+		while (evicted.size() < count && (buffer = pool[index].pop()) != null) {
+			evicted.add(buffer);
+		}
+
+		return evicted;
+	}
+
+}
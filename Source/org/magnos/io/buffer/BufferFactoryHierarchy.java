@@ -0,0 +1,285 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A BufferFactory which caches buffers locally and takes from and spills to a
+ * shared parent factory in batches. A child is meant to be owned by a single
+ * thread (like an event loop) so its cache is uncontended, while the parent
+ * is shared by every child. A child can also be the parent of other children.
+ *
+ * The local cache is kept in another factory which is used only for storage,
+ * its own capacity and accounting are ignored. It should be a stack based
+ * factory (like BufferFactoryBinary) with the same size classes as the
+ * parent. When the local cache has no buffer for a request a batch is taken
+ * from the parent. When a buffer is freed and the child is at capacity, the
+ * buffer and a batch like it are transferred to the parent. Buffers the child
+ * would otherwise free are handed to the parent, and clearing the child (when
+ * its owner shuts down) transfers every cached buffer to the parent. Buffers
+ * the parent won't take are freed by the parent, never by the child.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class BufferFactoryHierarchy extends AbstractBufferFactory
+{
+
+	// The default number of buffers taken from or spilled to the parent at once.
+	public static final int DEFAULT_BATCH_SIZE = 16;
+
+	// The factory shared by all children.
+	private final BufferFactory parent;
+
+	// The factory the local cache is kept in.
+	private final AbstractBufferFactory local;
+
+	// The number of buffers taken from or spilled to the parent at once.
+	private final int batchSize;
+
+
+	/**
+	 * Instantiates a new BufferFactoryHierarchy with the default batch size.
+	 *
+	 * @param parent
+	 * 		The factory shared by all children.
+	 * @param local
+	 * 		The factory to keep the local cache in.
+	 */
+	public BufferFactoryHierarchy(BufferFactory parent, AbstractBufferFactory local)
+	{
+		this(parent, local, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Instantiates a new BufferFactoryHierarchy.
+	 *
+	 * @param parent
+	 * 		The factory shared by all children.
+	 * @param local
+	 * 		The factory to keep the local cache in.
+	 * @param batchSize
+	 * 		The number of buffers taken from or spilled to the parent at once.
+	 */
+	public BufferFactoryHierarchy(BufferFactory parent, AbstractBufferFactory local, int batchSize)
+	{
+		this.parent = parent;
+		this.local = local;
+		this.batchSize = batchSize;
+		this.setDefaultSize(local.getDefaultSize());
+	}
+
+	/**
+	 * Caches the buffer locally, or when the child is at capacity spills it
+	 * to the parent along with a batch like it.
+	 *
+	 * @param buffer
+	 * 		The buffer to free.
+	 * @return
+	 * 		True if the buffer was cached by this factory or its parent,
+	 * 		otherwise false.
+	 */
+	@Override
+	public boolean free(ByteBuffer buffer)
+	{
+		if (usedMemory.sum() + buffer.capacity() <= maxMemory) {
+			return super.free(buffer);
+		}
+
+		// At capacity, spill the buffer and a batch like it to the parent.
+		List<ByteBuffer> spill = local.onEvict(buffer.capacity(), batchSize - 1);
+		long memory = 0;
+		for (ByteBuffer b : spill) {
+			memory += b.capacity();
+		}
+		usedMemory.add(-memory);
+		spill.add(buffer);
+
+		// The parent frees what it won't take.
+		boolean cached = true;
+		for (ByteBuffer b : parent.transfer(spill)) {
+			boolean taken = parent.free(b);
+			if (b == buffer) {
+				cached = taken;
+			}
+		}
+		serve();
+
+		return cached;
+	}
+
+	/**
+	 * Transfers every cached buffer to the parent. Any buffer the parent
+	 * denies is freed by the parent.
+	 *
+	 * @return
+	 * 		The amount of memory removed from this factory.
+	 */
+	@Override
+	public long clear()
+	{
+		List<ByteBuffer> released = release();
+		long memory = 0;
+		for (ByteBuffer b : released) {
+			memory += b.capacity();
+		}
+
+		for (ByteBuffer b : parent.transfer(released)) {
+			parent.free(b);
+		}
+
+		return memory;
+	}
+
+	/**
+	 * Hands the buffer to the parent instead of freeing it.
+	 *
+	 * @param buffer
+	 * 		The buffer no longer wanted by this factory.
+	 */
+	@Override
+	protected void onFree(ByteBuffer buffer)
+	{
+		parent.free(buffer);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onTake(int size)
+	{
+		return local.onTake(size);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected int onTake(int size, ByteBuffer[] out, int count)
+	{
+		return local.onTake(size, out, count);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onCreate(int size)
+	{
+		ByteBuffer buffer = parent.allocate(size);
+
+		// If the local cache won't take the buffer the size isn't pooled, no
+		// need for a batch.
+		if (buffer == null || !local.onCache(buffer)) {
+			return buffer;
+		}
+
+		// Take the rest of the batch that fits at once.
+		int capacity = buffer.capacity();
+		int room = (int)Math.min(batchSize - 1, Math.max(0, (maxMemory - usedMemory.sum()) / capacity));
+		if (room > 0)
+		{
+			ByteBuffer[] batch = new ByteBuffer[room];
+			int allocated = parent.allocate(room, size, batch);
+			long memory = 0;
+			for (int i = 0; i < allocated; i++) {
+				if (local.onCache(batch[i])) {
+					memory += batch[i].capacity();
+				}
+				else {
+					parent.free(batch[i]);
+				}
+			}
+			usedMemory.add(memory);
+		}
+
+		return local.onTake(size);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean onCache(ByteBuffer buffer)
+	{
+		return local.onCache(buffer);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected int onCache(ByteBuffer[] buffers, int from, int to)
+	{
+		return local.onCache(buffers, from, to);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected long onFill()
+	{
+		// A child is filled from its parent on demand.
+		return 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected List<ByteBuffer> onRelease()
+	{
+		return local.onRelease();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected List<ByteBuffer> onEvict(int capacity, int count)
+	{
+		return local.onEvict(capacity, count);
+	}
+
+	/**
+	 * Returns the factory shared by all children.
+	 *
+	 * @return
+	 * 		The reference to the parent factory.
+	 */
+	public BufferFactory getParent()
+	{
+		return parent;
+	}
+
+	/**
+	 * Returns the number of buffers taken from or spilled to the parent at
+	 * once.
+	 *
+	 * @return
+	 * 		The batch size.
+	 */
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+}
@@ -20,17 +20,23 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 
  * Works best when application only requests a known subset of buffer sizes
  * opposed to a crazy combination of sizes.
  * 
+ * The factory records how many times each size has been requested, and when
+ * the factory is filled the available memory is distributed across the sizes
+ * in proportion to their demand. This way the first burst of requests after
+ * a fill are served from cache.
+ * 
+ * The stacks are kept in a lock-free map keyed by the size itself, so finding
+ * the stack of a size never locks or boxes the size, and a stack added by two
+ * threads at once is only ever added once.
+ * 
  * @author Philip Diffenderfer
  *
  */
@@ -43,12 +49,8 @@ public class BufferFactoryMap extends AbstractBufferFactory
 	// The maximum allowable size to cache on the map.
 	private final int maxSize;
 	
-	// A lock acquired when stacks are being added to the map, and when the map
-	// is being traversed and you want to avoid concurrent modification (adds).
-	private final Object writeLock = new Object(); 
-	
 	// The map of stacks by the capacity of the buffers they hold.
-	private final HashMap<Integer, ByteBufferStack> map;
+	private final ConcurrentIntMap<SizeStack> map;
 	
 	
 	/**
@@ -70,7 +72,7 @@ public class BufferFactoryMap extends AbstractBufferFactory
 	 */
 	public BufferFactoryMap(int maxSize, int minSize) 
 	{
-		this.map = new HashMap<Integer, ByteBufferStack>();
+		this.map = new ConcurrentIntMap<SizeStack>(minSize, maxSize);
 		this.maxSize = maxSize;
 		this.minSize = minSize;
 	}
@@ -79,30 +81,45 @@ public class BufferFactoryMap extends AbstractBufferFactory
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected ByteBuffer onAllocate(int size, AtomicBoolean cache) 
+	protected ByteBuffer onTake(int size) 
 	{
 		if (size < minSize || size > maxSize) {
-			return ByteBuffer.allocate(size);
+			return null;
 		}
 		
-		ByteBuffer buffer = null;
-		ByteBufferStack stack = map.get(size);
-		if (stack != null) {
-			buffer = stack.pop();
-		}
-		if (buffer == null) {
-			try {
-				buffer = ByteBuffer.allocateDirect(size);
-			}
-			catch (OutOfMemoryError e) {
-				System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", size);
-				return null;
-			}
+		SizeStack stack = getStack(size);
+		stack.demand.increment();
+		
+		return stack.pop();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected int onTake(int size, ByteBuffer[] out, int count) 
+	{
+		if (size < minSize || size > maxSize) {
+			return 0;
 		}
-		else {
-			cache.set(true);
+		
+		SizeStack stack = getStack(size);
+		stack.demand.add(count);
+		
+		return stack.popAll(out, 0, count);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onCreate(int size) 
+	{
+		if (size < minSize || size > maxSize) {
+			return ByteBuffer.allocate(size);
 		}
-		return buffer;
+		
+		return allocateDirect(size);
 	}
 	
 	/**
@@ -117,16 +134,65 @@ public class BufferFactoryMap extends AbstractBufferFactory
 			return false;
 		}
 		
-		ByteBufferStack stack = map.get(size);
+		getStack(size).push(buffer);
+		return true;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected int onCache(ByteBuffer[] buffers, int from, int to) 
+	{
+		// The buffers in the run share a capacity, only their type may differ.
+		int size = buffers[from].capacity();
+		
+		if (size < minSize || size > maxSize) {
+			return 0;
+		}
+		
+		int end = from;
+		while (end < to && buffers[end].isDirect()) {
+			end++;
+		}
+		
+		getStack(size).pushAll(buffers, from, end);
+		
+		return end - from;
+	}
+	
+	/**
+	 * Returns the stack for buffers of the given size, adding one to the map
+	 * if one doesn't exist yet.
+	 * 
+	 * @param size
+	 * 		The capacity of the buffers in the stack.
+	 * @return
+	 * 		The stack of buffers with the given capacity.
+	 */
+	private SizeStack getStack(int size) 
+	{
+		SizeStack stack = map.get(size);
 		if (stack == null) {
-			// Only acquire write lock when adding to map.
-			synchronized (writeLock) {
-				stack = new ByteBufferStack();
-				map.put(size, stack);
-			}
+			// If another thread adds the stack first this one is discarded.
+			stack = map.putIfAbsent(size, new SizeStack(size));
 		}
-		stack.push(buffer);
-		return true;
+		return stack;
+	}
+	
+	/**
+	 * Returns the number of times a buffer of the given size has been
+	 * requested from this factory.
+	 * 
+	 * @param size
+	 * 		The size of the buffer.
+	 * @return
+	 * 		The number of requests for the given size.
+	 */
+	public long getDemand(int size) 
+	{
+		SizeStack stack = map.get(size);
+		return (stack == null ? 0 : stack.demand.sum());
 	}
 	
 	/**
@@ -135,50 +201,90 @@ public class BufferFactoryMap extends AbstractBufferFactory
 	@Override
 	protected long onFill() 
 	{
-		// This algorithm transfers each of the stacks in the map to an array
-		// list of stacks. This algorithm will continue placing a buffer into
-		// each stack until the available memory is as taken as possible.
+		// This algorithm gives each size a number of buffers proportional to
+		// the number of times that size has been requested, scaled so the
+		// buffers fit in the available memory. Whatever memory remains after
+		// rounding down is handed out one buffer at a time starting with the
+		// most demanded sizes.
 		
-		List<ByteBufferStack> stacks = new ArrayList<ByteBufferStack>();
-		// Acquires write lock so no concurrent stack adds occur.
-		synchronized (writeLock) {
-			for (Entry<Integer, ByteBufferStack> e : map.entrySet()) {
-				stacks.add(e.getValue());
-			}	
+		List<SizeStack> stacks = new ArrayList<SizeStack>();
+		for (SizeStack stack : map.values()) {
+			if (stack.demand.sum() > 0) {
+				stacks.add(stack);
+			}
 		}
 		
-		// No stacks? exit!
+		// No demand? exit!
 		if (stacks.isEmpty()) { 
 			return 0;
 		}
 		
-		// Sort the stacks from smallest buffers to largest placing the empty
-		// stacks at the end of the list.
-		Collections.sort(stacks, new Comparator<ByteBufferStack>() {
-			public int compare(ByteBufferStack o1, ByteBufferStack o2) {
-				ByteBuffer a = o1.peek();
-				ByteBuffer b = o2.peek();
-				int ax = (a == null ? 0 : a.capacity());
-				int bx = (b == null ? 0 : b.capacity());
-				return (ax - bx);
+		// Sort the stacks from most demanded to least demanded.
+		final long[] demands = new long[stacks.size()];
+		Collections.sort(stacks, new Comparator<SizeStack>() {
+			public int compare(SizeStack o1, SizeStack o2) {
+				long a = o1.demand.sum();
+				long b = o2.demand.sum();
+				return (a < b ? 1 : (a > b ? -1 : 0));
 			}
 		});
 
-		// TODO implement algorithm
-		if (Math.random() < 1.0) { // RUN!
-			throw new RuntimeException();
+		// The memory it would take to give every size its demand in buffers.
+		double demandMemory = 0;
+		for (int i = 0; i < demands.length; i++) {
+			SizeStack stack = stacks.get(i);
+			demands[i] = stack.demand.sum();
+			demandMemory += (double)demands[i] * stack.size;
 		}
 		
-		long memory = 0;
 		long available = getAvailable();
+		double scale = available / demandMemory;
+		long memory = 0;
 		
-		// Place buffers in these until they're full.
-		while (available >= 0) {
+		// Give each size its share.
+		for (int i = 0; i < demands.length; i++) {
+			SizeStack stack = stacks.get(i);
+			long count = (long)(demands[i] * scale);
+			for (long c = 0; c < count; c++) {
+				if (!fill(stack)) {
+					return memory;
+				}
+				memory += stack.size;
+			}
+		}
+		
+		// Hand out the remainder.
+		for (int i = 0; i < demands.length; i++) {
+			SizeStack stack = stacks.get(i);
+			if (memory + stack.size <= available) {
+				if (!fill(stack)) {
+					return memory;
+				}
+				memory += stack.size;
+			}
 		}
 		
 		return memory;
 	}
 	
+	/**
+	 * Allocates a new buffer and places it on the given stack.
+	 * 
+	 * @param stack
+	 * 		The stack to add a buffer to.
+	 * @return
+	 * 		True if the buffer was allocated, false if there isn't enough memory.
+	 */
+	private boolean fill(SizeStack stack) 
+	{
+		ByteBuffer buffer = allocateDirect(stack.size);
+		if (buffer == null || !buffer.isDirect()) {
+			return false;
+		}
+		stack.push(buffer);
+		return true;
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
@@ -186,31 +292,56 @@ public class BufferFactoryMap extends AbstractBufferFactory
 	protected List<ByteBuffer> onRelease() 
 	{
 		ByteBuffer buffer;
-		List<ByteBufferStack> stacks = new ArrayList<ByteBufferStack>();
 		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
 		
-		// Acquire lock to avoid concurrent adds and fills
-		synchronized (writeLock) 
+		// Empty each stack into buffers. The stacks stay in the map so the 
+		// demand for each size is remembered.
+		for (SizeStack s : map.values()) 
 		{
-			Iterator<Entry<Integer, ByteBufferStack>> iter = map.entrySet().iterator();
-			// Remove each stack and add it to a list for later traversal. This
-			// is done to avoid extended control of the write lock.
-			while (iter.hasNext()) {
-				stacks.add(iter.next().getValue());
-				iter.remove();
+			// Pop em off!
+			while ((buffer = s.pop()) != null) {
+				buffers.add(buffer);
 			}
 		}
 		
-		// Empty each stack into buffers
-		for (ByteBufferStack s : stacks) 
-		{
-			// Pop em off!
-			while ((buffer = s.pop()) != null) {
+		return buffers;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected List<ByteBuffer> onEvict(int capacity, int count) 
+	{
+		ByteBuffer buffer;
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		
+		SizeStack stack = map.get(capacity);
+		if (stack != null) {
+			while (buffers.size() < count && (buffer = stack.pop()) != null) {
 				buffers.add(buffer);
 			}
 		}
 		
 		return buffers;
 	}
+	
+	
+	/**
+	 * A stack of buffers of a single size and the demand for that size.
+	 */
+	private static class SizeStack extends ByteBufferBatchStack 
+	{
+		// The capacity of the buffers in the stack.
+		private final int size;
+		
+		// The number of times a buffer of this size has been requested.
+		private final LongAdder demand = new LongAdder();
+		
+		public SizeStack(int size) 
+		{
+			this.size = size;
+		}
+	}
 
 }
@@ -0,0 +1,379 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A BufferFactory whose buffers are regions of a memory-mapped temporary
+ * file. Every region has the same size and like BufferFactoryFixed any
+ * request for a buffer larger than the region size or smaller than the
+ * minimum size is allocated on the fly as a HeapByteBuffer. The bytes of a
+ * region live in the page cache, not on the Java heap or in direct memory, so
+ * this factory can hand out buffers far larger than the direct memory limit.
+ *
+ * A region which is freed while the factory is at capacity, or released by
+ * clear(), is unmapped immediately and its place in the file is reused by the
+ * next region mapped. The file is deleted when the factory is closed, or
+ * otherwise when the JVM exits.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class BufferFactoryMapped extends AbstractBufferFactory
+{
+
+	// The size of every region mapped.
+	private final int regionSize;
+
+	// The minimum size of a buffer for it to be a region.
+	private final int minSize;
+
+	// The temporary file the regions are mapped from.
+	private final File file;
+
+	// The channel to the file.
+	private final FileChannel channel;
+
+	// The regions cached.
+	private final ByteBufferStack stack;
+
+	// A lock acquired when regions are mapped and unmapped.
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	// The offset in the file of every region mapped and not yet unmapped.
+	private final IdentityHashMap<ByteBuffer, Long> regions;
+
+	// The offsets of regions which have been unmapped, to be reused.
+	private final List<Long> holes;
+
+	// The end of the last region in the file.
+	private long end;
+
+
+	/**
+	 * Instantiates a new BufferFactoryMapped with a temporary file in the
+	 * default temporary directory.
+	 *
+	 * @param regionSize
+	 * 		The size of every region mapped.
+	 * @param minSize
+	 * 		The minimum size of a buffer for it to be a region.
+	 * @throws IOException
+	 * 		The temporary file could not be created.
+	 */
+	public BufferFactoryMapped(int regionSize, int minSize) throws IOException
+	{
+		this(regionSize, minSize, null);
+	}
+
+	/**
+	 * Instantiates a new BufferFactoryMapped.
+	 *
+	 * @param regionSize
+	 * 		The size of every region mapped.
+	 * @param minSize
+	 * 		The minimum size of a buffer for it to be a region.
+	 * @param directory
+	 * 		The directory to create the temporary file in, or null for the
+	 * 		default temporary directory.
+	 * @throws IOException
+	 * 		The temporary file could not be created.
+	 */
+	public BufferFactoryMapped(int regionSize, int minSize, File directory) throws IOException
+	{
+		this.regionSize = regionSize;
+		this.minSize = minSize;
+		this.file = File.createTempFile("buffero", ".map", directory);
+		this.file.deleteOnExit();
+		this.channel = new RandomAccessFile(file, "rw").getChannel();
+		this.stack = new ByteBufferStack();
+		this.regions = new IdentityHashMap<ByteBuffer, Long>();
+		this.holes = new ArrayList<Long>();
+		this.setDefaultSize(regionSize);
+	}
+
+	/**
+	 * Maps a new region, reusing the place of an unmapped region if one
+	 * exists.
+	 *
+	 * @return
+	 * 		The region mapped, or null if it couldn't be mapped.
+	 */
+	private ByteBuffer map()
+	{
+		writeLock.lock();
+		try {
+			long offset = (holes.isEmpty() ? end : holes.remove(holes.size() - 1));
+			ByteBuffer region;
+			try {
+				region = channel.map(FileChannel.MapMode.READ_WRITE, offset, regionSize);
+			}
+			catch (IOException e) {
+				System.err.format("Cannot map a region of size %d; %s.\n", regionSize, e.getMessage());
+				if (offset != end) {
+					holes.add(offset);
+				}
+				return null;
+			}
+			if (offset == end) {
+				end += regionSize;
+			}
+			regions.put(region, offset);
+			return region;
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns whether the given buffer is a region mapped by this factory.
+	 */
+	private boolean isRegion(ByteBuffer buffer)
+	{
+		if (buffer.capacity() != regionSize || !buffer.isDirect()) {
+			return false;
+		}
+		writeLock.lock();
+		try {
+			return regions.containsKey(buffer);
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Unmaps the given buffer if it's a region mapped by this factory, or
+	 * frees it as usual otherwise.
+	 *
+	 * @param buffer
+	 * 		The buffer to free from memory.
+	 */
+	@Override
+	protected void onFree(ByteBuffer buffer)
+	{
+		if (buffer.capacity() == regionSize) {
+			writeLock.lock();
+			try {
+				Long offset = regions.remove(buffer);
+				if (offset != null) {
+					holes.add(offset);
+					// Cleaning a mapped buffer unmaps it, regions aren't
+					// direct memory so aren't given back to a governor.
+					clean(buffer);
+					return;
+				}
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+
+		super.onFree(buffer);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long clear()
+	{
+		long memory = super.clear();
+
+		// With every region unmapped the file can be emptied.
+		writeLock.lock();
+		try {
+			if (regions.isEmpty()) {
+				try {
+					channel.truncate(0);
+					holes.clear();
+					end = 0;
+				}
+				catch (IOException e) {
+					System.err.format("Cannot truncate %s; %s.\n", file, e.getMessage());
+				}
+			}
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		return memory;
+	}
+
+	/**
+	 * Unmaps every cached region, closes and deletes the file. Regions still
+	 * in use are left mapped until they are garbage collected, they should
+	 * not be used once the factory is closed.
+	 *
+	 * @throws IOException
+	 * 		The file could not be closed.
+	 */
+	public void close() throws IOException
+	{
+		clear();
+		channel.close();
+		file.delete();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onTake(int size)
+	{
+		// Sizes outside of the range are never regions.
+		if (size > regionSize || size < minSize) {
+			return null;
+		}
+
+		return stack.pop();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onCreate(int size)
+	{
+		// For any size outside of the range just create a HeapByteBuffer.
+		if (size > regionSize || size < minSize) {
+			try {
+				return ByteBuffer.allocate(size);
+			}
+			catch (OutOfMemoryError e) {
+				System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", size);
+				return null;
+			}
+		}
+
+		return map();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean onCache(ByteBuffer buffer)
+	{
+		// Only regions mapped by this factory are cached.
+		if (!isRegion(buffer)) {
+			return false;
+		}
+
+		stack.push(buffer);
+
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected long onFill()
+	{
+		long memory = 0;
+		while (getAvailable() - memory >= regionSize)
+		{
+			ByteBuffer region = map();
+			if (region == null) {
+				return memory;
+			}
+			stack.push(region);
+			memory += regionSize;
+		}
+		return memory;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected List<ByteBuffer> onRelease()
+	{
+		ByteBuffer buffer;
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		while ((buffer = stack.pop()) != null) {
+			buffers.add(buffer);
+		}
+		return buffers;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected List<ByteBuffer> onEvict(int capacity, int count)
+	{
+		ByteBuffer buffer;
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		while (buffers.size() < count && (buffer = stack.pop()) != null) {
+			buffers.add(buffer);
+		}
+		return buffers;
+	}
+
+	/**
+	 * Returns the size of every region mapped.
+	 *
+	 * @return
+	 * 		The size of a region in bytes.
+	 */
+	public int getRegionSize()
+	{
+		return regionSize;
+	}
+
+	/**
+	 * Returns the number of regions currently mapped, both cached and in use.
+	 *
+	 * @return
+	 * 		The number of regions mapped.
+	 */
+	public int getRegionCount()
+	{
+		writeLock.lock();
+		try {
+			return regions.size();
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the temporary file the regions are mapped from.
+	 *
+	 * @return
+	 * 		The reference to the file.
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+}
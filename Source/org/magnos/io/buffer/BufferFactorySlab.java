@@ -0,0 +1,673 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A BufferFactory which reserves large DirectByteBuffers (chunks) and hands
+ * out slices of them. Each chunk is dedicated to a single power-of-2 size
+ * class and slices of that size are cut from it the first time they're
+ * needed, so only one call to ByteBuffer.allocateDirect is made for every
+ * chunk opposed to every buffer. Requests smaller or larger than the size
+ * classes are allocated on the fly as HeapByteBuffers.
+ *
+ * Only the slices currently allocated are mapped to the chunk they were cut
+ * from. A freed slice is returned to its chunk and reused. When every slice
+ * of a chunk has been freed the chunk is released from memory if the factory
+ * is caching more than its capacity, however one empty chunk is kept for each
+ * size class so a workload hovering around a chunk boundary doesn't reserve
+ * and release a chunk over and over. Chunks with live slices can't be
+ * released, so clear() only releases the chunks which are completely empty.
+ *
+ * The cached memory of this factory is the memory of the free slices in all
+ * of its chunks.
+ *
+ * With an alignment every chunk is aligned, and since a slice starts at a
+ * multiple of its size the slices are aligned to their size. Requests smaller
+ * than the alignment take a slice the size of the alignment.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class BufferFactorySlab extends AbstractBufferFactory
+{
+
+	// The default size of a chunk, 4 megabytes (2^22 bytes).
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 22;
+
+	// The value of a chunks live count once it has been released. Any attempt
+	// to take a slice from a released chunk will see a negative count.
+	private static final int RELEASED = Integer.MIN_VALUE;
+
+	// The number that determines the smallest slice size, 2^minPower.
+	private final int minPower;
+	private final int minBufferSize;
+
+	// The number that determines the largest slice size, 2^maxPower.
+	private final int maxPower;
+	private final int maxBufferSize;
+
+	// The size of each chunk, a multiple of the largest slice size.
+	private final int chunkSize;
+
+	// A lock acquired when chunks are being reserved or released.
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	// The chunks of each size class. A slab is never modified once its
+	// published, it is replaced.
+	private final AtomicReferenceArray<Slab> slabs;
+
+	// The chunk of each allocated slice, by size class.
+	private final Owners[] owners;
+
+
+	/**
+	 * Instantiates a new BufferFactorySlab with the default chunk size.
+	 *
+	 * @param minPower
+	 * 		The number that determines the smallest slice size, 2^minPower. Any
+	 * 		request for a smaller buffer returns a HeapByteBuffer.
+	 * @param maxPower
+	 * 		The number that determines the largest slice size, 2^maxPower. Any
+	 * 		request for a larger buffer returns a HeapByteBuffer.
+	 */
+	public BufferFactorySlab(int minPower, int maxPower)
+	{
+		this(minPower, maxPower, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Instantiates a new BufferFactorySlab.
+	 *
+	 * @param minPower
+	 * 		The number that determines the smallest slice size, 2^minPower. Any
+	 * 		request for a smaller buffer returns a HeapByteBuffer.
+	 * @param maxPower
+	 * 		The number that determines the largest slice size, 2^maxPower. Any
+	 * 		request for a larger buffer returns a HeapByteBuffer.
+	 * @param chunkSize
+	 * 		The size of each chunk reserved. This is rounded up to a multiple
+	 * 		of the largest slice size.
+	 */
+	public BufferFactorySlab(int minPower, int maxPower, int chunkSize)
+	{
+		int classes = (maxPower - minPower) + 1;
+
+		this.minPower = minPower;
+		this.minBufferSize = 1 << minPower;
+		this.maxPower = maxPower;
+		this.maxBufferSize = 1 << maxPower;
+		this.chunkSize = ((Math.max(chunkSize, maxBufferSize) + maxBufferSize - 1) >> maxPower) << maxPower;
+
+		this.slabs = new AtomicReferenceArray<Slab>(classes);
+		this.owners = new Owners[classes];
+		for (int i = 0; i < classes; i++) {
+			this.slabs.set(i, Slab.EMPTY);
+			this.owners[i] = new Owners();
+		}
+
+		// Default size is the buffer size halfway between min and max.
+		this.setDefaultSize(1 << ((minPower + maxPower) >> 1));
+	}
+
+	/**
+	 * Determines the log<sub>2</sub> of a given integer rounded up.
+	 *
+	 * @param n
+	 * 		The integer to find the log<sub>2</sub> of.
+	 */
+	private final int log2(int n)
+	{
+		return 32 - Integer.numberOfLeadingZeros(n - 1);
+	}
+
+	/**
+	 * Returns the index of the size class for the given size. A slice is
+	 * only as aligned as its size, so a size smaller than the alignment takes
+	 * a slice the size of the alignment.
+	 *
+	 * @param size
+	 * 		The size to find the class of.
+	 */
+	private final int classOf(int size)
+	{
+		return log2(Math.max(size, alignment)) - minPower;
+	}
+
+	/**
+	 * Takes a free slice from the oldest chunk of the given size class which
+	 * has one and maps it to its chunk. Filling the oldest chunks first gives
+	 * the newest chunks a chance to empty.
+	 *
+	 * @param index
+	 * 		The index of the size class.
+	 * @return
+	 * 		The slice taken, or null if no chunk has a free slice.
+	 */
+	private ByteBuffer take(int index)
+	{
+		Chunk[] chunks = slabs.get(index).chunks;
+
+		for (int i = 0; i < chunks.length; i++)
+		{
+			ByteBuffer slice = chunks[i].take();
+			if (slice != null) {
+				owners[index].put(slice, chunks[i]);
+				return slice;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Unmaps the given buffer from the chunk it was sliced from and returns
+	 * the chunk, or null if the buffer isn't an allocated slice of this
+	 * factory.
+	 *
+	 * @param buffer
+	 * 		The buffer to unmap.
+	 */
+	private Chunk unmap(ByteBuffer buffer)
+	{
+		int capacity = buffer.capacity();
+
+		if (!buffer.isDirect() || capacity < minBufferSize || capacity > maxBufferSize || (capacity & (capacity - 1)) != 0) {
+			return null;
+		}
+
+		return owners[log2(capacity) - minPower].remove(buffer);
+	}
+
+	/**
+	 * Reserves a new chunk for the given size class and publishes it.
+	 *
+	 * @param index
+	 * 		The index of the size class.
+	 * @return
+	 * 		The chunk reserved, or null if there wasn't enough memory.
+	 */
+	private Chunk reserve(int index)
+	{
+		ByteBuffer memory = allocateDirect(chunkSize);
+		if (memory == null) {
+			return null;
+		}
+
+		Chunk chunk = new Chunk(memory, index + minPower);
+		slabs.set(index, slabs.get(index).add(chunk));
+
+		return chunk;
+	}
+
+	/**
+	 * Releases the given chunk if its empty, the factory is caching more than
+	 * its capacity, and it isn't the only empty chunk of its size class.
+	 *
+	 * @param chunk
+	 * 		The chunk which became empty.
+	 */
+	private void trim(Chunk chunk)
+	{
+		writeLock.lock();
+		try {
+			int index = chunk.power - minPower;
+			Slab slab = slabs.get(index);
+
+			if (usedMemory.sum() <= maxMemory || slab.countEmpty() < 2) {
+				return;
+			}
+			if (!chunk.live.compareAndSet(0, RELEASED)) {
+				return;
+			}
+
+			slabs.set(index, slab.remove(chunk));
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		usedMemory.add(-chunkSize);
+		onFree(chunk.memory);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean free(ByteBuffer buffer)
+	{
+		Chunk chunk = unmap(buffer);
+
+		// The buffer isn't an allocated slice of this factory.
+		if (chunk == null) {
+			return super.free(buffer);
+		}
+
+		// A slice always goes back to its chunk, if that empties the chunk it
+		// may be released.
+		usedMemory.add(buffer.capacity());
+		if (chunk.give(buffer)) {
+			trim(chunk);
+		}
+		serve();
+
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int free(ByteBuffer[] buffers, int from, int to)
+	{
+		// Each buffer is freed on its own so a slice always goes back to its
+		// chunk, even when the cache is over its capacity.
+		int cached = 0;
+		for (int i = from; i < to; i++) {
+			if (free(buffers[i])) {
+				cached++;
+			}
+		}
+		return cached;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<ByteBuffer> transfer(List<ByteBuffer> elements)
+	{
+		// Slices go back to their chunks, the rest are offered to the cache.
+		List<ByteBuffer> foreign = new ArrayList<ByteBuffer>();
+		for (ByteBuffer b : elements) {
+			Chunk chunk = unmap(b);
+			if (chunk != null) {
+				usedMemory.add(b.capacity());
+				if (chunk.give(b)) {
+					trim(chunk);
+				}
+			}
+			else {
+				foreign.add(b);
+			}
+		}
+		serve();
+		return super.transfer(foreign);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onTake(int size)
+	{
+		// If the size is to small or to large then it's never cached.
+		if (size < minBufferSize || size > maxBufferSize) {
+			return null;
+		}
+
+		// Take a free slice from an existing chunk.
+		return take(classOf(size));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ByteBuffer onCreate(int size)
+	{
+		// If the size is to small or to large then return a HeapByteBuffer.
+		if (size < minBufferSize || size > maxBufferSize) {
+			try {
+				return ByteBuffer.allocate(size);
+			}
+			catch (OutOfMemoryError e) {
+				System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", size);
+				return null;
+			}
+		}
+
+		int index = classOf(size);
+		ByteBuffer buffer;
+
+		writeLock.lock();
+		try {
+			// Another thread may have reserved a chunk while we waited, the
+			// slice taken from it is no longer cached.
+			buffer = take(index);
+			if (buffer != null) {
+				usedMemory.add(-buffer.capacity());
+				return buffer;
+			}
+
+			Chunk chunk = reserve(index);
+			if (chunk == null) {
+				return null;
+			}
+
+			// Every slice but the one returned is now cached.
+			buffer = chunk.take();
+			owners[index].put(buffer, chunk);
+			usedMemory.add(chunkSize - buffer.capacity());
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean onCache(ByteBuffer buffer)
+	{
+		Chunk chunk = unmap(buffer);
+
+		// Only slices of this factory can be cached.
+		if (chunk == null) {
+			return false;
+		}
+
+		chunk.give(buffer);
+
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected long onFill()
+	{
+		// Reserves a chunk for each size class in turn until there isn't
+		// enough memory available for another chunk.
+
+		long memory = 0;
+		int classes = slabs.length();
+
+		writeLock.lock();
+		try {
+			for (int i = 0; getAvailable() - memory >= chunkSize; i = (i + 1) % classes)
+			{
+				if (reserve(i) == null) {
+					break;
+				}
+				memory += chunkSize;
+			}
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		return memory;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected List<ByteBuffer> onRelease()
+	{
+		// Only the chunks which are completely empty can be released, their
+		// memory is returned as a whole.
+
+		List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+		writeLock.lock();
+		try {
+			for (int i = 0; i < slabs.length(); i++)
+			{
+				Slab slab = slabs.get(i);
+				for (int k = 0; k < slab.chunks.length; k++)
+				{
+					Chunk chunk = slab.chunks[k];
+					if (chunk.live.compareAndSet(0, RELEASED)) {
+						slab = slab.remove(chunk);
+						chunks.add(chunk.memory);
+					}
+				}
+				slabs.set(i, slab);
+			}
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		return chunks;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setAlignment(int alignment)
+	{
+		if (alignment > maxBufferSize) {
+			throw new IllegalArgumentException("The alignment is larger than the largest slice: " + alignment);
+		}
+		super.setAlignment(alignment);
+	}
+
+	/**
+	 * Returns the size of the chunks reserved by this factory.
+	 *
+	 * @return
+	 * 		The size of a chunk in bytes.
+	 */
+	public int getChunkSize()
+	{
+		return chunkSize;
+	}
+
+	/**
+	 * Returns the number of chunks currently reserved by this factory.
+	 *
+	 * @return
+	 * 		The number of chunks reserved.
+	 */
+	public int getChunkCount()
+	{
+		int count = 0;
+		for (int i = 0; i < slabs.length(); i++) {
+			count += slabs.get(i).chunks.length;
+		}
+		return count;
+	}
+
+
+	/**
+	 * A large DirectByteBuffer carved into slices of the same size. Slices are
+	 * cut in address order as they're needed and reused once they're freed.
+	 */
+	private static class Chunk
+	{
+		// The memory the slices share.
+		private final ByteBuffer memory;
+
+		// The power of 2 of each slice size.
+		private final int power;
+
+		// The number of slices the chunk can be cut into.
+		private final int count;
+
+		// The number of slices cut so far.
+		private final AtomicInteger cut;
+
+		// The slices cut and freed which are not currently allocated.
+		private final ByteBufferStack free;
+
+		// The number of slices currently allocated, or a negative number if
+		// the chunk has been released.
+		private final AtomicInteger live;
+
+		public Chunk(ByteBuffer memory, int power)
+		{
+			this.memory = memory;
+			this.power = power;
+			this.count = memory.capacity() >> power;
+			this.cut = new AtomicInteger();
+			this.free = new ByteBufferStack();
+			this.live = new AtomicInteger();
+		}
+
+		/**
+		 * Takes a free slice from this chunk, or returns null if the chunk has
+		 * no free slices or was released. A freed slice is reused before a
+		 * new one is cut.
+		 */
+		public ByteBuffer take()
+		{
+			if (live.incrementAndGet() <= 0) {
+				live.decrementAndGet();
+				return null;
+			}
+			ByteBuffer slice = free.pop();
+			if (slice == null) {
+				slice = cut();
+			}
+			if (slice == null) {
+				live.decrementAndGet();
+			}
+			return slice;
+		}
+
+		/**
+		 * Cuts the next slice from the memory of this chunk, or returns null
+		 * if every slice has been cut.
+		 */
+		private ByteBuffer cut()
+		{
+			int i;
+			while ((i = cut.get()) < count) {
+				if (cut.compareAndSet(i, i + 1)) {
+					ByteBuffer view = memory.duplicate();
+					view.limit((i + 1) << power);
+					view.position(i << power);
+					return view.slice();
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Gives a slice back to this chunk and returns true if this chunk is
+		 * now empty.
+		 */
+		public boolean give(ByteBuffer slice)
+		{
+			free.push(slice);
+			return live.decrementAndGet() == 0;
+		}
+	}
+
+	/**
+	 * The chunks of a single size class. Slabs are immutable so they can be
+	 * read without locking, modifying a slab creates a new one.
+	 */
+	private static class Slab
+	{
+		public static final Slab EMPTY = new Slab(new Chunk[0]);
+
+		// The chunks of the slab, oldest first.
+		private final Chunk[] chunks;
+
+		public Slab(Chunk[] chunks)
+		{
+			this.chunks = chunks;
+		}
+
+		/**
+		 * Returns the number of chunks in this slab without live slices.
+		 */
+		public int countEmpty()
+		{
+			int empty = 0;
+			for (int i = 0; i < chunks.length; i++) {
+				if (chunks[i].live.get() == 0) {
+					empty++;
+				}
+			}
+			return empty;
+		}
+
+		public Slab add(Chunk chunk)
+		{
+			Chunk[] added = new Chunk[chunks.length + 1];
+			System.arraycopy(chunks, 0, added, 0, chunks.length);
+			added[chunks.length] = chunk;
+			return new Slab(added);
+		}
+
+		public Slab remove(Chunk chunk)
+		{
+			List<Chunk> kept = new ArrayList<Chunk>(chunks.length);
+			for (int i = 0; i < chunks.length; i++) {
+				if (chunks[i] != chunk) {
+					kept.add(chunks[i]);
+				}
+			}
+			return new Slab(kept.toArray(new Chunk[kept.size()]));
+		}
+	}
+
+	/**
+	 * The chunk of each allocated slice of a size class. An IdentityHashMap
+	 * doesn't allocate on put or remove, so the lock is only held for a few
+	 * reads and writes of its table.
+	 */
+	private static class Owners
+	{
+		// The chunk of each allocated slice.
+		private final IdentityHashMap<ByteBuffer, Chunk> chunks = new IdentityHashMap<ByteBuffer, Chunk>();
+
+		// A lock acquired while the map is read or modified.
+		private final ReentrantLock lock = new ReentrantLock();
+
+		public void put(ByteBuffer slice, Chunk chunk)
+		{
+			lock.lock();
+			try {
+				chunks.put(slice, chunk);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		public Chunk remove(ByteBuffer slice)
+		{
+			lock.lock();
+			try {
+				return chunks.remove(slice);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,189 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Periodically trims the factories registered to it. A factory is trimmed
+ * when its idle time has passed since its last trim, so factories with
+ * different idle times can share a trimmer as long as the trimmers period is
+ * no longer than the shortest idle time. Factories are held weakly, a factory
+ * which is no longer referenced elsewhere is dropped from the trimmer.
+ *
+ * The trimmer runs on a single daemon thread. Other maintenance of a factory
+ * which shouldn't run on an allocating thread (like recomputing the classes of
+ * a BufferFactoryAdaptive) can be executed on the same thread.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class BufferFactoryTrimmer implements Executor
+{
+
+	// The period of the shared trimmer in milliseconds.
+	public static final long DEFAULT_PERIOD = 1000;
+
+	// The trimmer shared by every factory, created on first use.
+	private static BufferFactoryTrimmer shared;
+
+	// The factories to trim.
+	private final CopyOnWriteArrayList<WeakReference<AbstractBufferFactory>> factories;
+
+	// The thread the trims run on.
+	private final ScheduledExecutorService executor;
+
+
+	/**
+	 * Returns the trimmer shared by every factory, which checks its factories
+	 * every second.
+	 *
+	 * @return
+	 * 		The reference to the shared trimmer.
+	 */
+	public static synchronized BufferFactoryTrimmer getShared()
+	{
+		if (shared == null) {
+			shared = new BufferFactoryTrimmer(DEFAULT_PERIOD, TimeUnit.MILLISECONDS);
+		}
+		return shared;
+	}
+
+	/**
+	 * Instantiates a new BufferFactoryTrimmer and starts it.
+	 *
+	 * @param period
+	 * 		The time between checks of the factories.
+	 * @param unit
+	 * 		The unit of the period.
+	 */
+	public BufferFactoryTrimmer(long period, TimeUnit unit)
+	{
+		this.factories = new CopyOnWriteArrayList<WeakReference<AbstractBufferFactory>>();
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "BufferFactoryTrimmer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				trim();
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * Adds a factory to be trimmed. The factory should have an idle time set,
+	 * otherwise it's never trimmed.
+	 *
+	 * @param factory
+	 * 		The factory to add.
+	 */
+	public void register(AbstractBufferFactory factory)
+	{
+		factories.add(new WeakReference<AbstractBufferFactory>(factory));
+	}
+
+	/**
+	 * Removes a factory from this trimmer.
+	 *
+	 * @param factory
+	 * 		The factory to remove.
+	 */
+	public void unregister(AbstractBufferFactory factory)
+	{
+		for (WeakReference<AbstractBufferFactory> ref : factories) {
+			if (ref.get() == factory) {
+				factories.remove(ref);
+			}
+		}
+	}
+
+	/**
+	 * Trims each factory whose idle time has passed since its last trim, and
+	 * drops each factory which has been garbage collected. A factory which
+	 * fails to trim is reported and skipped, it doesn't stop the rest from
+	 * being trimmed now or on later periods.
+	 *
+	 * @return
+	 * 		The amount of memory freed.
+	 */
+	public long trim()
+	{
+		long now = System.nanoTime();
+		long memory = 0;
+
+		for (WeakReference<AbstractBufferFactory> ref : factories)
+		{
+			AbstractBufferFactory factory = ref.get();
+			if (factory == null) {
+				factories.remove(ref);
+			}
+			else {
+				try {
+					memory += factory.trimIfIdle(now);
+				}
+				catch (RuntimeException e) {
+					System.err.format("Cannot trim the buffer factory %s; %s.\n", factory, e);
+				}
+			}
+		}
+
+		return memory;
+	}
+
+	/**
+	 * Runs the given task on the thread of this trimmer, after any trim or
+	 * task already running.
+	 *
+	 * @param task
+	 * 		The task to run.
+	 */
+	public void execute(Runnable task)
+	{
+		executor.execute(task);
+	}
+
+	/**
+	 * Stops this trimmer, the factories registered are left as they are.
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+
+	/**
+	 * Returns the number of factories registered to this trimmer.
+	 *
+	 * @return
+	 * 		The number of factories.
+	 */
+	public int getFactoryCount()
+	{
+		return factories.size();
+	}
+
+}
@@ -0,0 +1,342 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Enforces a budget of direct memory shared by every factory given the
+ * governor. The governor counts every direct buffer a factory creates until
+ * the factory frees it from memory, so both the buffers cached in factories
+ * and the buffers outstanding with their users count against the budget.
+ *
+ * When a factory needs a new direct buffer and the budget doesn't allow it,
+ * the policy of the governor decides what happens: FAIL returns null
+ * immediately, BLOCK waits up to a timeout for another buffer to be freed
+ * from memory, and HEAP returns a HeapByteBuffer instead. The pressure on the
+ * budget and the number of requests it denied can be read at any time so
+ * callers can shed load before requests fail.
+ *
+ * Buffers freed to a governed factory should only come from governed
+ * factories, a direct buffer created elsewhere and freed from memory by a
+ * governed factory is subtracted from the budget all the same.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class BufferGovernor
+{
+
+	/**
+	 * What happens when a direct buffer doesn't fit in the budget.
+	 */
+	public enum Policy
+	{
+		/** Return null immediately. */
+		FAIL,
+		/** Wait up to the timeout for memory to be freed, then return null. */
+		BLOCK,
+		/** Return a HeapByteBuffer. */
+		HEAP
+	}
+
+	// The maximum amount of direct memory.
+	private final long budget;
+
+	// The amount of direct memory created and not yet freed.
+	private final AtomicLong used = new AtomicLong();
+
+	// The number of requests which didn't fit in the budget.
+	private final LongAdder denied = new LongAdder();
+
+	// What happens when a direct buffer doesn't fit in the budget.
+	private volatile Policy policy;
+
+	// The time in nanoseconds to wait for memory under the BLOCK policy.
+	private volatile long timeout;
+
+	// The lock waited on under the BLOCK policy and the number waiting.
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition freed = lock.newCondition();
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	// Whether the BLOCK policy fails instead of waiting on the current thread,
+	// set while a factory serves asynchronous requests.
+	private static final ThreadLocal<Boolean> nonblocking = new ThreadLocal<Boolean>();
+
+
+	/**
+	 * Instantiates a new BufferGovernor which fails fast.
+	 *
+	 * @param budget
+	 * 		The maximum amount of direct memory in bytes.
+	 */
+	public BufferGovernor(long budget)
+	{
+		this(budget, Policy.FAIL, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Instantiates a new BufferGovernor.
+	 *
+	 * @param budget
+	 * 		The maximum amount of direct memory in bytes.
+	 * @param policy
+	 * 		What happens when a direct buffer doesn't fit in the budget.
+	 * @param timeout
+	 * 		The time to wait for memory under the BLOCK policy.
+	 * @param unit
+	 * 		The unit of the timeout.
+	 */
+	public BufferGovernor(long budget, Policy policy, long timeout, TimeUnit unit)
+	{
+		this.budget = budget;
+		this.policy = policy;
+		this.timeout = unit.toNanos(timeout);
+	}
+
+	/**
+	 * Allocates a direct buffer if it fits in the budget, otherwise follows
+	 * the policy of this governor.
+	 *
+	 * @param capacity
+	 * 		The capacity of the buffer.
+	 * @return
+	 * 		The buffer allocated, a HeapByteBuffer under the HEAP policy, or null
+	 * 		if the buffer didn't fit in the budget or there isn't enough memory.
+	 */
+	public ByteBuffer allocate(int capacity)
+	{
+		if (!reserve(capacity))
+		{
+			denied.increment();
+
+			switch (policy) {
+			case HEAP:
+				try {
+					return ByteBuffer.allocate(capacity);
+				}
+				catch (OutOfMemoryError e) {
+					System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", capacity);
+					return null;
+				}
+			case BLOCK:
+				if (nonblocking.get() != null || !await(capacity)) {
+					return null;
+				}
+				break;
+			default:
+				return null;
+			}
+		}
+
+		try {
+			return ByteBuffer.allocateDirect(capacity);
+		}
+		catch (OutOfMemoryError e) {
+			release(capacity);
+			System.err.format("Cannot allocate a ByteBuffer of size %d; out of memory.\n", capacity);
+			return null;
+		}
+	}
+
+	/**
+	 * Subtracts memory freed from the budget, waking any threads waiting for
+	 * memory.
+	 *
+	 * @param capacity
+	 * 		The amount of memory freed.
+	 */
+	public void release(long capacity)
+	{
+		used.addAndGet(-capacity);
+
+		if (waiting.get() > 0) {
+			lock.lock();
+			try {
+				freed.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Adds the given amount to the memory used if it fits in the budget.
+	 */
+	private boolean reserve(long capacity)
+	{
+		for (;;)
+		{
+			long current = used.get();
+			if (current + capacity > budget) {
+				return false;
+			}
+			if (used.compareAndSet(current, current + capacity)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Waits up to the timeout for the given amount to fit in the budget and
+	 * reserves it.
+	 */
+	private boolean await(long capacity)
+	{
+		long deadline = System.nanoTime() + timeout;
+
+		waiting.incrementAndGet();
+		lock.lock();
+		try {
+			while (!reserve(capacity))
+			{
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				freed.awaitNanos(remaining);
+			}
+			return true;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		finally {
+			lock.unlock();
+			waiting.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Sets whether allocations on the current thread fail instead of waiting
+	 * for memory under the BLOCK policy.
+	 *
+	 * @param enabled
+	 * 		True if allocations should not wait, otherwise false.
+	 */
+	public static void setNonblocking(boolean enabled)
+	{
+		if (enabled) {
+			nonblocking.set(Boolean.TRUE);
+		}
+		else {
+			nonblocking.remove();
+		}
+	}
+
+	/**
+	 * Returns the amount of direct memory created and not yet freed, both
+	 * cached in factories and outstanding.
+	 *
+	 * @return
+	 * 		The amount of memory in bytes.
+	 */
+	public long getUsed()
+	{
+		return used.get();
+	}
+
+	/**
+	 * Returns the maximum amount of direct memory.
+	 *
+	 * @return
+	 * 		The budget in bytes.
+	 */
+	public long getBudget()
+	{
+		return budget;
+	}
+
+	/**
+	 * Returns the amount of direct memory which can still be created.
+	 *
+	 * @return
+	 * 		The amount of memory in bytes.
+	 */
+	public long getAvailable()
+	{
+		return budget - used.get();
+	}
+
+	/**
+	 * Returns the pressure on the budget, the fraction of it used.
+	 *
+	 * @return
+	 * 		The pressure between 0 (nothing used) and 1 (all used).
+	 */
+	public double getPressure()
+	{
+		return Math.min(1.0, (double)used.get() / budget);
+	}
+
+	/**
+	 * Returns the number of requests which didn't fit in the budget.
+	 *
+	 * @return
+	 * 		The number of requests denied.
+	 */
+	public long getDenied()
+	{
+		return denied.sum();
+	}
+
+	/**
+	 * Returns what happens when a direct buffer doesn't fit in the budget.
+	 *
+	 * @return
+	 * 		The policy of this governor.
+	 */
+	public Policy getPolicy()
+	{
+		return policy;
+	}
+
+	/**
+	 * Sets what happens when a direct buffer doesn't fit in the budget.
+	 *
+	 * @param policy
+	 * 		The new policy of this governor.
+	 */
+	public void setPolicy(Policy policy)
+	{
+		this.policy = policy;
+	}
+
+	/**
+	 * Sets the time to wait for memory under the BLOCK policy.
+	 *
+	 * @param timeout
+	 * 		The time to wait.
+	 * @param unit
+	 * 		The unit of the timeout.
+	 */
+	public void setTimeout(long timeout, TimeUnit unit)
+	{
+		this.timeout = unit.toNanos(timeout);
+	}
+
+}
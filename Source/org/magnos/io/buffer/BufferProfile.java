@@ -0,0 +1,224 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+
+/**
+ * The demand for each capacity of direct buffer observed by a factory. A
+ * profile is recorded by a factory with profiling enabled, saved to a small
+ * file when the application shuts down, and loaded when the application starts
+ * again to fill a factory with the same mix of buffers.
+ *
+ * The file has a line for each capacity with the capacity and the number of
+ * buffers of that capacity allocated, separated by a space. Lines starting
+ * with # are ignored.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class BufferProfile
+{
+
+	// The number of buffers allocated by capacity, smallest capacity first.
+	private final TreeMap<Integer, Long> demands = new TreeMap<Integer, Long>();
+
+
+	/**
+	 * Instantiates a new empty BufferProfile.
+	 */
+	public BufferProfile()
+	{
+	}
+
+	/**
+	 * Loads a BufferProfile from a file.
+	 *
+	 * @param file
+	 * 		The file to read.
+	 * @return
+	 * 		The profile read.
+	 * @throws IOException
+	 * 		The file could not be read or is not a profile.
+	 */
+	public static BufferProfile load(File file) throws IOException
+	{
+		BufferProfile profile = new BufferProfile();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+
+		try {
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				String[] parts = line.split("\\s+");
+				if (parts.length != 2) {
+					throw new IOException("Invalid line in buffer profile: " + line);
+				}
+
+				try {
+					profile.add(Integer.parseInt(parts[0]), Long.parseLong(parts[1]));
+				}
+				catch (NumberFormatException e) {
+					throw new IOException("Invalid line in buffer profile: " + line);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		return profile;
+	}
+
+	/**
+	 * Saves this profile to a file, replacing it if it exists.
+	 *
+	 * @param file
+	 * 		The file to write.
+	 * @throws IOException
+	 * 		The file could not be written.
+	 */
+	public void save(File file) throws IOException
+	{
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+
+		try {
+			writer.println("# capacity demand");
+			for (Entry<Integer, Long> e : demands.entrySet()) {
+				writer.println(e.getKey() + " " + e.getValue());
+			}
+			if (writer.checkError()) {
+				throw new IOException("Could not write buffer profile: " + file);
+			}
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Saves the profile of the given factory to a file when the JVM shuts
+	 * down. The factory should have profiling enabled.
+	 *
+	 * @param factory
+	 * 		The factory to save the profile of.
+	 * @param file
+	 * 		The file to write.
+	 */
+	public static void saveOnExit(final BufferFactory factory, final File file)
+	{
+		Runtime.getRuntime().addShutdownHook(new Thread("BufferProfile") {
+			public void run() {
+				try {
+					factory.getProfile().save(file);
+				}
+				catch (IOException e) {
+					System.err.format("Cannot save the buffer profile to %s; %s.\n", file, e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Adds demand for the given capacity.
+	 *
+	 * @param capacity
+	 * 		The capacity of the buffers.
+	 * @param demand
+	 * 		The number of buffers allocated.
+	 */
+	public void add(int capacity, long demand)
+	{
+		if (capacity <= 0 || demand <= 0) {
+			return;
+		}
+
+		Long current = demands.get(capacity);
+		demands.put(capacity, current == null ? demand : current + demand);
+	}
+
+	/**
+	 * Returns the demand for the given capacity.
+	 *
+	 * @param capacity
+	 * 		The capacity of the buffers.
+	 * @return
+	 * 		The number of buffers allocated.
+	 */
+	public long getDemand(int capacity)
+	{
+		Long demand = demands.get(capacity);
+		return (demand == null ? 0 : demand);
+	}
+
+	/**
+	 * Returns every capacity in this profile, smallest first.
+	 *
+	 * @return
+	 * 		The capacities with demand.
+	 */
+	public int[] getCapacities()
+	{
+		int[] capacities = new int[demands.size()];
+		int i = 0;
+		for (Integer capacity : demands.keySet()) {
+			capacities[i++] = capacity;
+		}
+		return capacities;
+	}
+
+	/**
+	 * Returns the memory it would take to cache a buffer for every unit of
+	 * demand in this profile.
+	 *
+	 * @return
+	 * 		The memory in bytes.
+	 */
+	public double getDemandMemory()
+	{
+		double memory = 0;
+		for (Entry<Integer, Long> e : demands.entrySet()) {
+			memory += (double)e.getKey() * e.getValue();
+		}
+		return memory;
+	}
+
+	/**
+	 * Returns whether this profile has no demand.
+	 *
+	 * @return
+	 * 		True if the profile is empty, otherwise false.
+	 */
+	public boolean isEmpty()
+	{
+		return demands.isEmpty();
+	}
+
+}
@@ -0,0 +1,165 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.magnos.util.AtomicStack;
+
+
+/**
+ * A lock-free thread-safe stack of ByteBuffers which can also push and pop
+ * whole batches of buffers. A batch is kept as a single round so pushing or
+ * popping it takes one atomic operation no matter how many buffers are in it.
+ * Buffers pushed individually are popped first, once they run out buffers are
+ * taken from the rounds.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class ByteBufferBatchStack extends ByteBufferStack
+{
+
+	// The batches of buffers pushed as a whole.
+	private final AtomicStack<ByteBufferRound> rounds = new AtomicStack<ByteBufferRound>();
+
+	// The number of buffers in all rounds.
+	private final AtomicInteger batched = new AtomicInteger();
+
+
+	/**
+	 * Pops a buffer, taking one from a round if no buffers were pushed
+	 * individually.
+	 *
+	 * @return
+	 * 		The buffer popped, or null if the stack is empty.
+	 */
+	@Override
+	public ByteBuffer pop()
+	{
+		ByteBuffer buffer = super.pop();
+
+		if (buffer == null)
+		{
+			ByteBufferRound round = rounds.pop();
+			if (round != null) {
+				batched.decrementAndGet();
+				buffer = round.pop();
+				// The rest of the round goes back as a whole.
+				if (!round.isEmpty()) {
+					rounds.push(round);
+				}
+			}
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Pushes the given range of buffers as a single round.
+	 *
+	 * @param buffers
+	 * 		The array of buffers to push.
+	 * @param from
+	 * 		The index of the first buffer to push.
+	 * @param to
+	 * 		The index after the last buffer to push.
+	 */
+	public void pushAll(ByteBuffer[] buffers, int from, int to)
+	{
+		if (to - from == 1) {
+			push(buffers[from]);
+		}
+		else if (to > from) {
+			batched.addAndGet(to - from);
+			rounds.push(new ByteBufferRound(buffers, from, to));
+		}
+	}
+
+	/**
+	 * Pops up to the given number of buffers into an array. Whole rounds are
+	 * taken first, what's left of a round larger than needed is pushed back.
+	 *
+	 * @param out
+	 * 		The array to place the buffers popped in.
+	 * @param offset
+	 * 		The index in the array of the first buffer popped.
+	 * @param count
+	 * 		The maximum number of buffers to pop.
+	 * @return
+	 * 		The number of buffers popped.
+	 */
+	public int popAll(ByteBuffer[] out, int offset, int count)
+	{
+		int popped = 0;
+		ByteBufferRound round;
+
+		while (popped < count && (round = rounds.pop()) != null)
+		{
+			popped += round.popAll(out, offset + popped, count - popped);
+
+			if (!round.isEmpty()) {
+				rounds.push(round);
+			}
+		}
+
+		if (popped > 0) {
+			batched.addAndGet(-popped);
+		}
+
+		ByteBuffer buffer;
+		while (popped < count && (buffer = super.pop()) != null) {
+			out[offset + popped++] = buffer;
+		}
+
+		return popped;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ByteBuffer peek()
+	{
+		ByteBuffer buffer = super.peek();
+
+		if (buffer == null) {
+			ByteBufferRound round = rounds.peek();
+			if (round != null) {
+				buffer = round.peek();
+			}
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Returns the number of buffers in the stack, including those in rounds.
+	 * This traverses the stack and is only an estimate when the stack is
+	 * modified concurrently.
+	 *
+	 * @return
+	 * 		The number of buffers in the stack.
+	 */
+	@Override
+	public int size()
+	{
+		return super.size() + batched.get();
+	}
+
+}
@@ -0,0 +1,255 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * A small stash of ByteBuffers for each size class of a factory. A magazine is
+ * owned by a single thread and therefore is NOT thread-safe, it exists so the
+ * owning thread can allocate and free buffers without touching any shared
+ * state. When a size class in the magazine runs dry or overflows, buffers are
+ * exchanged with the factory in rounds of a fixed size.
+ *
+ * A magazine may instead be shared by the threads of a stripe, in which case
+ * a thread must acquire the magazine before using it and release it after.
+ * Acquiring never blocks, a thread which finds the magazine in use goes to
+ * the factory instead.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class ByteBufferMagazine
+{
+
+	// The buffers in the magazine by size class.
+	private final ByteBuffer[][] buffers;
+
+	// The number of buffers in each size class.
+	private final int[] counts;
+
+	// The number of buffers exchanged with the factory at once.
+	private final int roundSize;
+
+	// Whether a thread has acquired this magazine, when it's shared.
+	private final AtomicBoolean acquired = new AtomicBoolean();
+
+	// The number of times the factory was cleared when this magazine was last
+	// emptied or loaded.
+	private int generation;
+
+
+	/**
+	 * Instantiates a new ByteBufferMagazine.
+	 *
+	 * @param classes
+	 * 		The number of size classes in the magazine.
+	 * @param roundSize
+	 * 		The number of buffers exchanged with the factory at once. Each size
+	 * 		class can hold at most twice this many buffers.
+	 */
+	public ByteBufferMagazine(int classes, int roundSize)
+	{
+		this.buffers = new ByteBuffer[classes][roundSize << 1];
+		this.counts = new int[classes];
+		this.roundSize = roundSize;
+	}
+
+	/**
+	 * Acquires this magazine for the current thread if no other thread has.
+	 *
+	 * @return
+	 * 		True if the magazine was acquired, false if it's in use.
+	 */
+	public boolean tryAcquire()
+	{
+		return !acquired.get() && acquired.compareAndSet(false, true);
+	}
+
+	/**
+	 * Releases this magazine so another thread can acquire it.
+	 */
+	public void release()
+	{
+		acquired.set(false);
+	}
+
+	/**
+	 * Pops a buffer from the given size class.
+	 *
+	 * @param index
+	 * 		The index of the size class.
+	 * @return
+	 * 		The buffer popped or null if the size class is empty.
+	 */
+	public ByteBuffer pop(int index)
+	{
+		int count = counts[index];
+		if (count == 0) {
+			return null;
+		}
+
+		ByteBuffer[] stash = buffers[index];
+		ByteBuffer buffer = stash[--count];
+		stash[count] = null;
+		counts[index] = count;
+
+		return buffer;
+	}
+
+	/**
+	 * Pushes a buffer onto the given size class.
+	 *
+	 * @param index
+	 * 		The index of the size class.
+	 * @param buffer
+	 * 		The buffer to push.
+	 * @return
+	 * 		True if the buffer was added, false if the size class is full.
+	 */
+	public boolean push(int index, ByteBuffer buffer)
+	{
+		int count = counts[index];
+		ByteBuffer[] stash = buffers[index];
+		if (count == stash.length) {
+			return false;
+		}
+
+		stash[count] = buffer;
+		counts[index] = count + 1;
+
+		return true;
+	}
+
+	/**
+	 * Loads up to the given number of buffers from a round taken from the
+	 * factory into the given size class. Buffers which aren't loaded are left
+	 * in the round.
+	 *
+	 * @param index
+	 * 		The index of the size class.
+	 * @param round
+	 * 		The round to take the buffers from.
+	 * @param max
+	 * 		The maximum number of buffers to load.
+	 * @return
+	 * 		The number of buffers loaded.
+	 */
+	public int load(int index, ByteBufferRound round, int max)
+	{
+		int count = counts[index];
+		int loaded = round.popAll(buffers[index], count, Math.min(max, buffers[index].length - count));
+		counts[index] = count + loaded;
+
+		return loaded;
+	}
+
+	/**
+	 * Unloads a round of buffers from the given size class so they can be
+	 * returned to the factory. The oldest buffers in the size class are
+	 * unloaded first so the most recently freed (and likely warmest) buffers
+	 * stay with the thread.
+	 *
+	 * @param index
+	 * 		The index of the size class.
+	 * @return
+	 * 		The round of buffers unloaded, or null if the size class is empty.
+	 */
+	public ByteBufferRound unload(int index)
+	{
+		int count = counts[index];
+		if (count == 0) {
+			return null;
+		}
+
+		int unloaded = Math.min(count, roundSize);
+		int kept = count - unloaded;
+		ByteBuffer[] stash = buffers[index];
+		ByteBuffer[] round = new ByteBuffer[unloaded];
+
+		System.arraycopy(stash, 0, round, 0, unloaded);
+		System.arraycopy(stash, unloaded, stash, 0, kept);
+		for (int i = kept; i < count; i++) {
+			stash[i] = null;
+		}
+		counts[index] = kept;
+
+		return new ByteBufferRound(round);
+	}
+
+	/**
+	 * Returns the number of buffers in the given size class.
+	 *
+	 * @param index
+	 * 		The index of the size class.
+	 * @return
+	 * 		The number of buffers.
+	 */
+	public int size(int index)
+	{
+		return counts[index];
+	}
+
+	/**
+	 * Returns the number of times the factory was cleared when this magazine
+	 * was last emptied or loaded.
+	 *
+	 * @return
+	 * 		The generation of the buffers in this magazine.
+	 */
+	public int getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * Sets the number of times the factory was cleared when this magazine was
+	 * last emptied or loaded.
+	 *
+	 * @param generation
+	 * 		The generation of the buffers in this magazine.
+	 */
+	public void setGeneration(int generation)
+	{
+		this.generation = generation;
+	}
+
+	/**
+	 * Returns the number of buffers exchanged with the factory at once.
+	 *
+	 * @return
+	 * 		The number of buffers in a round.
+	 */
+	public int getRoundSize()
+	{
+		return roundSize;
+	}
+
+	/**
+	 * Returns the number of size classes in this magazine.
+	 *
+	 * @return
+	 * 		The number of size classes.
+	 */
+	public int getClasses()
+	{
+		return counts.length;
+	}
+
+}
@@ -0,0 +1,148 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A batch of ByteBuffers kept on a shared stack as a whole. Buffers are taken
+ * in order by moving a cursor, so taking part of a round and pushing the rest
+ * back never copies the remaining buffers.
+ *
+ * A round is NOT thread-safe, only the thread which popped it off a shared
+ * stack may use it until it's pushed back.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class ByteBufferRound
+{
+
+	// The buffers in the round, those before next have been taken.
+	private final ByteBuffer[] buffers;
+
+	// The index of the next buffer to take.
+	private int next;
+
+
+	/**
+	 * Instantiates a new ByteBufferRound which takes ownership of the given
+	 * array of buffers.
+	 *
+	 * @param buffers
+	 * 		The buffers in the round, none of them may be null.
+	 */
+	public ByteBufferRound(ByteBuffer[] buffers)
+	{
+		this.buffers = buffers;
+	}
+
+	/**
+	 * Instantiates a new ByteBufferRound with a copy of the given range of
+	 * buffers.
+	 *
+	 * @param buffers
+	 * 		The array of buffers to copy.
+	 * @param from
+	 * 		The index of the first buffer in the round.
+	 * @param to
+	 * 		The index after the last buffer in the round.
+	 */
+	public ByteBufferRound(ByteBuffer[] buffers, int from, int to)
+	{
+		this.buffers = new ByteBuffer[to - from];
+
+		System.arraycopy(buffers, from, this.buffers, 0, to - from);
+	}
+
+	/**
+	 * Takes a buffer from the round.
+	 *
+	 * @return
+	 * 		The buffer taken, or null if the round is empty.
+	 */
+	public ByteBuffer pop()
+	{
+		if (next == buffers.length) {
+			return null;
+		}
+
+		ByteBuffer buffer = buffers[next];
+		buffers[next++] = null;
+
+		return buffer;
+	}
+
+	/**
+	 * Takes up to the given number of buffers from the round into an array.
+	 *
+	 * @param out
+	 * 		The array to place the buffers taken in.
+	 * @param offset
+	 * 		The index in the array of the first buffer taken.
+	 * @param max
+	 * 		The maximum number of buffers to take.
+	 * @return
+	 * 		The number of buffers taken.
+	 */
+	public int popAll(ByteBuffer[] out, int offset, int max)
+	{
+		int taken = Math.min(buffers.length - next, max);
+
+		System.arraycopy(buffers, next, out, offset, taken);
+		for (int i = 0; i < taken; i++) {
+			buffers[next++] = null;
+		}
+
+		return taken;
+	}
+
+	/**
+	 * Returns the next buffer taken from the round without taking it.
+	 *
+	 * @return
+	 * 		The next buffer, or null if the round is empty.
+	 */
+	public ByteBuffer peek()
+	{
+		return (next == buffers.length ? null : buffers[next]);
+	}
+
+	/**
+	 * Returns the number of buffers left in the round.
+	 *
+	 * @return
+	 * 		The number of buffers left.
+	 */
+	public int size()
+	{
+		return buffers.length - next;
+	}
+
+	/**
+	 * Returns whether every buffer has been taken from the round.
+	 *
+	 * @return
+	 * 		True if the round is empty, otherwise false.
+	 */
+	public boolean isEmpty()
+	{
+		return (next == buffers.length);
+	}
+
+}
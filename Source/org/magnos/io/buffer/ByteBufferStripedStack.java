@@ -0,0 +1,174 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A lock-free thread-safe stack of ByteBuffers which is split into several
+ * stripes to reduce contention. Each thread pushes to and pops from its home
+ * stripe (chosen by a probe of the thread) and only when its home stripe is
+ * empty does it look at the other stripes. This is not a strict stack across
+ * threads, but a single thread will always see its own buffers in LIFO order.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class ByteBufferStripedStack
+{
+
+	// The stripes of the stack.
+	private final ByteBufferStack[] stripes;
+
+	// The mask used to turn a probe into a stripe index.
+	private final int mask;
+
+
+	/**
+	 * Instantiates a new ByteBufferStripedStack with a stripe for each
+	 * available processor.
+	 */
+	public ByteBufferStripedStack()
+	{
+		this(getDefaultStripes());
+	}
+
+	/**
+	 * Instantiates a new ByteBufferStripedStack.
+	 *
+	 * @param stripes
+	 * 		The minimum number of stripes, this is rounded up to the next power
+	 * 		of 2.
+	 */
+	public ByteBufferStripedStack(int stripes)
+	{
+		int count = 1;
+		while (count < stripes) {
+			count <<= 1;
+		}
+
+		this.stripes = new ByteBufferStack[count];
+		for (int i = 0; i < count; i++) {
+			this.stripes[i] = new ByteBufferStack();
+		}
+		this.mask = count - 1;
+	}
+
+	/**
+	 * Returns the default number of stripes, which is the number of available
+	 * processors.
+	 *
+	 * @return
+	 * 		The default number of stripes.
+	 */
+	public static int getDefaultStripes()
+	{
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Returns a probe for the current thread. The probe is a well mixed hash
+	 * of the threads id so neighboring threads land on different stripes.
+	 *
+	 * @return
+	 * 		The probe of the current thread.
+	 */
+	public static int probe()
+	{
+		long id = Thread.currentThread().getId();
+		int h = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Pushes a buffer onto the current thread's stripe.
+	 *
+	 * @param buffer
+	 * 		The buffer to push.
+	 */
+	public void push(ByteBuffer buffer)
+	{
+		stripes[probe() & mask].push(buffer);
+	}
+
+	/**
+	 * Pops a buffer from the current thread's stripe, or if that stripe is
+	 * empty from the first non-empty stripe after it.
+	 *
+	 * @return
+	 * 		The buffer popped, or null if every stripe is empty.
+	 */
+	public ByteBuffer pop()
+	{
+		int home = probe() & mask;
+		ByteBuffer buffer = stripes[home].pop();
+
+		for (int i = 1; buffer == null && i < stripes.length; i++) {
+			buffer = stripes[(home + i) & mask].pop();
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Returns the buffer on top of the current thread's stripe, or if that
+	 * stripe is empty the top of the first non-empty stripe after it.
+	 *
+	 * @return
+	 * 		The buffer at the top, or null if every stripe is empty.
+	 */
+	public ByteBuffer peek()
+	{
+		int home = probe() & mask;
+		ByteBuffer buffer = stripes[home].peek();
+
+		for (int i = 1; buffer == null && i < stripes.length; i++) {
+			buffer = stripes[(home + i) & mask].peek();
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Returns the number of buffers across all stripes. This traverses each
+	 * stripe and is only an estimate when the stack is modified concurrently.
+	 *
+	 * @return
+	 * 		The number of buffers in the stack.
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			size += stripes[i].size();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the number of stripes in this stack.
+	 *
+	 * @return
+	 * 		The number of stripes.
+	 */
+	public int getStripes()
+	{
+		return stripes.length;
+	}
+
+}
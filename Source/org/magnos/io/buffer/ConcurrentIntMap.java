@@ -0,0 +1,178 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * A lock-free thread-safe map from int keys within a fixed range to values.
+ * The keys are never boxed, a key is split into a directory, a page within the
+ * directory, and an index within the page. Directories and pages are created
+ * the first time a key in them is added, so a map over the whole range of int
+ * only takes memory for the keys near the ones it holds. A get is three array
+ * reads and an add is at most three compare-and-sets. Values can be added but
+ * never removed.
+ *
+ * @author Philip Diffenderfer
+ *
+ * @param <V>
+ * 		The type of value in the map.
+ */
+public class ConcurrentIntMap<V>
+{
+
+	// The number of bits of a key which index within a page.
+	private static final int PAGE_BITS = 10;
+	private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+	// The number of bits of a key which index a page within a directory.
+	private static final int DIRECTORY_BITS = 10;
+	private static final int DIRECTORY_MASK = (1 << DIRECTORY_BITS) - 1;
+
+	// The smallest and largest key in the map.
+	private final int minKey;
+	private final int maxKey;
+
+	// The directories of pages of values, null until a key in them is added.
+	private final AtomicReferenceArray<AtomicReferenceArray<AtomicReferenceArray<V>>> directories;
+
+
+	/**
+	 * Instantiates a new ConcurrentIntMap.
+	 *
+	 * @param minKey
+	 * 		The smallest key in the map.
+	 * @param maxKey
+	 * 		The largest key in the map.
+	 */
+	public ConcurrentIntMap(int minKey, int maxKey)
+	{
+		long range = (long)maxKey - minKey + 1;
+
+		this.minKey = minKey;
+		this.maxKey = maxKey;
+		this.directories = new AtomicReferenceArray<AtomicReferenceArray<AtomicReferenceArray<V>>>((int)((range - 1) >> (PAGE_BITS + DIRECTORY_BITS)) + 1);
+	}
+
+	/**
+	 * Returns the value of the given key.
+	 *
+	 * @param key
+	 * 		The key of the value.
+	 * @return
+	 * 		The value of the key, or null if the key has no value or is out of
+	 * 		the range of the map.
+	 */
+	public V get(int key)
+	{
+		if (key < minKey || key > maxKey) {
+			return null;
+		}
+
+		int offset = key - minKey;
+		AtomicReferenceArray<AtomicReferenceArray<V>> directory = directories.get(offset >>> (PAGE_BITS + DIRECTORY_BITS));
+		if (directory == null) {
+			return null;
+		}
+
+		AtomicReferenceArray<V> page = directory.get((offset >>> PAGE_BITS) & DIRECTORY_MASK);
+
+		return (page == null ? null : page.get(offset & PAGE_MASK));
+	}
+
+	/**
+	 * Adds the given value to the key if the key has no value.
+	 *
+	 * @param key
+	 * 		The key of the value.
+	 * @param value
+	 * 		The value to add.
+	 * @return
+	 * 		The value of the key after the add, either the given value or the
+	 * 		value another thread added first.
+	 * @throws IndexOutOfBoundsException
+	 * 		The key is out of the range of the map.
+	 */
+	public V putIfAbsent(int key, V value)
+	{
+		if (key < minKey || key > maxKey) {
+			throw new IndexOutOfBoundsException("Key " + key + " is not between " + minKey + " and " + maxKey);
+		}
+
+		int offset = key - minKey;
+		int directoryIndex = offset >>> (PAGE_BITS + DIRECTORY_BITS);
+		AtomicReferenceArray<AtomicReferenceArray<V>> directory = directories.get(directoryIndex);
+
+		if (directory == null) {
+			directories.compareAndSet(directoryIndex, null, new AtomicReferenceArray<AtomicReferenceArray<V>>(1 << DIRECTORY_BITS));
+			directory = directories.get(directoryIndex);
+		}
+
+		int pageIndex = (offset >>> PAGE_BITS) & DIRECTORY_MASK;
+		AtomicReferenceArray<V> page = directory.get(pageIndex);
+
+		if (page == null) {
+			directory.compareAndSet(pageIndex, null, new AtomicReferenceArray<V>(1 << PAGE_BITS));
+			page = directory.get(pageIndex);
+		}
+
+		int index = offset & PAGE_MASK;
+		if (page.compareAndSet(index, null, value)) {
+			return value;
+		}
+
+		return page.get(index);
+	}
+
+	/**
+	 * Returns a list of every value in the map in order of their keys. Values
+	 * added while the list is built may or may not be in it.
+	 *
+	 * @return
+	 * 		The new list of values.
+	 */
+	public List<V> values()
+	{
+		List<V> values = new ArrayList<V>();
+
+		for (int i = 0; i < directories.length(); i++)
+		{
+			AtomicReferenceArray<AtomicReferenceArray<V>> directory = directories.get(i);
+			if (directory == null) {
+				continue;
+			}
+			for (int j = 0; j < directory.length(); j++)
+			{
+				AtomicReferenceArray<V> page = directory.get(j);
+				if (page != null) {
+					for (int k = 0; k < page.length(); k++) {
+						V value = page.get(k);
+						if (value != null) {
+							values.add(value);
+						}
+					}
+				}
+			}
+		}
+
+		return values;
+	}
+
+}
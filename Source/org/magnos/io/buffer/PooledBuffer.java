@@ -0,0 +1,224 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A reference counted handle to a ByteBuffer allocated from a BufferFactory.
+ * A PooledBuffer starts with a reference count of 1, every retain adds a
+ * reference and every release removes one. When the last reference is
+ * released the buffer is freed back to the factory it came from.
+ *
+ * Slices and duplicates of a PooledBuffer share the reference count of the
+ * buffer they were derived from and hold a reference of their own, so the
+ * same bytes can be handed to several consumers without copying; each
+ * consumer releases its handle when done and the buffer is returned once
+ * they all have.
+ *
+ * The count is thread-safe, the position and limit of a single handle are not.
+ * Give each consumer its own slice or duplicate when they read concurrently.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class PooledBuffer
+{
+
+	// The factory the buffer is freed to when the last reference is released.
+	private final BufferFactory factory;
+
+	// The buffer allocated from the factory, shared by all derived handles.
+	private final ByteBuffer root;
+
+	// The number of references to the buffer, shared by all derived handles.
+	private final AtomicInteger references;
+
+	// The view of the buffer this handle exposes.
+	private final ByteBuffer buffer;
+
+
+	/**
+	 * Instantiates a new PooledBuffer which takes ownership of the given
+	 * buffer. The buffer should not be freed to the factory by anything other
+	 * than this handle.
+	 *
+	 * @param factory
+	 * 		The factory the buffer was allocated from.
+	 * @param buffer
+	 * 		The buffer to wrap.
+	 */
+	public PooledBuffer(BufferFactory factory, ByteBuffer buffer)
+	{
+		this(factory, buffer, new AtomicInteger(1), buffer);
+	}
+
+	/**
+	 * Instantiates a new PooledBuffer derived from another.
+	 */
+	private PooledBuffer(BufferFactory factory, ByteBuffer root, AtomicInteger references, ByteBuffer buffer)
+	{
+		this.factory = factory;
+		this.root = root;
+		this.references = references;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Allocates a buffer from the given factory and wraps it in a PooledBuffer.
+	 *
+	 * @param factory
+	 * 		The factory to allocate from.
+	 * @param size
+	 * 		The size of the buffer to allocate.
+	 * @return
+	 * 		The PooledBuffer, or null if the factory could not allocate it.
+	 */
+	public static PooledBuffer allocate(BufferFactory factory, int size)
+	{
+		ByteBuffer buffer = factory.allocate(size);
+
+		return (buffer == null ? null : new PooledBuffer(factory, buffer));
+	}
+
+	/**
+	 * Adds a reference to the buffer.
+	 *
+	 * @return
+	 * 		This handle.
+	 * @throws IllegalStateException
+	 * 		The buffer has already been freed.
+	 */
+	public PooledBuffer retain()
+	{
+		for (;;)
+		{
+			int count = references.get();
+			if (count <= 0) {
+				throw new IllegalStateException("The buffer has already been freed");
+			}
+			if (references.compareAndSet(count, count + 1)) {
+				return this;
+			}
+		}
+	}
+
+	/**
+	 * Removes a reference to the buffer. If this was the last reference the
+	 * buffer is freed to its factory and must not be used anymore through this
+	 * or any derived handle.
+	 *
+	 * @return
+	 * 		True if this was the last reference and the buffer was freed.
+	 * @throws IllegalStateException
+	 * 		The buffer has already been freed.
+	 */
+	public boolean release()
+	{
+		for (;;)
+		{
+			int count = references.get();
+			if (count <= 0) {
+				throw new IllegalStateException("The buffer has already been freed");
+			}
+			if (references.compareAndSet(count, count - 1))
+			{
+				if (count == 1) {
+					factory.free(root);
+					return true;
+				}
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Returns a new handle to the bytes between the position and limit of this
+	 * handle. The new handle shares the reference count and holds a reference
+	 * of its own which must be released.
+	 *
+	 * @return
+	 * 		The new handle.
+	 * @throws IllegalStateException
+	 * 		The buffer has already been freed.
+	 */
+	public PooledBuffer slice()
+	{
+		retain();
+
+		return new PooledBuffer(factory, root, references, buffer.slice());
+	}
+
+	/**
+	 * Returns a new handle to the same bytes as this handle with an independent
+	 * position and limit. The new handle shares the reference count and holds a
+	 * reference of its own which must be released.
+	 *
+	 * @return
+	 * 		The new handle.
+	 * @throws IllegalStateException
+	 * 		The buffer has already been freed.
+	 */
+	public PooledBuffer duplicate()
+	{
+		retain();
+
+		return new PooledBuffer(factory, root, references, buffer.duplicate());
+	}
+
+	/**
+	 * Returns the buffer of this handle.
+	 *
+	 * @return
+	 * 		The reference to the buffer.
+	 * @throws IllegalStateException
+	 * 		The buffer has already been freed.
+	 */
+	public ByteBuffer getBuffer()
+	{
+		if (references.get() <= 0) {
+			throw new IllegalStateException("The buffer has already been freed");
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Returns the number of references to the buffer shared by this handle.
+	 *
+	 * @return
+	 * 		The number of references, 0 if the buffer has been freed.
+	 */
+	public int getReferences()
+	{
+		return references.get();
+	}
+
+	/**
+	 * Returns the factory the buffer is freed to.
+	 *
+	 * @return
+	 * 		The reference to the factory.
+	 */
+	public BufferFactory getFactory()
+	{
+		return factory;
+	}
+
+}
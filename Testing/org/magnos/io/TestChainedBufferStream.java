@@ -0,0 +1,433 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ScatteringByteChannel;
+
+import org.junit.Test;
+import org.magnos.io.ChainedBufferStream;
+import org.magnos.io.buffer.BufferFactory;
+import org.magnos.io.buffer.BufferFactoryDirect;
+import org.magnos.io.bytes.ByteReader;
+import org.magnos.io.bytes.ByteWriter;
+
+
+public class TestChainedBufferStream
+{
+
+	public final BufferFactory factory = new BufferFactoryDirect();
+
+
+	@Test
+	public void testGrow()
+	{
+		ChainedBufferStream bs = new ChainedBufferStream(null, factory, 8);
+		assertEquals( 1, bs.segments() );
+		assertEquals( 8, bs.capacity() );
+
+		bs.drain(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19}, 0, 20);
+
+		assertEquals( 20, bs.size() );
+		assertEquals( 3, bs.segments() );
+		assertEquals( 24, bs.capacity() );
+		assertEquals( 4, bs.remaining() );
+
+		ByteBuffer rd = bs.getReader(0);
+		assertEquals( 20, rd.remaining() );
+		for (int i = 0; i < 20; i++) {
+			assertEquals( i, rd.get() );
+		}
+	}
+
+	@Test
+	public void testSkip()
+	{
+		ChainedBufferStream bs = new ChainedBufferStream(null, factory, 8);
+		bs.drain(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19}, 0, 20);
+
+		// Within the first segment
+		bs.skip(3);
+		assertEquals( 17, bs.size() );
+		assertEquals( 3, bs.segments() );
+
+		// Releases the first segment
+		bs.skip(6);
+		assertEquals( 11, bs.size() );
+		assertEquals( 2, bs.segments() );
+		assertEquals( 9, bs.getReader(0).get() );
+
+		// Releases everything but one segment
+		bs.skip(100);
+		assertEquals( 0, bs.size() );
+		assertEquals( 1, bs.segments() );
+		assertEquals( 8, bs.remaining() );
+	}
+
+	@Test
+	public void testSync()
+	{
+		ChainedBufferStream bs = new ChainedBufferStream(null, factory, 8);
+		bs.drain(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11}, 0, 12);
+
+		ByteBuffer rd = bs.getReader(0);
+		for (int i = 0; i < 10; i++) {
+			assertEquals( i, rd.get() );
+		}
+		bs.sync(rd);
+
+		assertEquals( 2, bs.size() );
+		assertEquals( 1, bs.segments() );
+
+		rd = bs.getReader(0);
+		assertEquals( 10, rd.get() );
+		assertEquals( 11, rd.get() );
+	}
+
+	@Test
+	public void testWriterReader()
+	{
+		ChainedBufferStream bs = new ChainedBufferStream(null, factory, 8);
+		ByteWriter bw = new ByteWriter(bs);
+
+		// Values which span segments
+		bw.putByte((byte)1);
+		bw.putInt(0x01020304);
+		bw.putLong(0x05060708090A0B0CL);
+		bw.putShort((short)0x0D0E);
+		bw.putString("Hello World");
+		bw.putDouble(Math.PI);
+
+		assertTrue( bs.segments() > 1 );
+
+		ByteReader br = new ByteReader(bs);
+		assertEquals( 1, br.getByte() );
+		assertEquals( 0x01020304, br.getInt() );
+		assertEquals( 0x05060708090A0B0CL, br.getLong() );
+		assertEquals( 0x0D0E, br.getShort() );
+		assertEquals( "Hello World", br.getString() );
+		assertEquals( Math.PI, br.getDouble(), 0.0 );
+		assertEquals( 0, br.size() );
+		assertTrue( br.isValid() );
+
+		br.sync();
+		assertTrue( bs.isEmpty() );
+		assertEquals( 1, bs.segments() );
+	}
+
+	@Test
+	public void testLargeValue()
+	{
+		ChainedBufferStream bs = new ChainedBufferStream(null, factory, 8);
+		ByteWriter bw = new ByteWriter(bs);
+		bw.putInt(7);
+
+		// Written in place to a segment of its own
+		byte[] large = new byte[40];
+		for (int i = 0; i < large.length; i++) {
+			large[i] = (byte)i;
+		}
+		bw.putBytes(large);
+		bw.putInt(8);
+
+		assertEquals( 48, bs.size() );
+		assertEquals( 3, bs.segments() );
+		assertEquals( 56, bs.capacity() );
+
+		ByteReader br = new ByteReader(bs);
+		assertEquals( 7, br.getInt() );
+		for (int i = 0; i < large.length; i++) {
+			assertEquals( i, br.getByte() );
+		}
+		assertEquals( 8, br.getInt() );
+		assertTrue( br.isValid() );
+	}
+
+	@Test
+	public void testReaderBytes()
+	{
+		ChainedBufferStream bs = new ChainedBufferStream(null, factory, 8);
+		bs.drain(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11}, 0, 12);
+
+		// Bytes in the first segment are a view of it
+		ByteBuffer rd = bs.getReader(4);
+		assertEquals( 8, rd.remaining() );
+
+		// Only the bytes requested are gathered
+		bs.skip(6);
+		rd = bs.getReader(4);
+		assertEquals( 4, rd.remaining() );
+		for (int i = 6; i < 10; i++) {
+			assertEquals( i, rd.get() );
+		}
+
+		// Everything for a reader of unknown size
+		assertEquals( 6, bs.getReader(0).remaining() );
+	}
+
+	@Test
+	public void testOrder()
+	{
+		ChainedBufferStream bs = new ChainedBufferStream(null, factory, 8);
+		bs.order(ByteOrder.LITTLE_ENDIAN);
+
+		ByteWriter bw = new ByteWriter(bs);
+		bw.putInt(7);
+		bw.putInt(0x01020304);
+
+		assertEquals( 8, bs.size() );
+
+		ByteReader br = new ByteReader(bs);
+		assertEquals( 7, br.getInt() );
+		assertEquals( 0x01020304, br.getInt() );
+	}
+
+	@Test
+	public void testFill() throws IOException
+	{
+		ChainedBufferStream bs = new ChainedBufferStream(null, factory, 4);
+		bs.drain("Hello World\n".getBytes(), 0, 12);
+		assertEquals( 3, bs.segments() );
+
+		ByteBuffer result = ByteBuffer.allocate(7);
+		assertEquals( 7, bs.fill(result) );
+		assertEquals( 5, bs.size() );
+		assertEquals( 2, bs.segments() );
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals( 5, bs.fill(out) );
+		assertEquals( 0, bs.size() );
+
+		assertEquals( "Hello World\n", new String(result.array()) + out.toString() );
+	}
+
+	@Test
+	public void testFillGathering() throws IOException
+	{
+		ChainedBufferStream bs = new ChainedBufferStream(null, factory, 4);
+		bs.drain("Hello World\n".getBytes(), 0, 12);
+		assertEquals( 3, bs.segments() );
+
+		// All three segments go out in a single write
+		GatheringChannel out = new GatheringChannel(100);
+		assertEquals( 12, bs.fill(out) );
+		assertEquals( 1, out.writes );
+		assertEquals( "Hello World\n", out.data.toString() );
+		assertEquals( 0, bs.size() );
+		assertEquals( 1, bs.segments() );
+
+		// A busy channel leaves the rest in the stream
+		bs.drain("Hello World\n".getBytes(), 0, 12);
+		out = new GatheringChannel(7);
+		assertEquals( 7, bs.fill(out) );
+		assertEquals( 5, bs.size() );
+		assertEquals( 2, bs.segments() );
+		assertEquals( 'o', bs.getReader(0).get() );
+	}
+
+	@Test
+	public void testFillPipe() throws IOException
+	{
+		Pipe pipe = Pipe.open();
+		pipe.source().configureBlocking(false);
+		pipe.sink().configureBlocking(false);
+
+		ChainedBufferStream bs = new ChainedBufferStream(null, factory, 8);
+		ByteWriter bw = new ByteWriter(bs);
+		bw.putInt(12);
+		bw.putString("header");
+		bw.putLong(1234567890123L);
+		int size = bs.size();
+
+		assertEquals( size, bs.fill(pipe.sink()) );
+		assertTrue( bs.isEmpty() );
+
+		ByteBuffer in = ByteBuffer.allocate(size);
+		while (in.hasRemaining()) {
+			pipe.source().read(in);
+		}
+		in.flip();
+
+		ChainedBufferStream copy = new ChainedBufferStream(null, factory, 8);
+		copy.drain(in);
+		ByteReader br = new ByteReader(copy);
+		assertEquals( 12, br.getInt() );
+		assertEquals( "header", br.getString() );
+		assertEquals( 1234567890123L, br.getLong() );
+
+		pipe.sink().close();
+		pipe.source().close();
+	}
+
+	private class GatheringChannel implements GatheringByteChannel
+	{
+		StringBuilder data = new StringBuilder();
+		int writes;
+		int capacity;
+
+		public GatheringChannel(int capacity) {
+			this.capacity = capacity;
+		}
+		public boolean isOpen() {
+			return true;
+		}
+		public void close() throws IOException {
+		}
+		public int write(ByteBuffer src) throws IOException {
+			return (int)write(new ByteBuffer[] {src}, 0, 1);
+		}
+		public long write(ByteBuffer[] srcs) throws IOException {
+			return write(srcs, 0, srcs.length);
+		}
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			writes++;
+			long written = 0;
+			for (int i = offset; i < offset + length; i++) {
+				while (capacity > 0 && srcs[i].hasRemaining()) {
+					data.append((char)srcs[i].get());
+					capacity--;
+					written++;
+				}
+			}
+			return written;
+		}
+	}
+
+	@Test
+	public void testDrainScattering() throws IOException
+	{
+		ChainedBufferStream bs = new ChainedBufferStream(null, factory, 8);
+
+		// The first burst grows the read until the channel is empty
+		ScatteringChannel in = new ScatteringChannel(100);
+		assertEquals( 100, bs.drain(in) );
+		assertEquals( 4, in.reads );
+		assertEquals( 100, bs.size() );
+		assertEquals( 13, bs.segments() );
+
+		ByteBuffer rd = bs.getReader(0);
+		for (int i = 0; i < 100; i++) {
+			assertEquals( (byte)i, rd.get() );
+		}
+		bs.clear();
+
+		// A burst of the same size is read at once
+		in = new ScatteringChannel(100);
+		assertEquals( 100, bs.drain(in) );
+		assertEquals( 1, in.reads );
+		assertEquals( 13, bs.segments() );
+		bs.clear();
+
+		// Segments which aren't read into go back to the factory
+		in = new ScatteringChannel(0);
+		assertEquals( 0, bs.drain(in) );
+		assertEquals( 1, in.reads );
+		assertEquals( 1, bs.segments() );
+
+		// Space reserved beforehand is kept
+		bs.pad(20);
+		assertEquals( 3, bs.segments() );
+		in = new ScatteringChannel(4);
+		assertEquals( 4, bs.drain(in) );
+		assertEquals( 3, bs.segments() );
+		assertEquals( 20, bs.remaining() );
+	}
+
+	@Test
+	public void testDrainPipe() throws IOException
+	{
+		Pipe pipe = Pipe.open();
+		pipe.source().configureBlocking(false);
+
+		ByteBuffer out = ByteBuffer.allocate(64);
+		out.putInt(3);
+		out.putLong(-1L);
+		for (int i = 0; i < 13; i++) {
+			out.putInt(i);
+		}
+		out.flip();
+		pipe.sink().write(out);
+
+		ChainedBufferStream bs = new ChainedBufferStream(null, factory, 8);
+		assertEquals( 64, bs.drain(pipe.source()) );
+		assertEquals( 64, bs.size() );
+
+		ByteReader br = new ByteReader(bs);
+		assertEquals( 3, br.getInt() );
+		assertEquals( -1L, br.getLong() );
+		for (int i = 0; i < 13; i++) {
+			assertEquals( i, br.getInt() );
+		}
+
+		pipe.sink().close();
+		assertEquals( -1, bs.drain(pipe.source()) );
+		pipe.source().close();
+	}
+
+	private class ScatteringChannel implements ScatteringByteChannel
+	{
+		int reads;
+		int available;
+		int index;
+
+		public ScatteringChannel(int available) {
+			this.available = available;
+		}
+		public boolean isOpen() {
+			return true;
+		}
+		public void close() throws IOException {
+		}
+		public int read(ByteBuffer dst) throws IOException {
+			return (int)read(new ByteBuffer[] {dst}, 0, 1);
+		}
+		public long read(ByteBuffer[] dsts) throws IOException {
+			return read(dsts, 0, dsts.length);
+		}
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			reads++;
+			long read = 0;
+			for (int i = offset; i < offset + length; i++) {
+				while (index < available && dsts[i].hasRemaining()) {
+					dsts[i].put((byte)index++);
+					read++;
+				}
+			}
+			return read;
+		}
+	}
+
+	@Test
+	public void testFree()
+	{
+		ChainedBufferStream bs = new ChainedBufferStream(null, factory, 8);
+		bs.pad(20);
+		assertEquals( 3, bs.segments() );
+
+		bs.free();
+		assertTrue( bs.isFree() );
+		assertEquals( 0, bs.segments() );
+	}
+
+}
@@ -0,0 +1,214 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+
+import org.junit.Test;
+import org.magnos.io.RingBufferStream;
+import org.magnos.io.buffer.BufferFactory;
+import org.magnos.io.buffer.BufferFactoryDirect;
+import org.magnos.io.bytes.ByteReader;
+import org.magnos.io.bytes.ByteWriter;
+
+
+public class TestRingBufferStream
+{
+
+	public final BufferFactory factory = new BufferFactoryDirect();
+
+
+	@Test
+	public void testWrap()
+	{
+		RingBufferStream bs = new RingBufferStream(null, factory, 16, false);
+		bs.drain(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11}, 0, 12);
+
+		// Only moves the read index
+		bs.skip(10);
+		assertEquals( 2, bs.size() );
+		assertEquals( 12, bs.position() );
+
+		// Wraps around the end
+		bs.drain(new byte[] {12, 13, 14, 15, 16, 17, 18, 19}, 0, 8);
+		assertEquals( 10, bs.size() );
+		assertEquals( 4, bs.position() );
+		assertEquals( 16, bs.capacity() );
+
+		ByteBuffer[] readers = bs.readers();
+		assertEquals( 2, readers.length );
+		assertEquals( 6, readers[0].remaining() );
+		assertEquals( 4, readers[1].remaining() );
+
+		ByteBuffer[] writers = bs.writers();
+		assertEquals( 1, writers.length );
+		assertEquals( 6, writers[0].remaining() );
+
+		ByteBuffer rd = bs.getReader(0);
+		assertEquals( 10, rd.remaining() );
+		for (int i = 10; i < 20; i++) {
+			assertEquals( i, rd.get() );
+		}
+	}
+
+	@Test
+	public void testWriterReader()
+	{
+		RingBufferStream bs = new RingBufferStream(null, factory, 16, false);
+		ByteWriter bw = new ByteWriter(bs);
+		bw.putLong(1L);
+		bw.putInt(2);
+		bw.putShort((short)3);
+		bs.skip(13);
+
+		// A value which spans the wrap point
+		bw.putInt(0x01020304);
+		bw.putLong(0x05060708090A0B0CL);
+		assertEquals( 13, bs.size() );
+		assertEquals( 10, bs.position() );
+
+		ByteReader br = new ByteReader(bs);
+		assertEquals( 3, br.getByte() );
+		assertEquals( 0x01020304, br.getInt() );
+		assertEquals( 0x05060708090A0B0CL, br.getLong() );
+		assertTrue( br.isValid() );
+
+		br.sync();
+		assertTrue( bs.isEmpty() );
+		assertEquals( 0, bs.position() );
+	}
+
+	@Test
+	public void testWriters()
+	{
+		RingBufferStream bs = new RingBufferStream(null, factory, 8, false);
+		bs.drain(new byte[] {0, 1, 2, 3, 4, 5}, 0, 6);
+		bs.skip(4);
+
+		ByteBuffer[] writers = bs.writers();
+		assertEquals( 2, writers.length );
+		assertEquals( 2, writers[0].remaining() );
+		assertEquals( 4, writers[1].remaining() );
+
+		writers[0].put((byte)6).put((byte)7);
+		writers[1].put((byte)8);
+		bs.advance(3);
+
+		ByteBuffer result = ByteBuffer.allocate(8);
+		assertEquals( 5, bs.fill(result) );
+		assertArrayEquals( new byte[] {4, 5, 6, 7, 8, 0, 0, 0}, result.array() );
+	}
+
+	@Test(expected = BufferOverflowException.class)
+	public void testFixed()
+	{
+		RingBufferStream bs = new RingBufferStream(null, factory, 8, false);
+		assertEquals( 6, bs.drain(ByteBuffer.allocate(6)) );
+		assertEquals( 2, bs.drain(ByteBuffer.allocate(6)) );
+		assertEquals( -1, bs.drain(new byte[4], 0, 4) );
+
+		new ByteWriter(bs).putInt(1);
+	}
+
+	@Test
+	public void testGrow()
+	{
+		RingBufferStream bs = new RingBufferStream(null, factory, 8, true);
+		bs.drain(new byte[] {0, 1, 2, 3, 4, 5}, 0, 6);
+		bs.skip(4);
+		bs.drain(new byte[] {6, 7, 8, 9, 10, 11}, 0, 6);
+		assertEquals( 8, bs.capacity() );
+
+		// The wrapped data is copied in order to the start of the larger buffer
+		bs.drain(new byte[] {12, 13, 14}, 0, 3);
+		assertEquals( 16, bs.capacity() );
+		assertEquals( 11, bs.size() );
+
+		ByteBuffer rd = bs.getReader(0);
+		for (int i = 4; i < 15; i++) {
+			assertEquals( i, rd.get() );
+		}
+	}
+
+	@Test
+	public void testFillStream() throws IOException
+	{
+		RingBufferStream bs = new RingBufferStream(null, factory, 8, false);
+		bs.drain("World".getBytes(), 0, 5);
+		bs.skip(4);
+		bs.drain("Hello!".getBytes(), 0, 6);
+		assertEquals( 2, bs.readers().length );
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals( 7, bs.fill(out) );
+		assertEquals( "dHello!", out.toString() );
+		assertTrue( bs.isEmpty() );
+	}
+
+	@Test
+	public void testPipe() throws IOException
+	{
+		Pipe pipe = Pipe.open();
+		pipe.source().configureBlocking(false);
+		pipe.sink().configureBlocking(false);
+
+		RingBufferStream out = new RingBufferStream(null, factory, 16, false);
+		out.drain("0123456789ab".getBytes(), 0, 12);
+		out.skip(10);
+		out.drain("Hello World\n".getBytes(), 0, 12);
+		assertEquals( 2, out.readers().length );
+
+		// Both parts go out at once
+		assertEquals( 14, out.fill(pipe.sink()) );
+		assertTrue( out.isEmpty() );
+
+		RingBufferStream in = new RingBufferStream(null, factory, 16, false);
+		in.drain("0123456789cd".getBytes(), 0, 12);
+		in.skip(10);
+		assertEquals( 2, in.writers().length );
+
+		// Both parts are read into at once
+		assertEquals( 14, in.drain(pipe.source()) );
+		assertEquals( 2, in.readers().length );
+		assertEquals( 0, in.remaining() );
+
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		in.fill(result);
+		assertEquals( "cdabHello World\n", result.toString() );
+
+		pipe.sink().close();
+		pipe.source().close();
+	}
+
+	@Test
+	public void testFree()
+	{
+		RingBufferStream bs = new RingBufferStream(null, factory);
+		assertTrue( bs.isGrowable() );
+		assertFalse( bs.isFree() );
+
+		bs.free();
+		assertTrue( bs.isFree() );
+	}
+
+}
@@ -0,0 +1,71 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.magnos.io.buffer.BufferCleaner;
+
+
+public class TestBufferCleaner
+{
+
+	@Test
+	public void testClean()
+	{
+		// Java 9 and up clean through Unsafe.invokeCleaner
+		assertTrue( BufferCleaner.isSupported() );
+		assertEquals( "unsafe", BufferCleaner.getStrategy() );
+
+		// Heap buffers are never cleaned
+		assertFalse( BufferCleaner.clean(ByteBuffer.allocate(16)) );
+
+		// Views don't own their memory
+		ByteBuffer b = ByteBuffer.allocateDirect(16);
+		assertFalse( BufferCleaner.clean(b.slice()) );
+		assertFalse( BufferCleaner.clean(b.duplicate()) );
+
+		assertTrue( BufferCleaner.clean(b) );
+	}
+
+	@Test
+	public void testMemoryReturned()
+	{
+		BufferPoolMXBean direct = null;
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals("direct")) {
+				direct = pool;
+			}
+		}
+
+		long before = direct.getMemoryUsed();
+		ByteBuffer b = ByteBuffer.allocateDirect(1 << 20);
+		assertEquals( before + (1 << 20), direct.getMemoryUsed() );
+
+		// Freed without waiting on the garbage collector
+		BufferFactoryFixed bf = new BufferFactoryFixed(1 << 20, 1);
+		bf.setCapacity(0);
+		assertFalse( bf.free(b) );
+		assertEquals( before, direct.getMemoryUsed() );
+	}
+
+}
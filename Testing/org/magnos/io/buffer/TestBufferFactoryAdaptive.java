@@ -0,0 +1,199 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+import org.magnos.io.buffer.BufferFactoryAdaptive;
+
+
+public class TestBufferFactoryAdaptive
+{
+
+	// Recomputes on the allocating thread so the tests are deterministic.
+	private static final Executor INLINE = new Executor() {
+		public void execute(Runnable task) {
+			task.run();
+		}
+	};
+
+	@Test
+	public void testAllocate()
+	{
+		// Two classes between 8 and 1024, recomputed every 10 requests
+		BufferFactoryAdaptive bf = new BufferFactoryAdaptive(8, 1024, 2, 10, 1);
+		ByteBuffer b;
+		
+		assertArrayEquals( new int[] {8, 1024}, bf.getSizeClasses() );
+		
+		// Below minSize
+		b = bf.allocate(6);
+		assertEquals( 6, b.capacity() );
+		assertFalse( b.isDirect() );
+		
+		// Between classes
+		b = bf.allocate(100);
+		assertEquals( 1024, b.capacity() );
+		assertEquals( 100, b.remaining() );
+		assertTrue( b.isDirect() );
+		
+		// Above maxSize
+		b = bf.allocate(1025);
+		assertEquals( 1025, b.capacity() );
+		assertFalse( b.isDirect() );
+	}
+	
+	@Test
+	public void testAdapt()
+	{
+		BufferFactoryAdaptive bf = new BufferFactoryAdaptive(8, 1024, 2, 10, 1);
+		bf.setExecutor(INLINE);
+		
+		// A buffer of the initial classes is cached
+		ByteBuffer a = bf.allocate(96);
+		assertTrue( bf.free(a) );
+		assertEquals( 1024, bf.getSize() );
+		
+		// The tenth sample computes the classes from the requests
+		for (int i = 0; i < 4; i++) {
+			bf.allocate(96);
+		}
+		for (int i = 0; i < 5; i++) {
+			bf.allocate(200);
+		}
+		assertArrayEquals( new int[] {96, 200}, bf.getSizeClasses() );
+		
+		// The cached buffer is larger than every class, it was freed
+		assertEquals( 0, bf.getSize() );
+		
+		ByteBuffer b = bf.allocate(90);
+		assertEquals( 96, b.capacity() );
+		assertTrue( b.isDirect() );
+		
+		ByteBuffer c = bf.allocate(150);
+		assertEquals( 200, c.capacity() );
+		assertTrue( c.isDirect() );
+		
+		// Larger than the largest class
+		ByteBuffer d = bf.allocate(201);
+		assertFalse( d.isDirect() );
+		
+		// A cached buffer migrates to the largest class it can serve, the
+		// last 10 samples are 96, 152, 208, 64 x4 and 256 x3
+		assertTrue( bf.free(c) );
+		for (int i = 0; i < 4; i++) {
+			bf.allocate(64);
+		}
+		for (int i = 0; i < 3; i++) {
+			bf.allocate(256);
+		}
+		assertArrayEquals( new int[] {96, 256}, bf.getSizeClasses() );
+		assertEquals( 200, bf.getSize() );
+		assertTrue( bf.allocate(60) == c );
+		assertEquals( 0, bf.getSize() );
+	}
+	
+	@Test
+	public void testExecutor()
+	{
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		BufferFactoryAdaptive bf = new BufferFactoryAdaptive(8, 1024, 2, 4, 1);
+		bf.setExecutor(new Executor() {
+			public void execute(Runnable task) {
+				tasks.add(task);
+			}
+		});
+		
+		ByteBuffer a = bf.allocate(100);
+		
+		// The allocating thread only hands the recompute off
+		bf.allocate(16);
+		bf.allocate(16);
+		bf.allocate(32);
+		assertEquals( 1, tasks.size() );
+		assertArrayEquals( new int[] {8, 1024}, bf.getSizeClasses() );
+		
+		// Freed to the old classes, then migrated
+		assertTrue( bf.free(a) );
+		tasks.get(0).run();
+		assertArrayEquals( new int[] {32, 104}, bf.getSizeClasses() );
+		assertEquals( 0, bf.getSize() );
+		
+		// The shared trimmer by default
+		bf.setExecutor(null);
+		for (int i = 0; i < 4; i++) {
+			bf.allocate(64);
+		}
+		for (int i = 0; i < 200 && bf.getSizeClasses()[0] != 64; i++) {
+			try {
+				Thread.sleep(5);
+			}
+			catch (InterruptedException e) {
+			}
+		}
+		assertArrayEquals( new int[] {64}, bf.getSizeClasses() );
+	}
+	
+	@Test
+	public void testRejected()
+	{
+		BufferFactoryAdaptive bf = new BufferFactoryAdaptive(8, 1024, 2, 4, 1);
+		bf.setExecutor(new Executor() {
+			public void execute(Runnable task) {
+				throw new RejectedExecutionException();
+			}
+		});
+		
+		// A rejected recompute runs on the allocating thread
+		for (int i = 0; i < 4; i++) {
+			bf.allocate(64);
+		}
+		assertArrayEquals( new int[] {64}, bf.getSizeClasses() );
+		
+		for (int i = 0; i < 4; i++) {
+			bf.allocate(128);
+		}
+		assertArrayEquals( new int[] {128}, bf.getSizeClasses() );
+	}
+	
+	@Test
+	public void testFill()
+	{
+		BufferFactoryAdaptive bf = new BufferFactoryAdaptive(8, 1024, 2, 4, 1);
+		bf.setExecutor(INLINE);
+		
+		// Size 16 is requested three times as often as 32
+		bf.allocate(16);
+		bf.allocate(16);
+		bf.allocate(16);
+		bf.allocate(32);
+		assertArrayEquals( new int[] {16, 32}, bf.getSizeClasses() );
+		
+		// 6 buffers of 16 and 2 of 32 fit in 160 bytes
+		bf.setCapacity(160);
+		assertEquals( 160, bf.fill() );
+		assertEquals( 160, bf.clear() );
+	}
+	
+}
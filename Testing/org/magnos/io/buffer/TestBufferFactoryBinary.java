@@ -18,11 +18,20 @@ package org.magnos.io.buffer;
 
 import static org.junit.Assert.*;
 
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 import org.magnos.io.buffer.BufferFactory;
 import org.magnos.io.buffer.BufferFactoryBinary;
+import org.magnos.io.buffer.BufferFactoryBinary.Pooling;
 
 
 public class TestBufferFactoryBinary
@@ -126,5 +135,302 @@ public class TestBufferFactoryBinary
 		assertTrue( bf.free(f) );
 	}
 	
+	@Test
+	public void testMagazine()
+	{
+		// Creates DirectByteBuffers at sizes 8,16,32 with rounds of 2
+		BufferFactoryBinary bf = new BufferFactoryBinary(3, 5, 2);
+		
+		ByteBuffer a, b, c, d, e;
+		a = bf.allocate(16);
+		b = bf.allocate(16);
+		c = bf.allocate(16);
+		d = bf.allocate(16);
+		e = bf.allocate(16);
+		
+		// Frees go to the magazine, they aren't in the depot.
+		assertTrue( bf.free(a) );
+		assertTrue( bf.free(b) );
+		assertTrue( bf.free(c) );
+		assertTrue( bf.free(d) );
+		assertEquals( 0, bf.getSize() );
+		
+		// The magazine is full, the oldest round moves to the depot.
+		assertTrue( bf.free(e) );
+		assertEquals( 32, bf.getSize() );
+		
+		// The most recently freed buffer is allocated first.
+		assertTrue( bf.allocate(14) == e );
+		assertTrue( bf.allocate(16) == d );
+		assertTrue( bf.allocate(10) == c );
+		
+		// The magazine is empty, the round is reloaded from the depot.
+		ByteBuffer f = bf.allocate(12);
+		assertTrue( f == a || f == b );
+		assertEquals( 12, f.limit() );
+		assertEquals( 0, bf.getSize() );
+		
+		// Flushing returns the magazine to the depot.
+		bf.free(f);
+		bf.free(c);
+		bf.flush();
+		assertEquals( 48, bf.getSize() );
+		assertEquals( 48, bf.clear() );
+		assertEquals( 0, bf.getSize() );
+	}
+	
+	@Test
+	public void testConcurrent() throws InterruptedException
+	{
+		final int OPERATIONS = 1 << 17;
+		
+		for (int threads = 1; threads <= 8; threads <<= 1)
+		{
+			// A single stripe and no magazines, every thread shares each stack.
+			testConcurrent(new BufferFactoryBinary(8, 12, 0, 1), threads, OPERATIONS);
+			// A stripe per processor.
+			testConcurrent(new BufferFactoryBinary(8, 12, 0), threads, OPERATIONS);
+			// A stripe per processor and magazines.
+			testConcurrent(new BufferFactoryBinary(8, 12, 16), threads, OPERATIONS);
+		}
+	}
+	
+	private void testConcurrent(final BufferFactoryBinary bf, int threads, final int operations) throws InterruptedException
+	{
+		// Counts every buffer created and freed from memory.
+		BufferGovernor governor = new BufferGovernor(1L << 40);
+		bf.setGovernor(governor);
+		
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finish = new CountDownLatch(threads);
+		final AtomicInteger errors = new AtomicInteger();
+		
+		for (int t = 0; t < threads; t++)
+		{
+			final int id = t;
+			new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < operations; i++) {
+							ByteBuffer b = bf.allocate(256 << (i & 3));
+							b.putInt(0, id);
+							if (b.getInt(0) != id) {
+								errors.incrementAndGet();
+							}
+							bf.free(b);
+						}
+						bf.flush();
+					}
+					catch (InterruptedException e) {
+						errors.incrementAndGet();
+					}
+					finally {
+						finish.countDown();
+					}
+				}
+			}.start();
+		}
+		
+		start.countDown();
+		finish.await();
+		
+		// No buffer was handed to two threads at once, and every buffer
+		// created is back in the cache (or was freed from memory) once the
+		// magazines are flushed.
+		assertEquals( 0, errors.get() );
+		assertEquals( governor.getUsed(), bf.getSize() );
+		assertEquals( bf.getSize(), bf.clear() );
+		assertEquals( 0, bf.getSize() );
+		assertEquals( 0, governor.getUsed() );
+	}
+	
+	@Test
+	public void testZeroGarbage()
+	{
+		final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		final long id = Thread.currentThread().getId();
+		
+		// A factory which caches a single buffer in a slot, the stacks in the
+		// other factories allocate a node per free.
+		BufferFactory slot = new AbstractBufferFactory() {
+			final AtomicReference<ByteBuffer> cached = new AtomicReference<ByteBuffer>();
+			protected ByteBuffer onTake(int size) {
+				return cached.getAndSet(null);
+			}
+			protected ByteBuffer onCreate(int size) {
+				return ByteBuffer.allocateDirect(64);
+			}
+			protected boolean onCache(ByteBuffer buffer) {
+				return cached.compareAndSet(null, buffer);
+			}
+			protected long onFill() {
+				return 0;
+			}
+			protected List<ByteBuffer> onRelease() {
+				return new ArrayList<ByteBuffer>();
+			}
+		};
+		
+		// Magazines keep a steady allocate/free on one thread off the stacks.
+		BufferFactoryBinary magazine = new BufferFactoryBinary(4, 10, 8);
+		
+		BufferFactory[] factories = {slot, magazine};
+		
+		for (BufferFactory bf : factories)
+		{
+			// Warm up so the buffers exist and the code is compiled.
+			churn(bf, 100000);
+			
+			long before = bean.getThreadAllocatedBytes(id);
+			churn(bf, 100000);
+			
+			assertEquals( 0, bean.getThreadAllocatedBytes(id) - before );
+		}
+	}
+	
+	private void churn(BufferFactory bf, int iterations)
+	{
+		for (int i = 0; i < iterations; i++) {
+			bf.free(bf.allocate(64));
+		}
+	}
+	
+	@Test
+	public void testBatch()
+	{
+		// Creates DirectByteBuffers at sizes 8,16,32
+		BufferFactoryBinary bf = new BufferFactoryBinary(3, 5);
+		
+		ByteBuffer[] run = new ByteBuffer[8];
+		assertEquals( 8, bf.allocate(8, 12, run) );
+		assertEquals( 16, run[0].capacity() );
+		assertEquals( 12, run[7].limit() );
+		
+		assertEquals( 8, bf.free(run, 0, 8) );
+		assertEquals( 128, bf.getSize() );
+		
+		// A single allocate takes from the round
+		assertSame( run[0], bf.allocate(16) );
+		assertEquals( 112, bf.getSize() );
+		
+		ByteBuffer[] out = new ByteBuffer[4];
+		assertEquals( 4, bf.allocate(4, 16, out) );
+		assertSame( run[1], out[0] );
+		assertSame( run[4], out[3] );
+		assertEquals( 48, bf.getSize() );
+		
+		// Rounds larger than a magazine takes are split
+		BufferFactoryBinary mag = new BufferFactoryBinary(3, 5, 2);
+		assertEquals( 8, mag.free(run, 0, 8) );
+		assertSame( run[1], mag.allocate(16) );
+		assertEquals( 96, mag.getSize() );
+		
+		// The rest of the round in the magazine is released too
+		assertEquals( 112, mag.clear() );
+	}
+	
+	@Test
+	public void testAlignment()
+	{
+		// Creates DirectByteBuffers at sizes 8,16,32 with rounds of 2
+		BufferFactoryBinary bf = new BufferFactoryBinary(3, 5, 2);
+		bf.setAlignment(64);
+		assertEquals( 64, bf.getAlignment() );
+		
+		for (int i = 0; i < 10; i++) {
+			ByteBuffer b = bf.allocate(8 + i);
+			assertEquals( 0, b.alignmentOffset(0, 64) );
+			assertTrue( bf.free(b) );
+		}
+		
+		// Freed from memory through the buffer which owns it
+		bf.flush();
+		assertEquals( 8 + 16 + 32, bf.clear() );
+	}
+	
+	@Test
+	public void testClearMagazines() throws InterruptedException
+	{
+		// Creates DirectByteBuffers at sizes 8,16,32 with rounds of 2
+		final BufferFactoryBinary bf = new BufferFactoryBinary(3, 5, 2);
+		
+		// The current thread's magazine is released as well
+		bf.free(bf.allocate(16));
+		assertEquals( 0, bf.getSize() );
+		assertEquals( 16, bf.clear() );
+		
+		// Another thread's magazine is emptied when it's next used
+		final CountDownLatch freed = new CountDownLatch(1);
+		final CountDownLatch aligned = new CountDownLatch(1);
+		final ByteBuffer[] seen = new ByteBuffer[2];
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					seen[0] = bf.allocate(16);
+					bf.free(seen[0]);
+					freed.countDown();
+					aligned.await();
+					seen[1] = bf.allocate(16);
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		};
+		t.start();
+		freed.await();
+		bf.setAlignment(4096);
+		aligned.countDown();
+		t.join();
+		
+		assertNotSame( seen[0], seen[1] );
+		assertEquals( 0, seen[1].alignmentOffset(0, 4096) );
+	}
+	
+	@Test
+	public void testStripePooling() throws InterruptedException
+	{
+		// Creates DirectByteBuffers at sizes 8,16,32 with rounds of 2 and 2
+		// magazines shared by stripe.
+		final BufferFactoryBinary striped = new BufferFactoryBinary(3, 5, 2, 2, Pooling.STRIPE);
+		final BufferFactoryBinary threaded = new BufferFactoryBinary(3, 5, 2, 2, Pooling.THREAD);
+		
+		final List<ByteBuffer> stripedSeen = Collections.synchronizedList(new ArrayList<ByteBuffer>());
+		final List<ByteBuffer> threadedSeen = Collections.synchronizedList(new ArrayList<ByteBuffer>());
+		
+		// Many short lived threads, one after another.
+		for (int i = 0; i < 100; i++) {
+			Thread t = new Thread() {
+				public void run() {
+					ByteBuffer a = striped.allocate(16);
+					stripedSeen.add(a);
+					striped.free(a);
+					
+					ByteBuffer b = threaded.allocate(16);
+					threadedSeen.add(b);
+					threaded.free(b);
+				}
+			};
+			t.start();
+			t.join();
+		}
+		
+		// A magazine per thread strands a buffer with every thread that dies,
+		// magazines by stripe are reused by the next thread.
+		assertEquals( 100, distinct(threadedSeen) );
+		assertTrue( distinct(stripedSeen) <= 2 );
+		
+		striped.flush();
+		assertEquals( 16 * distinct(stripedSeen), striped.getSize() );
+	}
+	
+	private static int distinct(List<ByteBuffer> buffers)
+	{
+		IdentityHashMap<ByteBuffer, Boolean> set = new IdentityHashMap<ByteBuffer, Boolean>();
+		for (ByteBuffer b : buffers) {
+			set.put(b, Boolean.TRUE);
+		}
+		return set.size();
+	}
 	
 }
@@ -0,0 +1,195 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.magnos.io.buffer.BufferFactory;
+import org.magnos.io.buffer.BufferFactoryBuddy;
+
+
+public class TestBufferFactoryBuddy
+{
+
+	@Test
+	public void testAllocate()
+	{
+		// Blocks of sizes 8,16,32,64 out of 64 byte arenas
+		BufferFactory bf = new BufferFactoryBuddy(3, 6);
+		ByteBuffer b;
+		
+		// Below minPower
+		b = bf.allocate(6);
+		assertEquals( 6, b.capacity() );
+		assertFalse( b.isDirect() );
+		
+		// At minPower
+		b = bf.allocate(8);
+		assertEquals( 8, b.capacity() );
+		assertEquals( 8, b.remaining() );
+		assertTrue( b.isDirect() );
+		
+		// Between minPower and maxPower
+		b = bf.allocate(24);
+		assertEquals( 32, b.capacity() );
+		assertEquals( 24, b.remaining() );
+		assertTrue( b.isDirect() );
+		
+		// Above maxPower
+		b = bf.allocate(65);
+		assertEquals( 65, b.capacity() );
+		assertFalse( b.isDirect() );
+	}
+	
+	@Test
+	public void testCoalesce()
+	{
+		BufferFactoryBuddy bf = new BufferFactoryBuddy(3, 6);
+		
+		// Split the arena into 8,8,16,32
+		ByteBuffer a = bf.allocate(8);
+		ByteBuffer b = bf.allocate(8);
+		ByteBuffer c = bf.allocate(16);
+		ByteBuffer d = bf.allocate(32);
+		assertEquals( 1, bf.getArenaCount() );
+		assertEquals( 0, bf.getSize() );
+		
+		// Two freed 8 byte buddies satisfy a 16 byte request
+		bf.free(a);
+		bf.free(b);
+		assertEquals( 16, bf.getSize() );
+		ByteBuffer e = bf.allocate(16);
+		assertEquals( 16, e.capacity() );
+		assertEquals( 1, bf.getArenaCount() );
+		
+		// Everything merges back into the whole arena
+		bf.free(c);
+		bf.free(d);
+		bf.free(e);
+		assertEquals( 64, bf.getSize() );
+		assertEquals( 64, bf.allocate(64).capacity() );
+		assertEquals( 1, bf.getArenaCount() );
+	}
+	
+	@Test
+	public void testResize()
+	{
+		BufferFactoryBuddy bf = new BufferFactoryBuddy(3, 6);
+		
+		ByteBuffer a = bf.allocate(8);
+		a.putLong(0, 0x0102030405060708L);
+		
+		// The following buddies are free, grow in place
+		ByteBuffer b = bf.resize(a, 30);
+		assertEquals( 32, b.capacity() );
+		assertEquals( 30, b.limit() );
+		assertEquals( 0, b.position() );
+		assertEquals( 0x0102030405060708L, b.getLong(0) );
+		assertEquals( 32, bf.getSize() );
+		
+		// The old view was retired
+		assertFalse( bf.free(ByteBuffer.allocateDirect(8)) );
+		
+		// The following buddy is taken, the data is copied
+		ByteBuffer c = bf.allocate(32);
+		ByteBuffer d = bf.resize(b, 64);
+		assertEquals( 64, d.capacity() );
+		assertEquals( 0x0102030405060708L, d.getLong(0) );
+		assertEquals( 2, bf.getArenaCount() );
+		
+		bf.free(c);
+		bf.free(d);
+		assertEquals( 128, bf.getSize() );
+	}
+	
+	@Test
+	public void testTransfer()
+	{
+		BufferFactoryBuddy bf1 = new BufferFactoryBuddy(3, 6);
+		BufferFactoryBuddy bf2 = new BufferFactoryBuddy(3, 6);
+		
+		bf1.free(bf1.allocate(8));
+		assertEquals( 64, bf1.getSize() );
+		
+		// The free arena moves to the other factory
+		List<ByteBuffer> released = bf1.release();
+		assertEquals( 1, released.size() );
+		assertEquals( 0, bf1.getArenaCount() );
+		assertEquals( 0, bf1.getSize() );
+		
+		assertTrue( bf2.transfer(released).isEmpty() );
+		assertEquals( 1, bf2.getArenaCount() );
+		assertEquals( 64, bf2.getSize() );
+		
+		assertEquals( 16, bf2.allocate(16).capacity() );
+		assertEquals( 1, bf2.getArenaCount() );
+		assertEquals( 48, bf2.getSize() );
+	}
+	
+	@Test
+	public void testForeignArenaSize()
+	{
+		BufferFactoryBuddy bf1 = new BufferFactoryBuddy(3, 6);
+		BufferFactoryBuddy bf2 = new BufferFactoryBuddy(3, 6);
+		
+		// A live block the size of an arena is not adopted
+		ByteBuffer block = bf1.allocate(64);
+		assertEquals( 1, bf2.transfer(Arrays.asList(block)).size() );
+		assertFalse( bf2.free(block) );
+		assertEquals( 0, bf2.getArenaCount() );
+		
+		// Neither is any other direct buffer of that size
+		assertFalse( bf2.free(ByteBuffer.allocateDirect(64)) );
+		assertEquals( 1, bf2.transfer(Arrays.asList(ByteBuffer.allocateDirect(64))).size() );
+		assertEquals( 0, bf2.getArenaCount() );
+		
+		// The block still belongs to its factory
+		assertTrue( bf1.free(block) );
+		assertEquals( 64, bf1.getSize() );
+	}
+	
+	@Test
+	public void testBatchFree()
+	{
+		BufferGovernor governor = new BufferGovernor(1 << 20);
+		BufferFactoryBuddy bf = new BufferFactoryBuddy(3, 10);
+		bf.setGovernor(governor);
+		bf.setCapacity(0);
+
+		ByteBuffer[] out = new ByteBuffer[4];
+		assertEquals( 4, bf.allocate(4, 16, out) );
+		assertEquals( 1024, governor.getUsed() );
+
+		// Blocks go back to their arena even over capacity
+		assertEquals( 4, bf.free(out, 0, 4) );
+		assertEquals( 1024, governor.getUsed() );
+		assertEquals( 1024, bf.getSize() );
+
+		assertEquals( 4, bf.allocate(4, 16, out) );
+		assertTrue( bf.transfer(Arrays.asList(out)).isEmpty() );
+		assertEquals( 1024, bf.getSize() );
+
+		assertEquals( 1024, bf.clear() );
+		assertEquals( 0, governor.getUsed() );
+	}
+	
+}
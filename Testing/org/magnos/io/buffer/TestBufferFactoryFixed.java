@@ -18,6 +18,7 @@ package org.magnos.io.buffer;
 
 import static org.junit.Assert.*;
 
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 
 import org.junit.Test;
@@ -119,4 +120,94 @@ public class TestBufferFactoryFixed
 		assertTrue( bf.free(d) );
 	}
 	
+	@Test
+	public void testBatch()
+	{
+		BufferFactory bf = new BufferFactoryFixed(32, 8);
+		bf.setCapacity(32 * 8);
+		
+		ByteBuffer[] run = new ByteBuffer[10];
+		assertEquals( 10, bf.allocate(10, 20, run) );
+		for (ByteBuffer b : run) {
+			assertEquals( 32, b.capacity() );
+			assertEquals( 20, b.limit() );
+		}
+		
+		// Only 8 fit in the cache
+		assertEquals( 8, bf.free(run, 0, 10) );
+		assertEquals( 256, bf.getSize() );
+		
+		// Taken from the cache as a whole, the rest are new
+		ByteBuffer[] more = new ByteBuffer[10];
+		assertEquals( 10, bf.allocate(10, 32, more) );
+		assertEquals( 0, bf.getSize() );
+		for (int i = 0; i < 8; i++) {
+			assertSame( run[i], more[i] );
+		}
+		
+		// A single allocate takes from a batch
+		assertEquals( 3, bf.free(more, 0, 3) );
+		assertSame( more[0], bf.allocate(32) );
+		assertEquals( 64, bf.getSize() );
+		
+		// Heap buffers in a run aren't cached
+		ByteBuffer[] mixed = {ByteBuffer.allocateDirect(32), ByteBuffer.allocate(32), ByteBuffer.allocateDirect(32)};
+		assertEquals( 2, bf.free(mixed, 0, 3) );
+		assertEquals( 128, bf.getSize() );
+	}
+	
+	@Test
+	public void testAlignment()
+	{
+		BufferFactory bf = new BufferFactoryFixed(1000, 8);
+		bf.setAlignment(4096);
+		
+		ByteBuffer[] run = new ByteBuffer[8];
+		assertEquals( 8, bf.allocate(8, 100, run) );
+		for (ByteBuffer b : run) {
+			assertEquals( 1000, b.capacity() );
+			assertEquals( 0, b.alignmentOffset(0, 4096) );
+		}
+		
+		// Aligned buffers are cached and come back aligned
+		assertTrue( bf.free(run[0]) );
+		assertSame( run[0], bf.allocate(1000) );
+		
+		// Buffers which aren't aligned are never cached
+		ByteBuffer b = ByteBuffer.allocateDirect(1100);
+		int offset = b.alignmentOffset(0, 4096);
+		b.position(offset == 1 ? 2 : 1).limit(b.position() + 1000);
+		assertFalse( bf.free(b.slice()) );
+		assertEquals( 0, bf.getSize() );
+	}
+	
+	@Test
+	public void testAlignmentOrigin()
+	{
+		BufferGovernor governor = new BufferGovernor(1 << 20);
+		BufferFactoryFixed bf = new BufferFactoryFixed(1000, 8);
+		bf.setGovernor(governor);
+		bf.setAlignment(4096);
+		bf.setCapacity(0);
+		
+		// Freeing an aligned buffer frees the buffer it was sliced from
+		ByteBuffer b = bf.allocate(1000);
+		assertEquals( 1000 + 4095, governor.getUsed() );
+		assertFalse( bf.free(b) );
+		assertEquals( 0, governor.getUsed() );
+		
+		// An aligned buffer which is dropped isn't kept reachable
+		WeakReference<ByteBuffer> dropped = new WeakReference<ByteBuffer>(bf.allocate(1000));
+		for (int i = 0; i < 100 && dropped.get() != null; i++) {
+			System.gc();
+		}
+		assertNull( dropped.get() );
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testAlignmentNotPowerOf2()
+	{
+		new BufferFactoryFixed(1000, 8).setAlignment(48);
+	}
+	
 }
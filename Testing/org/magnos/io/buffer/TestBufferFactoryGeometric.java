@@ -0,0 +1,148 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.magnos.io.buffer.BufferFactory;
+import org.magnos.io.buffer.BufferFactoryBinary;
+import org.magnos.io.buffer.BufferFactoryGeometric;
+
+
+public class TestBufferFactoryGeometric
+{
+
+	@Test
+	public void testSizeClasses()
+	{
+		BufferFactoryGeometric bf = new BufferFactoryGeometric(8, 10);
+		
+		int[] expected = {256, 320, 384, 448, 512, 640, 768, 896, 1024};
+		
+		assertArrayEquals( expected, bf.getSizeClasses() );
+	}
+	
+	@Test
+	public void testAllocate()
+	{
+		BufferFactory bf = new BufferFactoryGeometric(8, 13);
+		ByteBuffer b;
+		
+		// Below minPower
+		b = bf.allocate(200);
+		assertEquals( 200, b.capacity() );
+		assertFalse( b.isDirect() );
+		
+		// At minPower
+		b = bf.allocate(256);
+		assertEquals( 256, b.capacity() );
+		assertTrue( b.isDirect() );
+		
+		// Just over a doubling goes to the first quarter
+		b = bf.allocate(257);
+		assertEquals( 320, b.capacity() );
+		assertEquals( 257, b.remaining() );
+		
+		// Each quarter boundary
+		assertEquals( 384, bf.allocate(321).capacity() );
+		assertEquals( 448, bf.allocate(448).capacity() );
+		assertEquals( 512, bf.allocate(449).capacity() );
+		assertEquals( 5120, bf.allocate(4097).capacity() );
+		assertEquals( 8192, bf.allocate(7169).capacity() );
+		
+		// Above maxPower
+		b = bf.allocate(8193);
+		assertEquals( 8193, b.capacity() );
+		assertFalse( b.isDirect() );
+	}
+	
+	@Test
+	public void testFree()
+	{
+		BufferFactory bf = new BufferFactoryGeometric(8, 10);
+		
+		ByteBuffer b = bf.allocate(600);
+		assertEquals( 640, b.capacity() );
+		bf.free(b);
+		assertEquals( 640, bf.getSize() );
+		
+		// The same buffer is reused for anything in its class
+		ByteBuffer c = bf.allocate(513);
+		assertSame( b, c );
+		assertEquals( 0, bf.getSize() );
+		
+		// Direct buffers which aren't a class size are not cached
+		bf.free(ByteBuffer.allocateDirect(600));
+		assertEquals( 0, bf.getSize() );
+	}
+	
+	@Test
+	public void testLiveBuffers()
+	{
+		// The same memory caches more 4097 byte buffers than power-of-two classes
+		BufferFactory binary = new BufferFactoryBinary(8, 13);
+		BufferFactory geometric = new BufferFactoryGeometric(8, 13);
+		binary.setCapacity(1 << 20);
+		geometric.setCapacity(1 << 20);
+		
+		ByteBuffer[] binaryBuffers = new ByteBuffer[256];
+		ByteBuffer[] geometricBuffers = new ByteBuffer[256];
+		assertEquals( 256, binary.allocate(256, 4097, binaryBuffers) );
+		assertEquals( 256, geometric.allocate(256, 4097, geometricBuffers) );
+		assertEquals( 8192, binaryBuffers[0].capacity() );
+		assertEquals( 5120, geometricBuffers[0].capacity() );
+		
+		assertEquals( 128, binary.free(binaryBuffers, 0, 256) );
+		assertEquals( 204, geometric.free(geometricBuffers, 0, 256) );
+		
+		assertEquals( 128 * 8192, binary.clear() );
+		assertEquals( 204 * 5120, geometric.clear() );
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testMinPowerTooSmall()
+	{
+		new BufferFactoryGeometric(1, 10);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testMaxPowerTooSmall()
+	{
+		new BufferFactoryGeometric(8, 7);
+	}
+	
+	@Test
+	public void testFill()
+	{
+		BufferFactoryGeometric bf = new BufferFactoryGeometric(8, 10);
+		bf.setCapacity(9 * 2048);
+		
+		// Each of the 9 classes is given 2048 bytes
+		long filled = 8 * 256 + 6 * 320 + 5 * 384 + 4 * 448 + 4 * 512 + 3 * 640 + 2 * 768 + 2 * 896 + 2 * 1024;
+		
+		assertEquals( filled, bf.fill() );
+		assertEquals( filled, bf.getSize() );
+		
+		// Cached buffers are handed out before new ones are allocated
+		bf.allocate(700);
+		assertEquals( filled - 768, bf.getSize() );
+	}
+	
+}
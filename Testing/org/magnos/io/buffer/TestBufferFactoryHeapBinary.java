@@ -0,0 +1,89 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.magnos.io.buffer.BufferFactory;
+import org.magnos.io.buffer.BufferFactoryHeapBinary;
+
+
+public class TestBufferFactoryHeapBinary
+{
+
+	@Test
+	public void testAllocate()
+	{
+		// Creates HeapByteBuffers at sizes 8,16,32
+		BufferFactory bf = new BufferFactoryHeapBinary(3, 5);
+		ByteBuffer b;
+		
+		// Below minPower
+		b = bf.allocate(6);
+		assertEquals( 6, b.capacity() );
+		assertTrue( b.hasArray() );
+		
+		// Between minPower and maxPower
+		b = bf.allocate(24);
+		assertEquals( 32, b.capacity() );
+		assertEquals( 24, b.remaining() );
+		assertTrue( b.hasArray() );
+		assertFalse( b.isDirect() );
+		
+		// Above maxPower
+		b = bf.allocate(33);
+		assertEquals( 33, b.capacity() );
+	}
+	
+	@Test
+	public void testFree()
+	{
+		BufferFactory bf = new BufferFactoryHeapBinary(3, 5);
+		
+		ByteBuffer b = bf.allocate(16);
+		assertTrue( bf.free(b) );
+		assertEquals( 16, bf.getSize() );
+		assertSame( b, bf.allocate(10) );
+		
+		// Direct buffers, slices, and odd sizes aren't cached
+		assertFalse( bf.free(ByteBuffer.allocateDirect(16)) );
+		assertFalse( bf.free(ByteBuffer.wrap(new byte[32], 0, 16).slice()) );
+		assertFalse( bf.free(ByteBuffer.allocate(24)) );
+		assertEquals( 0, bf.getSize() );
+	}
+	
+	@Test
+	public void testArrays()
+	{
+		BufferFactoryHeapBinary bf = new BufferFactoryHeapBinary(3, 10);
+		
+		byte[] a = bf.allocateArray(100);
+		assertEquals( 128, a.length );
+		
+		assertTrue( bf.free(a) );
+		assertEquals( 128, bf.getSize() );
+		
+		// The same array comes back as an array or a buffer
+		assertSame( a, bf.allocateArray(65) );
+		assertTrue( bf.free(a) );
+		assertSame( a, bf.allocate(128).array() );
+	}
+	
+}
@@ -0,0 +1,131 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.magnos.io.buffer.BufferFactory;
+import org.magnos.io.buffer.BufferFactoryBinary;
+import org.magnos.io.buffer.BufferFactoryHierarchy;
+
+
+public class TestBufferFactoryHierarchy
+{
+
+	@Test
+	public void testBatchTake()
+	{
+		BufferFactory parent = new BufferFactoryBinary(4, 10);
+		BufferFactoryHierarchy child = new BufferFactoryHierarchy(parent, new BufferFactoryBinary(4, 10), 4);
+		
+		// A miss takes a batch of 4 from the parent, 3 stay in the child
+		ByteBuffer b = child.allocate(64);
+		assertEquals( 64, b.capacity() );
+		assertTrue( b.isDirect() );
+		assertEquals( 3 * 64, child.getSize() );
+		
+		// The next 3 are served locally
+		child.allocate(64);
+		child.allocate(64);
+		child.allocate(64);
+		assertEquals( 0, child.getSize() );
+		
+		// Sizes that aren't pooled don't take a batch
+		b = child.allocate(2048);
+		assertFalse( b.isDirect() );
+		assertEquals( 0, child.getSize() );
+	}
+	
+	@Test
+	public void testSpill()
+	{
+		BufferFactory parent = new BufferFactoryBinary(4, 10);
+		BufferFactoryHierarchy child = new BufferFactoryHierarchy(parent, new BufferFactoryBinary(4, 10), 4);
+		child.setCapacity(4 * 64);
+		
+		ByteBuffer[] buffers = new ByteBuffer[8];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = child.allocate(64);
+		}
+		
+		// The child fills up to its capacity
+		for (int i = 0; i < 4; i++) {
+			assertTrue( child.free(buffers[i]) );
+		}
+		assertEquals( 4 * 64, child.getSize() );
+		assertEquals( 0, parent.getSize() );
+		
+		// Over capacity the buffer and 3 cached are spilled to the parent,
+		// which caches them
+		assertTrue( child.free(buffers[4]) );
+		assertEquals( 64, child.getSize() );
+		assertEquals( 4 * 64, parent.getSize() );
+		
+		// The spilled buffers are taken back in a batch
+		child.allocate(64);
+		assertEquals( 0, child.getSize() );
+		child.allocate(64);
+		assertEquals( 3 * 64, child.getSize() );
+		assertEquals( 0, parent.getSize() );
+	}
+	
+	@Test
+	public void testDenied()
+	{
+		BufferGovernor governor = new BufferGovernor(1 << 20);
+		BufferFactoryBinary parent = new BufferFactoryBinary(4, 10);
+		parent.setGovernor(governor);
+		parent.setCapacity(0);
+		BufferFactoryHierarchy child = new BufferFactoryHierarchy(parent, new BufferFactoryBinary(4, 10), 4);
+		
+		ByteBuffer b = child.allocate(64);
+		assertEquals( 4 * 64, governor.getUsed() );
+		
+		// The parent frees the buffers it won't take and says so
+		child.setCapacity(0);
+		assertFalse( child.free(b) );
+		assertEquals( 0, child.getSize() );
+		assertEquals( 0, parent.getSize() );
+		assertEquals( 0, governor.getUsed() );
+	}
+	
+	@Test
+	public void testClear()
+	{
+		BufferFactory parent = new BufferFactoryBinary(4, 10);
+		BufferFactoryHierarchy a = new BufferFactoryHierarchy(parent, new BufferFactoryBinary(4, 10));
+		BufferFactoryHierarchy b = new BufferFactoryHierarchy(parent, new BufferFactoryBinary(4, 10));
+		
+		a.free(a.allocate(128));
+		long cached = a.getSize();
+		assertEquals( 16 * 128, cached );
+		
+		// When the owner shuts down its buffers move to the parent
+		assertEquals( cached, a.clear() );
+		assertEquals( 0, a.getSize() );
+		assertEquals( cached, parent.getSize() );
+		
+		// Another child takes them
+		b.allocate(128);
+		assertEquals( 0, parent.getSize() );
+		assertEquals( cached - 128, b.getSize() );
+	}
+	
+}
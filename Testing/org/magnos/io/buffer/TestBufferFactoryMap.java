@@ -19,6 +19,7 @@ package org.magnos.io.buffer;
 import static org.junit.Assert.*;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 import org.magnos.io.buffer.BufferFactory;
@@ -90,4 +91,115 @@ public class TestBufferFactoryMap
 		assertFalse( bf.free(ByteBuffer.allocateDirect(33)) );
 	}
 	
+	@Test
+	public void testFill()
+	{
+		// Creates DirectByteBuffers at sizes 8->32
+		BufferFactoryMap bf = new BufferFactoryMap(32, 8);
+		
+		// No demand, nothing to fill
+		assertEquals( 0, bf.fill() );
+		
+		// Size 16 is requested three times as often as size 32
+		bf.allocate(16);
+		bf.allocate(16);
+		bf.allocate(16);
+		bf.allocate(32);
+		assertEquals( 3, bf.getDemand(16) );
+		assertEquals( 1, bf.getDemand(32) );
+		assertEquals( 0, bf.getDemand(24) );
+		
+		// 7 buffers of 16 and 2 of 32 are in proportion, then a 16 remains
+		bf.setCapacity(200);
+		assertEquals( 192, bf.fill() );
+		assertEquals( 192, bf.getSize() );
+		
+		// The next requests are served from cache
+		ByteBuffer b = bf.allocate(16);
+		assertTrue( b.isDirect() );
+		assertEquals( 176, bf.getSize() );
+		b = bf.allocate(32);
+		assertEquals( 144, bf.getSize() );
+		
+		// Clearing keeps the demand
+		assertEquals( 144, bf.clear() );
+		assertEquals( 4, bf.getDemand(16) );
+	}
+	
+	@Test
+	public void testConcurrentFree() throws InterruptedException
+	{
+		final BufferFactoryMap bf = new BufferFactoryMap(8192, 128);
+		bf.setCapacity(Long.MAX_VALUE);
+		
+		final int threads = 8;
+		final int sizes = 64;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finish = new CountDownLatch(threads);
+		
+		// Every thread frees a buffer of each new size at the same time, no
+		// buffer may be lost when two threads add the stack of a size.
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int s = 0; s < sizes; s++) {
+							bf.free(ByteBuffer.allocateDirect(1000 + s));
+						}
+					}
+					catch (InterruptedException e) {
+					}
+					finally {
+						finish.countDown();
+					}
+				}
+			}.start();
+		}
+		
+		start.countDown();
+		finish.await();
+		
+		long expected = 0;
+		for (int s = 0; s < sizes; s++) {
+			expected += threads * (1000 + s);
+		}
+		assertEquals( expected, bf.getSize() );
+		
+		// Every buffer is in its stack
+		for (int s = 0; s < sizes; s++) {
+			for (int t = 0; t < threads; t++) {
+				bf.allocate(1000 + s);
+			}
+		}
+		assertEquals( 0, bf.getSize() );
+		assertEquals( 0, bf.clear() );
+	}
+	
+	@Test
+	public void testBatch()
+	{
+		BufferFactoryMap bf = new BufferFactoryMap(8192, 128);
+		
+		ByteBuffer[] small = new ByteBuffer[3];
+		ByteBuffer[] large = new ByteBuffer[3];
+		assertEquals( 3, bf.allocate(3, 300, small) );
+		assertEquals( 3, bf.allocate(3, 500, large) );
+		assertEquals( 3, bf.getDemand(300) );
+		assertEquals( 500, large[2].capacity() );
+		
+		ByteBuffer[] mixed = {small[0], small[1], small[2], large[0], large[1], large[2]};
+		
+		// Runs of each size are cached
+		assertEquals( 6, bf.free(mixed, 0, 6) );
+		assertEquals( 3 * 300 + 3 * 500, bf.getSize() );
+		
+		ByteBuffer[] out = new ByteBuffer[4];
+		assertEquals( 4, bf.allocate(4, 500, out) );
+		assertSame( mixed[3], out[0] );
+		assertSame( mixed[5], out[2] );
+		assertEquals( 500, out[3].capacity() );
+		assertEquals( 900, bf.getSize() );
+	}
+	
 }
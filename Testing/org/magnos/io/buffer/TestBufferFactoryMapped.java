@@ -0,0 +1,115 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import org.junit.Test;
+import org.magnos.io.buffer.BufferFactoryMapped;
+
+
+public class TestBufferFactoryMapped
+{
+
+	@Test
+	public void testAllocate() throws IOException
+	{
+		BufferFactoryMapped bf = new BufferFactoryMapped(4096, 64);
+		ByteBuffer b;
+		
+		// Below the minimum
+		b = bf.allocate(32);
+		assertEquals( 32, b.capacity() );
+		assertFalse( b.isDirect() );
+		
+		// A region
+		b = bf.allocate(100);
+		assertTrue( b instanceof MappedByteBuffer );
+		assertEquals( 4096, b.capacity() );
+		assertEquals( 100, b.remaining() );
+		assertEquals( 4096, bf.getFile().length() );
+		
+		// Above the region size
+		b = bf.allocate(4097);
+		assertEquals( 4097, b.capacity() );
+		assertFalse( b.isDirect() );
+		
+		bf.close();
+		assertFalse( bf.getFile().exists() );
+	}
+	
+	@Test
+	public void testCache() throws IOException
+	{
+		BufferFactoryMapped bf = new BufferFactoryMapped(4096, 64);
+		bf.setCapacity(4096);
+		
+		ByteBuffer a = bf.allocate(4096);
+		ByteBuffer b = bf.allocate(4096);
+		a.putInt(0, 1234);
+		assertEquals( 2, bf.getRegionCount() );
+		assertEquals( 8192, bf.getFile().length() );
+		
+		// The first region is cached, the second is over capacity and unmapped
+		assertTrue( bf.free(a) );
+		assertFalse( bf.free(b) );
+		assertEquals( 4096, bf.getSize() );
+		assertEquals( 1, bf.getRegionCount() );
+		
+		// Cached regions keep their contents
+		ByteBuffer c = bf.allocate(4096);
+		assertSame( a, c );
+		assertEquals( 1234, c.getInt(0) );
+		
+		// The place of the unmapped region is reused
+		ByteBuffer d = bf.allocate(4096);
+		assertEquals( 2, bf.getRegionCount() );
+		assertEquals( 8192, bf.getFile().length() );
+		
+		// Foreign buffers aren't cached
+		bf.free(c);
+		bf.clear();
+		assertFalse( bf.free(ByteBuffer.allocateDirect(4096)) );
+		
+		bf.free(d);
+		bf.close();
+	}
+	
+	@Test
+	public void testClear() throws IOException
+	{
+		BufferFactoryMapped bf = new BufferFactoryMapped(4096, 64);
+		bf.setCapacity(4 * 4096);
+		
+		assertEquals( 4 * 4096, bf.fill() );
+		assertEquals( 4, bf.getRegionCount() );
+		assertEquals( 4 * 4096, bf.getFile().length() );
+		
+		// Clearing unmaps every region and empties the file
+		assertEquals( 4 * 4096, bf.clear() );
+		assertEquals( 0, bf.getRegionCount() );
+		assertEquals( 0, bf.getSize() );
+		assertEquals( 0, bf.getFile().length() );
+		
+		bf.close();
+	}
+	
+}
@@ -0,0 +1,216 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.magnos.io.buffer.BufferFactory;
+import org.magnos.io.buffer.BufferFactorySlab;
+
+
+public class TestBufferFactorySlab
+{
+
+	@Test
+	public void testAllocate()
+	{
+		// Slices of sizes 8,16,32 out of 64 byte chunks
+		BufferFactory bf = new BufferFactorySlab(3, 5, 64);
+		ByteBuffer b;
+		
+		// Below minPower
+		b = bf.allocate(6);
+		assertEquals( 6, b.capacity() );
+		assertFalse( b.isDirect() );
+		
+		// At minPower
+		b = bf.allocate(8);
+		assertEquals( 8, b.capacity() );
+		assertEquals( 8, b.remaining() );
+		assertTrue( b.isDirect() );
+		
+		// Between minPower and maxPower
+		b = bf.allocate(24);
+		assertEquals( 32, b.capacity() );
+		assertEquals( 24, b.remaining() );
+		assertTrue( b.isDirect() );
+		
+		// Above maxPower
+		b = bf.allocate(33);
+		assertEquals( 33, b.capacity() );
+		assertFalse( b.isDirect() );
+	}
+	
+	@Test
+	public void testSlices()
+	{
+		BufferFactorySlab bf = new BufferFactorySlab(3, 5, 64);
+		
+		// Both slices come from the same chunk and don't overlap
+		ByteBuffer a = bf.allocate(32);
+		ByteBuffer b = bf.allocate(32);
+		assertEquals( 1, bf.getChunkCount() );
+		assertEquals( 0, bf.getSize() );
+		
+		a.putLong(0, 0x0102030405060708L);
+		b.putLong(0, 0x1112131415161718L);
+		assertEquals( 0x0102030405060708L, a.getLong(0) );
+		
+		// The chunk is full, another is reserved
+		ByteBuffer c = bf.allocate(32);
+		assertEquals( 2, bf.getChunkCount() );
+		assertEquals( 32, bf.getSize() );
+		
+		// Slices go back to their chunk and are reused
+		assertTrue( bf.free(a) );
+		assertEquals( 64, bf.getSize() );
+		assertTrue( bf.allocate(20) == a );
+		
+		bf.free(a);
+		bf.free(c);
+	}
+	
+	@Test
+	public void testFree()
+	{
+		BufferFactory bf = new BufferFactorySlab(3, 5, 64);
+
+		// Buffers not sliced by the factory are not cached
+		assertFalse( bf.free(ByteBuffer.allocate(16)) );
+		assertFalse( bf.free(ByteBuffer.allocateDirect(16)) );
+		
+		// A slice is always cached, but only while it's allocated
+		ByteBuffer b = bf.allocate(16);
+		assertTrue( bf.free(b) );
+		assertFalse( bf.free(b) );
+	}
+	
+	@Test
+	public void testRelease()
+	{
+		BufferFactorySlab bf = new BufferFactorySlab(3, 5, 64);
+		bf.setCapacity(0);
+		
+		ByteBuffer a = bf.allocate(32);
+		ByteBuffer b = bf.allocate(32);
+		ByteBuffer c = bf.allocate(32);
+		assertEquals( 2, bf.getChunkCount() );
+		
+		// The first chunk is empty but it's the only empty chunk
+		bf.free(a);
+		bf.free(b);
+		assertEquals( 2, bf.getChunkCount() );
+		
+		// The second chunk is empty as well, it's released
+		bf.free(c);
+		assertEquals( 1, bf.getChunkCount() );
+		assertEquals( 64, bf.getSize() );
+		
+		// A chunk with a live slice is not cleared
+		ByteBuffer d = bf.allocate(8);
+		assertEquals( 2, bf.getChunkCount() );
+		assertEquals( 64, bf.clear() );
+		assertEquals( 1, bf.getChunkCount() );
+		assertEquals( 56, bf.getSize() );
+		
+		bf.free(d);
+		assertEquals( 64, bf.clear() );
+		assertEquals( 0, bf.getChunkCount() );
+		assertEquals( 0, bf.getSize() );
+	}
+	
+	@Test
+	public void testFill()
+	{
+		BufferFactorySlab bf = new BufferFactorySlab(3, 5, 64);
+		bf.setCapacity(200);
+		
+		// A chunk for each of the 3 size classes
+		assertEquals( 192, bf.fill() );
+		assertEquals( 3, bf.getChunkCount() );
+		assertEquals( 192, bf.getSize() );
+		
+		// Allocations are taken from the filled chunks
+		ByteBuffer a = bf.allocate(16);
+		assertEquals( 3, bf.getChunkCount() );
+		assertEquals( 176, bf.getSize() );
+		
+		bf.free(a);
+		assertEquals( 192, bf.clear() );
+	}
+	
+	@Test
+	public void testAlignment()
+	{
+		BufferFactorySlab bf = new BufferFactorySlab(3, 7, 1024);
+		bf.setAlignment(64);
+		
+		// Smaller requests take a slice the size of the alignment
+		ByteBuffer a = bf.allocate(8);
+		assertEquals( 64, a.capacity() );
+		assertEquals( 8, a.limit() );
+		
+		ByteBuffer[] run = new ByteBuffer[16];
+		assertEquals( 16, bf.allocate(16, 100, run) );
+		for (ByteBuffer b : run) {
+			assertEquals( 128, b.capacity() );
+			assertEquals( 0, b.alignmentOffset(0, 64) );
+		}
+		assertEquals( 0, a.alignmentOffset(0, 64) );
+		
+		// Both chunks are freed through the buffers which own them
+		bf.free(a);
+		assertEquals( 16, bf.free(run, 0, 16) );
+		assertEquals( 2048, bf.clear() );
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testAlignmentTooLarge()
+	{
+		new BufferFactorySlab(3, 7, 1024).setAlignment(256);
+	}
+	
+	@Test
+	public void testBatchFree()
+	{
+		BufferGovernor governor = new BufferGovernor(1 << 20);
+		BufferFactorySlab bf = new BufferFactorySlab(3, 5, 1024);
+		bf.setGovernor(governor);
+		bf.setCapacity(0);
+
+		ByteBuffer[] out = new ByteBuffer[4];
+		assertEquals( 4, bf.allocate(4, 16, out) );
+		assertEquals( 1024, governor.getUsed() );
+
+		// Slices go back to their chunk even over capacity
+		assertEquals( 4, bf.free(out, 0, 4) );
+		assertEquals( 1024, governor.getUsed() );
+		assertEquals( 1024, bf.getSize() );
+
+		assertEquals( 4, bf.allocate(4, 16, out) );
+		assertTrue( bf.transfer(Arrays.asList(out)).isEmpty() );
+		assertEquals( 1024, bf.getSize() );
+
+		assertEquals( 1024, bf.clear() );
+		assertEquals( 0, governor.getUsed() );
+	}
+	
+}
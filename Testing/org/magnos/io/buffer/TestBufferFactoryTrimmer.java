@@ -0,0 +1,205 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.magnos.io.buffer.BufferFactoryBinary;
+import org.magnos.io.buffer.BufferFactoryMap;
+import org.magnos.io.buffer.BufferFactoryTrimmer;
+
+
+public class TestBufferFactoryTrimmer
+{
+
+	@Test
+	public void testIdle()
+	{
+		BufferFactoryBinary bf = new BufferFactoryBinary(4, 10);
+		bf.setIdleTime(1, TimeUnit.HOURS);
+		
+		// A spike of 8 buffers
+		ByteBuffer[] spike = new ByteBuffer[8];
+		for (int i = 0; i < spike.length; i++) {
+			spike[i] = bf.allocate(64);
+		}
+		for (int i = 0; i < spike.length; i++) {
+			bf.free(spike[i]);
+		}
+		assertEquals( 512, bf.getSize() );
+		
+		// Buffers cached during the period aren't idle yet
+		assertEquals( 0, bf.trim() );
+		assertEquals( 512, bf.getSize() );
+		
+		// Steady load of 2 buffers at once
+		ByteBuffer a = bf.allocate(64);
+		ByteBuffer b = bf.allocate(64);
+		bf.free(a);
+		bf.free(b);
+		
+		// The 6 buffers never taken during the period are evicted
+		assertEquals( 384, bf.trim() );
+		assertEquals( 128, bf.getSize() );
+		
+		// Nothing used since, the rest is idle
+		assertEquals( 128, bf.trim() );
+		assertEquals( 0, bf.getSize() );
+	}
+	
+	@Test
+	public void testMagazine()
+	{
+		// Rounds of 2, a magazine holds 4 buffers of a size
+		BufferFactoryBinary bf = new BufferFactoryBinary(4, 10, 2);
+		bf.setIdleTime(1, TimeUnit.HOURS);
+		
+		ByteBuffer[] spike = new ByteBuffer[6];
+		for (int i = 0; i < spike.length; i++) {
+			spike[i] = bf.allocate(64);
+		}
+		for (int i = 0; i < spike.length; i++) {
+			bf.free(spike[i]);
+		}
+		
+		// A round of 2 was unloaded to the depot
+		assertEquals( 128, bf.getSize() );
+		assertEquals( 0, bf.trim() );
+		
+		// Reloading the round takes it from the depot
+		for (int i = 0; i < 5; i++) {
+			spike[i] = bf.allocate(64);
+		}
+		assertEquals( 0, bf.getSize() );
+		assertEquals( 0, bf.trim() );
+		
+		// Unloading it again caches it, idle for the next period
+		for (int i = 0; i < 5; i++) {
+			bf.free(spike[i]);
+		}
+		assertEquals( 128, bf.getSize() );
+		assertEquals( 0, bf.trim() );
+		assertEquals( 128, bf.trim() );
+		assertEquals( 0, bf.getSize() );
+	}
+	
+	@Test
+	public void testLowestDemand()
+	{
+		BufferFactoryMap bf = new BufferFactoryMap(8192, 128);
+		bf.setIdleTime(1, TimeUnit.HOURS);
+		
+		bf.free(ByteBuffer.allocateDirect(256));
+		bf.free(ByteBuffer.allocateDirect(256));
+		bf.free(ByteBuffer.allocateDirect(512));
+		bf.free(ByteBuffer.allocateDirect(512));
+		bf.trim();
+		
+		// 512 is in more demand than 256, neither is idle
+		for (int i = 0; i < 2; i++) {
+			ByteBuffer a = bf.allocate(512);
+			ByteBuffer b = bf.allocate(512);
+			bf.free(a);
+			bf.free(b);
+		}
+		ByteBuffer c = bf.allocate(256);
+		ByteBuffer d = bf.allocate(256);
+		bf.free(c);
+		bf.free(d);
+		
+		// Lowering the capacity evicts from the least demanded size first
+		bf.setCapacity(1024 + 256);
+		assertEquals( 256, bf.trim() );
+		assertEquals( 1024 + 256, bf.getSize() );
+		
+		// Both 512 buffers are still cached
+		bf.allocate(512);
+		bf.allocate(512);
+		assertEquals( 256, bf.getSize() );
+	}
+	
+	@Test
+	public void testDisabled()
+	{
+		BufferFactoryBinary bf = new BufferFactoryBinary(4, 10);
+		bf.free(bf.allocate(64));
+		bf.trim();
+		
+		assertEquals( 0, bf.trim() );
+		assertEquals( 64, bf.getSize() );
+	}
+	
+	@Test
+	public void testTrimmer() throws Exception
+	{
+		BufferFactoryTrimmer trimmer = new BufferFactoryTrimmer(1, TimeUnit.HOURS);
+		
+		BufferFactoryBinary bf = new BufferFactoryBinary(4, 10);
+		bf.setIdleTime(10, TimeUnit.MILLISECONDS);
+		bf.free(bf.allocate(64));
+		
+		trimmer.register(bf);
+		assertEquals( 1, trimmer.getFactoryCount() );
+		
+		// First period starts tracking, second evicts
+		Thread.sleep(20);
+		trimmer.trim();
+		Thread.sleep(20);
+		assertEquals( 64, trimmer.trim() );
+		assertEquals( 0, bf.getSize() );
+		
+		trimmer.unregister(bf);
+		assertEquals( 0, trimmer.getFactoryCount() );
+		trimmer.shutdown();
+	}
+	@Test
+	public void testFailingFactory() throws Exception
+	{
+		BufferFactoryTrimmer trimmer = new BufferFactoryTrimmer(1, TimeUnit.HOURS);
+		
+		BufferFactoryBinary failing = new BufferFactoryBinary(4, 10) {
+			protected List<ByteBuffer> onEvict(int capacity, int count) {
+				throw new IllegalStateException("evict");
+			}
+		};
+		failing.setIdleTime(10, TimeUnit.MILLISECONDS);
+		failing.free(failing.allocate(64));
+		
+		BufferFactoryBinary bf = new BufferFactoryBinary(4, 10);
+		bf.setIdleTime(10, TimeUnit.MILLISECONDS);
+		bf.free(bf.allocate(64));
+		
+		trimmer.register(failing);
+		trimmer.register(bf);
+		
+		// The failing factory doesn't keep the other from being trimmed
+		Thread.sleep(20);
+		trimmer.trim();
+		Thread.sleep(20);
+		assertEquals( 64, trimmer.trim() );
+		assertEquals( 0, bf.getSize() );
+		assertEquals( 64, failing.getSize() );
+		
+		trimmer.shutdown();
+	}
+	
+}
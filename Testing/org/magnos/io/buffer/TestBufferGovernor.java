@@ -0,0 +1,184 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.magnos.io.buffer.BufferFactoryBinary;
+import org.magnos.io.buffer.BufferFactoryFixed;
+import org.magnos.io.buffer.BufferGovernor;
+import org.magnos.io.buffer.BufferGovernor.Policy;
+
+
+public class TestBufferGovernor
+{
+
+	@Test
+	public void testFail()
+	{
+		BufferGovernor governor = new BufferGovernor(1024);
+		
+		// Two factories share the budget
+		BufferFactoryBinary a = new BufferFactoryBinary(4, 10);
+		BufferFactoryFixed b = new BufferFactoryFixed(256, 16);
+		a.setGovernor(governor);
+		b.setGovernor(governor);
+		
+		ByteBuffer x = a.allocate(512);
+		ByteBuffer y = b.allocate(200);
+		assertEquals( 768, governor.getUsed() );
+		assertEquals( 0.75, governor.getPressure(), 0.0001 );
+		
+		// Cached buffers still count
+		a.free(x);
+		assertEquals( 768, governor.getUsed() );
+		
+		// Doesn't fit
+		assertNull( a.allocate(1024) );
+		assertEquals( 1, governor.getDenied() );
+		
+		// Cached buffers are reused without the governor
+		assertSame( x, a.allocate(300) );
+		
+		// Freeing from memory gives back to the budget
+		b.setCapacity(0);
+		b.free(y);
+		assertEquals( 512, governor.getUsed() );
+		
+		// Sizes which aren't pooled are heap buffers and aren't governed
+		assertFalse( a.allocate(2048).isDirect() );
+		assertEquals( 512, governor.getUsed() );
+	}
+	
+	@Test
+	public void testForeign()
+	{
+		BufferGovernor governor = new BufferGovernor(1024);
+		BufferFactoryFixed bf = new BufferFactoryFixed(256, 16);
+		bf.setGovernor(governor);
+		bf.setCapacity(0);
+		
+		ByteBuffer b = bf.allocate(200);
+		assertEquals( 256, governor.getUsed() );
+		
+		// Buffers the governor didn't reserve give nothing back
+		assertFalse( bf.free(ByteBuffer.allocateDirect(256)) );
+		assertFalse( bf.free(b.duplicate()) );
+		assertEquals( 256, governor.getUsed() );
+		
+		// Only once
+		assertFalse( bf.free(b) );
+		assertFalse( bf.free(b) );
+		assertEquals( 0, governor.getUsed() );
+	}
+	
+	@Test
+	public void testHeap()
+	{
+		BufferGovernor governor = new BufferGovernor(512, Policy.HEAP, 0, TimeUnit.MILLISECONDS);
+		BufferFactoryBinary bf = new BufferFactoryBinary(4, 10);
+		bf.setGovernor(governor);
+		
+		assertTrue( bf.allocate(512).isDirect() );
+		
+		ByteBuffer b = bf.allocate(512);
+		assertFalse( b.isDirect() );
+		assertEquals( 512, b.capacity() );
+		assertEquals( 512, governor.getUsed() );
+		assertEquals( 1, governor.getDenied() );
+		
+		// Heap fallbacks aren't cached
+		bf.free(b);
+		assertEquals( 0, bf.getSize() );
+	}
+	
+	@Test
+	public void testBlock() throws InterruptedException
+	{
+		BufferGovernor governor = new BufferGovernor(512, Policy.BLOCK, 10, TimeUnit.SECONDS);
+		final BufferFactoryBinary bf = new BufferFactoryBinary(4, 10);
+		bf.setGovernor(governor);
+		bf.setCapacity(0);
+		
+		final ByteBuffer held = bf.allocate(512);
+		
+		// Another thread frees from memory shortly
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				}
+				catch (InterruptedException e) {
+				}
+				bf.free(held);
+			}
+		}.start();
+		
+		long time = System.nanoTime();
+		ByteBuffer b = bf.allocate(512);
+		time = System.nanoTime() - time;
+		
+		assertNotNull( b );
+		assertTrue( b.isDirect() );
+		assertTrue( time >= TimeUnit.MILLISECONDS.toNanos(40) );
+		assertEquals( 512, governor.getUsed() );
+		
+		// Nothing frees this time
+		governor.setTimeout(20, TimeUnit.MILLISECONDS);
+		assertNull( bf.allocate(512) );
+	}
+	
+	@Test
+	public void testAsync()
+	{
+		BufferGovernor governor = new BufferGovernor(512, Policy.BLOCK, 10, TimeUnit.SECONDS);
+		BufferFactoryBinary bf = new BufferFactoryBinary(4, 10);
+		bf.setGovernor(governor);
+		
+		// Fits now
+		CompletableFuture<ByteBuffer> f0 = bf.allocateAsync(256);
+		assertTrue( f0.isDone() );
+		ByteBuffer b0 = f0.join();
+		ByteBuffer b1 = bf.allocate(256);
+		
+		// Doesn't fit, and doesn't block
+		CompletableFuture<ByteBuffer> f1 = bf.allocateAsync(512);
+		CompletableFuture<ByteBuffer> f2 = bf.allocateAsync(256);
+		CompletableFuture<ByteBuffer> f3 = bf.allocateAsync(256);
+		assertFalse( f1.isDone() );
+		assertFalse( f2.isDone() );
+		assertEquals( 3, bf.getWaiting() );
+		
+		// The first waiter is first in line even though a 256 is cached
+		bf.free(b0);
+		assertFalse( f1.isDone() );
+		assertFalse( f2.isDone() );
+		
+		// Cancelled waiters are skipped
+		f1.cancel(false);
+		bf.free(b1);
+		assertSame( b1, f2.join() );
+		assertSame( b0, f3.join() );
+		assertEquals( 0, bf.getWaiting() );
+	}
+	
+}
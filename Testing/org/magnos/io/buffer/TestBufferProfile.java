@@ -0,0 +1,129 @@
+/*
+ * NOTICE OF LICENSE
+ *
+ * This source file is subject to the Open Software License (OSL 3.0) that is
+ * bundled with this package in the file LICENSE.txt. It is also available
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated.
+ *
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.magnos.io.buffer.BufferFactoryBinary;
+import org.magnos.io.buffer.BufferFactoryHeapBinary;
+import org.magnos.io.buffer.BufferFactoryMap;
+import org.magnos.io.buffer.BufferProfile;
+
+
+public class TestBufferProfile
+{
+
+	@Test
+	public void testRecord()
+	{
+		// Creates DirectByteBuffers at sizes 8,16,32
+		BufferFactoryBinary bf = new BufferFactoryBinary(3, 5);
+
+		// Nothing is recorded until profiling is enabled
+		bf.allocate(16);
+		assertTrue( bf.getProfile().isEmpty() );
+
+		bf.setProfiling(true);
+		for (int i = 0; i < 3; i++) {
+			bf.free(bf.allocate(12));
+		}
+		bf.free(bf.allocate(30));
+
+		// Heap buffers aren't recorded
+		bf.allocate(100);
+
+		BufferProfile profile = bf.getProfile();
+		assertArrayEquals( new int[] {16, 32}, profile.getCapacities() );
+		assertEquals( 3, profile.getDemand(16) );
+		assertEquals( 1, profile.getDemand(32) );
+		assertEquals( 0, profile.getDemand(8) );
+	}
+
+	@Test
+	public void testHeap()
+	{
+		// Creates HeapByteBuffers at sizes 8,16,32
+		BufferFactoryHeapBinary bf = new BufferFactoryHeapBinary(3, 5);
+		bf.setProfiling(true);
+		for (int i = 0; i < 3; i++) {
+			bf.free(bf.allocate(12));
+		}
+
+		// Buffers which aren't pooled aren't recorded
+		bf.allocate(100);
+
+		BufferProfile profile = bf.getProfile();
+		assertArrayEquals( new int[] {16}, profile.getCapacities() );
+		assertEquals( 3, profile.getDemand(16) );
+
+		// A heap factory is filled as well
+		BufferFactoryHeapBinary filled = new BufferFactoryHeapBinary(3, 5);
+		filled.setCapacity(64);
+		assertEquals( 64, filled.fill(profile, 2) );
+		assertEquals( 64, filled.getSize() );
+	}
+
+	@Test
+	public void testSaveLoad() throws IOException
+	{
+		BufferProfile profile = new BufferProfile();
+		profile.add(300, 40);
+		profile.add(1024, 7);
+		profile.add(300, 2);
+
+		File file = File.createTempFile("buffero", ".profile");
+		try {
+			profile.save(file);
+
+			BufferProfile loaded = BufferProfile.load(file);
+			assertArrayEquals( new int[] {300, 1024}, loaded.getCapacities() );
+			assertEquals( 42, loaded.getDemand(300) );
+			assertEquals( 7, loaded.getDemand(1024) );
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testFill()
+	{
+		// 3 buffers of 1000 for every buffer of 2000
+		BufferProfile profile = new BufferProfile();
+		profile.add(1000, 300);
+		profile.add(2000, 100);
+
+		BufferFactoryMap bf = new BufferFactoryMap(8192, 128);
+		bf.setCapacity(50000);
+
+		assertEquals( 50000, bf.fill(profile, 4) );
+		assertEquals( 50000, bf.getSize() );
+
+		// 30 of 1000 and 10 of 2000 are served from cache
+		ByteBuffer[] out = new ByteBuffer[30];
+		assertEquals( 30, bf.allocate(30, 1000, out) );
+		assertEquals( 20000, bf.getSize() );
+		assertEquals( 10, bf.allocate(10, 2000, out) );
+		assertEquals( 0, bf.getSize() );
+	}
+
+}
@@ -0,0 +1,55 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.magnos.io.buffer.ConcurrentIntMap;
+
+
+public class TestConcurrentIntMap
+{
+
+	@Test
+	public void testRange()
+	{
+		ConcurrentIntMap<String> map = new ConcurrentIntMap<String>(0, Integer.MAX_VALUE);
+		
+		assertNull( map.get(4097) );
+		assertEquals( "a", map.putIfAbsent(4097, "a") );
+		assertEquals( "a", map.putIfAbsent(4097, "b") );
+		assertEquals( "a", map.get(4097) );
+		
+		// Keys far apart and at the ends of the range
+		map.putIfAbsent(Integer.MAX_VALUE, "c");
+		map.putIfAbsent(0, "d");
+		assertEquals( "c", map.get(Integer.MAX_VALUE) );
+		assertNull( map.get(-1) );
+		
+		assertEquals( Arrays.asList("d", "a", "c"), map.values() );
+	}
+	
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testOutOfRange()
+	{
+		new ConcurrentIntMap<String>(16, 1024).putIfAbsent(8, "a");
+	}
+	
+}
@@ -0,0 +1,117 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.io.buffer;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.magnos.io.buffer.BufferFactory;
+import org.magnos.io.buffer.BufferFactoryBinary;
+import org.magnos.io.buffer.PooledBuffer;
+
+
+public class TestPooledBuffer
+{
+
+	@Test
+	public void testRetainRelease()
+	{
+		BufferFactory bf = new BufferFactoryBinary(4, 8);
+		
+		PooledBuffer pb = PooledBuffer.allocate(bf, 64);
+		assertEquals( 1, pb.getReferences() );
+		
+		pb.retain();
+		assertEquals( 2, pb.getReferences() );
+		
+		assertFalse( pb.release() );
+		assertEquals( 0, bf.getSize() );
+		
+		// The last release returns the buffer to the factory
+		assertTrue( pb.release() );
+		assertEquals( 0, pb.getReferences() );
+		assertEquals( 64, bf.getSize() );
+	}
+	
+	@Test
+	public void testSharing()
+	{
+		BufferFactory bf = new BufferFactoryBinary(4, 8);
+		
+		PooledBuffer message = PooledBuffer.allocate(bf, 16);
+		message.getBuffer().putLong(0x0102030405060708L);
+		message.getBuffer().putLong(0x1112131415161718L);
+		message.getBuffer().flip();
+		
+		// Fan out to two consumers without copying
+		PooledBuffer a = message.duplicate();
+		PooledBuffer b = message.duplicate();
+		assertEquals( 3, message.getReferences() );
+		
+		assertEquals( 0x0102030405060708L, a.getBuffer().getLong() );
+		assertEquals( 0x0102030405060708L, b.getBuffer().getLong() );
+		assertEquals( 0, message.getBuffer().position() );
+		
+		// A slice of the second half
+		a.getBuffer().position(8);
+		PooledBuffer tail = a.slice();
+		assertEquals( 8, tail.getBuffer().capacity() );
+		assertEquals( 0x1112131415161718L, tail.getBuffer().getLong() );
+		assertEquals( 4, message.getReferences() );
+		
+		assertFalse( message.release() );
+		assertFalse( a.release() );
+		assertFalse( b.release() );
+		assertEquals( 0, bf.getSize() );
+		
+		assertTrue( tail.release() );
+		assertEquals( 16, bf.getSize() );
+	}
+	
+	@Test
+	public void testReleased()
+	{
+		PooledBuffer pb = PooledBuffer.allocate(new BufferFactoryBinary(4, 8), 32);
+		pb.release();
+		
+		try {
+			pb.release();
+			fail();
+		}
+		catch (IllegalStateException e) {
+		}
+		
+		try {
+			pb.retain();
+			fail();
+		}
+		catch (IllegalStateException e) {
+		}
+		
+		try {
+			pb.duplicate();
+			fail();
+		}
+		catch (IllegalStateException e) {
+		}
+		
+		assertEquals( 0, pb.getReferences() );
+	}
+	
+}